@@ -0,0 +1,56 @@
+package net.frontlinesms.messaging;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Responses captured from real modems, including the command echo and the unsolicited result
+ * codes which some devices interleave with their responses.  Benchmarks are in the same package
+ * as the detector so that they can reach its package-private parsing methods.
+ */
+public enum ResponseCorpus {
+	HUAWEI(
+			"AT+CGSN\r\r\n356789012345678\r\n\r\nOK\r\n",
+			"AT+CGMI\r\r\nhuawei\r\n\r\nOK\r\n",
+			"AT+CNUM\r\r\n^BOOT:9716548,0,0,0,20\r\n+CNUM: \"\",\"+447123456789\",145\r\n\r\nOK\r\n",
+			"AT+CPIN?\r\r\n^RSSI:18\r\n+CPIN: READY\r\n\r\nOK\r\n",
+			"AT+CSMS?\r\r\n+CSMS: 0,1,1,1\r\n\r\nOK\r\n"),
+	ZTE(
+			"AT+CGSN\r\r\n358765432109876\r\n\r\nOK\r\n\r\n^MODE:5,4\r\n",
+			"AT+CGMI\r\r\nZTE INCORPORATED\r\n\r\nOK\r\n",
+			"AT+CNUM\r\r\n+CREG: 1\r\n+CNUM: \"Voice\",\"0712345678\",129\r\n\r\nOK\r\n",
+			"AT+CPIN?\r\r\n+CPIN: SIM PIN\r\n\r\nOK\r\n\r\n+CGREG: 1\r\n",
+			"AT+CSMS?\r\r\n+CSMS: 0,1,1,1\r\n\r\nOK\r\n"),
+	WAVECOM(
+			"AT+CGSN\r\n012345678901234\r\nOK\r\n",
+			"AT+CGMI\r\nWAVECOM MODEM\r\nOK\r\n",
+			"AT+CNUM\r\n+CME ERROR: 3\r\n",
+			"AT+CPIN?\r\n+CPIN: READY\r\nOK\r\n",
+			"AT+CSMS?\r\n+CSMS: 0,1,1,1\r\nOK\r\n"),
+	SIEMENS(
+			"AT+CGSN\r\r\n351234567890123\r\n\r\nOK\r\n",
+			"AT+CGMI\r\r\nSIEMENS\r\n\r\nOK\r\n",
+			"AT+CNUM\r\r\n+CNUM: ,\"+4915112345678\",145\r\n\r\nOK\r\n",
+			"AT+CPIN?\r\r\n+CPIN: READY\r\n\r\nOK\r\n",
+			"AT+CSMS?\r\r\n+CSMS: 1,1,1,1\r\n\r\nOK\r\n");
+	
+	final byte[] serial;
+	final byte[] manufacturer;
+	final byte[] phoneNumber;
+	final byte[] lockType;
+	final byte[] smsSupport;
+	/** The <code>AT+CSMS?</code> response as a string, for the string-based parsers */
+	final String smsSupportString;
+	
+	private ResponseCorpus(String serial, String manufacturer, String phoneNumber, String lockType, String smsSupport) {
+		this.serial = bytes(serial);
+		this.manufacturer = bytes(manufacturer);
+		this.phoneNumber = bytes(phoneNumber);
+		this.lockType = bytes(lockType);
+		this.smsSupport = bytes(smsSupport);
+		this.smsSupportString = smsSupport;
+	}
+	
+	private static byte[] bytes(String response) {
+		return response.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,116 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures reading and parsing of the responses to the detection commands, for each modem in the
+ * {@link ResponseCorpus}.  Run with <code>-prof gc</code> to report allocation rate alongside ops/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+	@Param({ "HUAWEI", "ZTE", "WAVECOM", "SIEMENS" })
+	private ResponseCorpus modem;
+	
+	private ATDeviceDetector detector;
+	private ATResponse response;
+	private OutputStream out;
+	private ByteArrayInputStream serial;
+	private ByteArrayInputStream manufacturer;
+	private ByteArrayInputStream phoneNumber;
+	private ByteArrayInputStream lockType;
+	private SerialChannel serialChannel;
+	private SerialChannel manufacturerChannel;
+	private SerialChannel phoneNumberChannel;
+	private SerialChannel lockTypeChannel;
+	
+	@Setup
+	public void setUp() {
+		detector = new ATDeviceDetector(null, null);
+		response = new ATResponse();
+		out = new OutputStream() {
+			public void write(int b) {}
+		};
+		serial = new ByteArrayInputStream(modem.serial);
+		manufacturer = new ByteArrayInputStream(modem.manufacturer);
+		phoneNumber = new ByteArrayInputStream(modem.phoneNumber);
+		lockType = new ByteArrayInputStream(modem.lockType);
+		serialChannel = new SerialChannel(serial, out);
+		manufacturerChannel = new SerialChannel(manufacturer, out);
+		phoneNumberChannel = new SerialChannel(phoneNumber, out);
+		lockTypeChannel = new SerialChannel(lockType, out);
+	}
+	
+//> READING
+	@Benchmark
+	public ATResponse readResponse() throws IOException {
+		serial.reset();
+		return response.read(serial, Utils.COMMAND_TIMEOUT);
+	}
+	
+	@Benchmark
+	public ATResponse executeAtCommand() throws IOException {
+		manufacturer.reset();
+		return Utils.executeAtCommand(manufacturer, out, "CGMI", response);
+	}
+	
+	@Benchmark
+	public ATResponse readResponseBuffered() throws IOException {
+		rewind(serialChannel, serial);
+		return response.read(serialChannel, Utils.COMMAND_TIMEOUT);
+	}
+	
+	@Benchmark
+	public ATResponse executeAtCommandBuffered() throws IOException {
+		rewind(manufacturerChannel, manufacturer);
+		return Utils.executeAtCommand(manufacturerChannel, "CGMI", response, Utils.COMMAND_TIMEOUT);
+	}
+	
+//> PARSING
+	@Benchmark
+	public String getSerial() throws IOException, ATDeviceDetectionException {
+		rewind(serialChannel, serial);
+		return detector.getSerial(serialChannel);
+	}
+	
+	@Benchmark
+	public String getLockType() throws IOException {
+		rewind(lockTypeChannel, lockType);
+		return detector.getLockType(lockTypeChannel);
+	}
+	
+	@Benchmark
+	public String getPhoneNumber() throws IOException {
+		rewind(phoneNumberChannel, phoneNumber);
+		return detector.getPhoneNumber(phoneNumberChannel);
+	}
+	
+	@Benchmark
+	public boolean isSmsSendSupported() {
+		return detector.isSmsSendSupported(modem.smsSupportString);
+	}
+	
+	@Benchmark
+	public boolean isSmsReceiveSupported() {
+		return detector.isSmsReceiveSupported(modem.smsSupportString);
+	}
+	
+	@Benchmark
+	public ATResponse parseSmsSupport() {
+		return response.parse("AT+CSMS?", modem.smsSupport, 0, modem.smsSupport.length);
+	}
+	
+//> HELPER METHODS
+	/** Empties the channel, including bytes left after the last response, and replays the response from the start. */
+	private static void rewind(SerialChannel channel, ByteArrayInputStream in) throws IOException {
+		channel.discardAvailable();
+		in.reset();
+	}
+}
@@ -0,0 +1,82 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Replays serial transcripts through the channel and response parser, sending each command in the
+ * transcript and reading the device's answer as detection does.  By default the transcripts are
+ * built from the {@link ResponseCorpus}; to benchmark traffic recorded in the field with
+ * <code>Main --record &lt;directory&gt;</code>, run with <code>-p transcript=&lt;file&gt;</code>.
+ * <p>
+ * Replay is as fast as possible, so only the time spent reading and parsing is measured, plus one
+ * millisecond for each read which finds nothing, e.g. waiting out a command the device ignored.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranscriptReplayBenchmark {
+	/** Name of a {@link ResponseCorpus} modem, or path of a transcript file */
+	@Param({ "HUAWEI", "ZTE", "WAVECOM", "SIEMENS" })
+	private String transcript;
+
+	private SerialTranscript recorded;
+	/** Each command sent in the transcript, without its trailing \r */
+	private List<String> commands;
+	private ATResponse response;
+
+	@Setup
+	public void setUp() throws IOException {
+		recorded = isCorpus(transcript) ? corpusTranscript(ResponseCorpus.valueOf(transcript)) : SerialTranscript.load(new File(transcript));
+		commands = new ArrayList<String>();
+		for(SerialTranscript.Event e : recorded.getEvents()) {
+			if(!e.isSent()) continue;
+			String command = new String(e.getBytes(), "ISO-8859-1");
+			commands.add(command.endsWith("\r") ? command.substring(0, command.length() - 1) : command);
+		}
+		response = new ATResponse();
+	}
+
+	@Benchmark
+	public int replay() throws IOException {
+		SerialTranscript.Replay replay = recorded.newReplay(Double.POSITIVE_INFINITY);
+		replay.setReadTimeout(1);
+		SerialChannel channel = new SerialChannel(replay.getInputStream(), replay.getOutputStream());
+		int lines = 0;
+		for(String command : commands) {
+			channel.writeCommand(command);
+			lines += response.read(channel, Utils.COMMAND_TIMEOUT).getLineCount();
+		}
+		return lines;
+	}
+
+//> STATIC HELPER METHODS
+	private static boolean isCorpus(String name) {
+		for(ResponseCorpus modem : ResponseCorpus.values()) {
+			if(modem.name().equals(name)) return true;
+		}
+		return false;
+	}
+
+	/** @return a transcript of the detection commands, each answered 20ms after it was sent */
+	private static SerialTranscript corpusTranscript(ResponseCorpus modem) throws IOException {
+		StringBuilder transcript = new StringBuilder();
+		long time = 0;
+		for(byte[] exchange : new byte[][] { modem.serial, modem.manufacturer, modem.phoneNumber, modem.lockType, modem.smsSupport }) {
+			int commandLength = 0;
+			while(exchange[commandLength] != '\r') ++commandLength;
+			++commandLength;
+			transcript.append(time).append(" > ").append(SerialTranscript.escape(exchange, 0, commandLength)).append('\n');
+			time += 20000;
+			transcript.append(time).append(" < ").append(SerialTranscript.escape(exchange, 0, exchange.length)).append('\n');
+			time += 5000;
+		}
+		return SerialTranscript.parse(new StringReader(transcript.toString()));
+	}
+}
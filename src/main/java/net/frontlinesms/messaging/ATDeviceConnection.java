@@ -0,0 +1,90 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+
+import serial.SerialPort;
+
+/**
+ * A serial port left open by an {@link ATDeviceDetector}, configured at the baud rate the device
+ * was detected at.  Whoever receives it owns the port, and must {@link #close()} it when finished.
+ * @see ATDeviceDetector#setHandoff(boolean)
+ */
+public class ATDeviceConnection implements Closeable {
+	/** Logger */
+	private final Logger log = new Logger(this.getClass());
+	/** The detector which opened the port */
+	private final ATDeviceDetector detector;
+	private final SerialPort serialPort;
+	private final SerialChannel channel;
+	/** <code>true</code> once {@link #close()} has been called */
+	private boolean closed;
+	/** Run once the port has been closed, or <code>null</code> */
+	private Runnable closeAction;
+
+	ATDeviceConnection(ATDeviceDetector detector, SerialPort serialPort, SerialChannel channel) {
+		this.detector = detector;
+		this.serialPort = serialPort;
+		this.channel = channel;
+	}
+
+//> ACCESSORS
+	public ATDeviceDetector getDetector() {
+		return detector;
+	}
+
+	public String getPortName() {
+		return detector.getPortName();
+	}
+
+	/** @return the baud rate the port is configured at */
+	public int getBaudRate() {
+		return detector.getMaxBaudRate();
+	}
+
+	/** @return the open port.  Its receive timeout is left short, so should be set to suit the consumer. */
+	public SerialPort getSerialPort() {
+		return serialPort;
+	}
+
+	/** @return the channel the device was detected through; anything it has buffered is still to be read */
+	public SerialChannel getChannel() {
+		return channel;
+	}
+
+	/** @return the port's input, starting with anything received but not yet read during detection */
+	public InputStream getInputStream() {
+		return channel.getInputStream();
+	}
+
+	public OutputStream getOutputStream() {
+		return channel.getOutputStream();
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	
+	/** Sets an action to run once the port has been closed.  If it already has been, the action is run now. */
+	void setCloseAction(Runnable closeAction) {
+		synchronized(this) {
+			this.closeAction = closeAction;
+			if(!closed) return;
+		}
+		closeAction.run();
+	}
+
+	/** Closes the streams and the port.  Calling this more than once has no effect. */
+	public void close() {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		try { channel.close(); } catch(Throwable t) { log.warn("Error closing streams.", t); }
+		try { serialPort.close(); } catch(Throwable t) { log.warn("Error closing serial port.", t); }
+		Runnable closeAction;
+		synchronized(this) {
+			closeAction = this.closeAction;
+		}
+		if(closeAction != null) closeAction.run();
+	}
+}
@@ -1,139 +1,551 @@
 package net.frontlinesms.messaging;
 
 import java.io.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 import serial.*;
 
-public class ATDeviceDetector extends Thread {
-	private static final String STRIP_REGEX = "\\s+(" +
-			"(OK)|" +
-			// Should strip all asynchronous info sent by the phone so it doesn't interfere with info we requested
-			"(\\^[A-Z]+:[\\d,]+)|" +
-			"(\\+CG?REG: \\d+)" +
-			")";
-	private static final Pattern DIGIT_PATTERN = Pattern.compile("\\d");
+/**
+ * Detects whether an AT device is attached to a single serial port.  Detection is run by
+ * submitting the detector to an {@link java.util.concurrent.Executor}, or by calling {@link #run()}.
+ */
+public class ATDeviceDetector implements Runnable {
+	/**
+	 * Device properties which are not needed to confirm that a device is present.  Each can be
+	 * queried during detection, or deferred until it is first asked for.
+	 * @see #setEagerAttributes(Set)
+	 */
+	public enum Attribute { MANUFACTURER, MODEL, IMSI, PHONE_NUMBER, LOCK_TYPE, SMS_SUPPORT }
+	
+	/** Attributes fetched by the batched identity query, and reported by {@link ATDeviceDetectorListener#handleIdentityDetected(ATDeviceDetector)} */
+	private static final Set<Attribute> IDENTITY_ATTRIBUTES = Collections.unmodifiableSet(EnumSet.of(Attribute.MANUFACTURER, Attribute.MODEL, Attribute.IMSI));
+	/** Identity queries sent on a single command line when {@link #batchedIdentity} is set.  Order matters. */
+	private static final String[] BATCHED_IDENTITY_COMMANDS = { "CGSN", "CGMI", "CGMM", "CIMI" };
+	/** Name the batched identity query is recorded under in the {@link DetectionMetrics} */
+	private static final String BATCHED_IDENTITY_COMMAND_NAME = "AT+CGSN;+CGMI;+CGMM;+CIMI";
 					
-	/** Valid baud rates */
-	private static final int[] BAUD_RATES = { 9600, 19200, 38400, 57600, 115200 };
+	/** Valid baud rates, fastest first.  Detection stops at the first rate the device responds at. */
+	private static final int[] BAUD_RATES = { 115200, 57600, 38400, 19200, 9600 };
+	/** Time, in milliseconds, to wait for each byte from the device until a timeout has been learned */
+	private static final int DEFAULT_RECEIVE_TIMEOUT = 1000;
+	/**
+	 * The port's own receive timeout, in milliseconds.  Reads give up after this long so that they
+	 * notice cancellation promptly; {@link #receiveTimeout} is enforced by {@link ATResponse}.
+	 */
+	private static final int RECEIVE_POLL_INTERVAL = 50;
 
 	/** Logger */
 	private final Logger log = new Logger(this.getClass());
+	/** Buffer which responses from the device are read into.  Reused for every command. */
+	private final ATResponse response = new ATResponse();
+	/** Timings of each phase of detection and each command sent */
+	private final DetectionMetrics metrics = new DetectionMetrics();
 	
 //> DETECTION PROPERTIES
 	/** Port this is detecting on */
 	private final CommPortIdentifier portIdentifier;
 	/** Detection listener */
 	private final ATDeviceDetectorListener listener;
-	/** The top speed the device was detected at. */
-	private int maxBaudRate;
+	/** The top speed the device was detected at, or <code>0</code> if it was not detected. */
+	private volatile int maxBaudRate;
 	/** <code>true</code> when the detection thread has finished. */
-	private boolean finished;
+	private volatile boolean finished;
+	/** Completed with this detector when detection has finished. */
+	private final CompletableFuture<ATDeviceDetector> completion = new CompletableFuture<ATDeviceDetector>();
+	/** Result of a previous detection on this port, tried before a full probe.  May be <code>null</code>. */
+	private DetectionCache.Entry cached;
+	/** Set <code>true</code> to query the device's identity with a single concatenated command line. */
+	private boolean batchedIdentity;
+	/** Attributes queried during detection.  The rest are left for {@link #fetchDeferred()}. */
+	private EnumSet<Attribute> eagerAttributes = EnumSet.allOf(Attribute.class);
+	/** Attributes which have not been fetched yet.  Guarded by <code>this</code>. */
+	private final Set<Attribute> pendingAttributes = EnumSet.noneOf(Attribute.class);
+	/** Held while the port is reopened after detection, so that fetches and health checks take turns */
+	private final Object portLock = new Object();
+	/** Maximum time, in milliseconds, detection may run for, or <code>0</code> for no limit */
+	private long timeLimit;
+	/** Scheduler which enforces {@link #timeLimit} */
+	private ScheduledExecutorService scheduler;
+	/** Why detection was cancelled, or <code>null</code> if it has not been */
+	private volatile String cancelReason;
+	/** The thread running detection, or <code>null</code> if it is not running.  Guarded by {@link #workerLock}. */
+	private Thread worker;
+	private final Object workerLock = new Object();
+	/** Set <code>true</code> to leave the port open after a successful detection, and hand it to the {@link #listener} */
+	private boolean handoff;
+	/** Timeouts learned from previous detections, or <code>null</code> to always use the defaults */
+	private ResponseTimeouts timeouts;
+	/** Round-trip times of the commands answered during this detection */
+	private final ResponseTimeouts.Samples roundTrips = new ResponseTimeouts.Samples();
+	/** Time, in milliseconds, to wait for each byte from the device */
+	private int receiveTimeout = DEFAULT_RECEIVE_TIMEOUT;
+	/** Time, in milliseconds, to wait for the complete response to a command */
+	private long commandTimeout = Utils.COMMAND_TIMEOUT;
+	/** <code>true</code> if the last command timed out, so the rest of its response may still arrive */
+	private boolean responseTruncated;
+	/** <code>true</code> once a learned timeout has proved too short, so the defaults are used for the rest of detection */
+	private boolean defaultTimeouts;
+	/** File the port's traffic during detection is recorded to, or <code>null</code> not to record */
+	private File transcriptFile;
 	
-	private String exceptionMessage;
+	private volatile String exceptionMessage;
+	/** <code>true</code> if detection failed because the port was held open elsewhere */
+	private volatile boolean portInUse;
 	
 //> DEVICE PROPERTIES	
+	// N.B. these are written by the detection thread, and may be read from any thread
 	/** The serial number of the detected device. */
-	private String serial;
-	private String manufacturer;
-	private String model;
-	private String imsi;
-	private String phoneNumber;
-	private String lockType;
-	private boolean smsReceiveSupported;
-	private boolean smsSendSupported;
+	private volatile String serial;
+	private volatile String manufacturer;
+	private volatile String model;
+	private volatile String imsi;
+	private volatile String phoneNumber;
+	private volatile String lockType;
+	private volatile boolean smsReceiveSupported;
+	private volatile boolean smsSendSupported;
 	
 	public ATDeviceDetector(CommPortIdentifier port, ATDeviceDetectorListener listener) {
-		super("ATDeviceDetector: " + port.getName());
 		this.portIdentifier = port;
 		this.listener = listener;
 	}
 	
 	public void run() {
-		for(int baud : BAUD_RATES) {
-			SerialPort serialPort = null;
-			InputStream in = null;
-			OutputStream out = null;
-			
-			/* This detection workflow was taken from ComTest in SMSLib, and is licensed under Apache v2. */
+		// Name the worker thread after the port while detecting, so that log output can be traced
+		Thread worker = Thread.currentThread();
+		String workerName = worker.getName();
+		worker.setName("ATDeviceDetector: " + portIdentifier.getName());
+		setWorker(worker);
+		ScheduledFuture<?> watchdog = startWatchdog();
+		try {
+			detect();
+		} finally {
+			if(watchdog != null) watchdog.cancel(false);
+			setWorker(null);
+			worker.setName(workerName);
+		}
+	}
+	
+	private void detect() {
+		SerialPort serialPort = null;
+		SerialChannel channel = null;
+		ATDeviceConnection connection = null;
+		long detectStart = System.nanoTime();
+		
+		/* This detection workflow was taken from ComTest in SMSLib, and is licensed under Apache v2. */
+		try {
+			if(cancelReason != null) throw new InterruptedException();
+			log.debug("Opening serial port...");
+			long start = System.nanoTime();
 			try {
-				log.info("Opening serial port...");
 				serialPort = portIdentifier.open("ATDeviceDetector", 2000);
-				log.info("Port opened.  Setting flow control mode...");
-				serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN);
-				log.info("Flow control mode set.  Setting port params...");
-				serialPort.setSerialPortParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
-				log.info("Port params set.  Opening input stream...");
-				in = serialPort.getInputStream();
-				log.info("Input stram opened.  Opening output stream...");
-				out = serialPort.getOutputStream();
-				log.info("Output stream opened.  Enabling receive timeout...");
-				serialPort.enableReceiveTimeout(1000);
-				log.info("Receive timeout enabled.");
-				
-				log.trace("LOOPING.");
-				
-				// discard all data currently waiting on the input stream
-				Utils.readAll(in);
-				Utils.writeCommand(out, "AT");
-				Thread.sleep(1000);
-				String response = Utils.readAll(in);
-				if(!Utils.isResponseOk(response)) {
-					throw new ATDeviceDetectionException("Bad response: " + response);
-				}
-
-				serial = getSerial(in, out);
-
-				maxBaudRate = Math.max(maxBaudRate, baud);
+			} finally {
+				metrics.record(DetectionMetrics.OPEN, System.nanoTime() - start, serialPort == null);
+			}
+			start = System.nanoTime();
+			log.debug("Port opened.  Setting flow control mode...");
+			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN);
+			log.debug("Flow control mode set.  Opening streams...");
+			channel = openChannel(serialPort);
+			log.debug("Streams opened.  Enabling receive timeout...");
+			serialPort.enableReceiveTimeout(RECEIVE_POLL_INTERVAL);
+			response.setIdleTimeout(receiveTimeout);
+			adaptTimeouts();
+			log.debug("Receive timeout enabled.");
+			metrics.record(DetectionMetrics.CONFIGURE, System.nanoTime() - start, false);
+			fire(l -> l.handlePortOpened(this));
+			
+			if(cached != null && verifyCached(serialPort, channel)) {
+				log.info("Cached device confirmed at baud rate: " + maxBaudRate);
+				fire(l -> l.handleBaudRateConfirmed(this, maxBaudRate));
+				fire(l -> l.handleSerialDetected(this));
+				fire(l -> l.handleIdentityDetected(this));
+				fire(l -> l.handleSmsSupportDetected(this));
+			} else {
+				int baud = negotiateBaudRate(serialPort, channel);
+				// as for any other failure, a port which was never detected is not closed
+				if(baud == 0) throw new ATDeviceDetectionException(exceptionMessage);
+				fire(l -> l.handleBaudRateConfirmed(this, baud));
+				boolean batched = batchedIdentity && queryBatchedIdentity(channel);
+				if(!batched) serial = getSerial(channel);
+				maxBaudRate = baud;
+				fire(l -> l.handleSerialDetected(this));
 				
 				// detection is complete, so let's try and get the device manufacturer, model and phone number
-				manufacturer = getManufacturer(in, out);
-				model = getModel(in, out);
-				phoneNumber = getPhoneNumber(in, out);
-				lockType = getLockType(in, out);
-				setSmsSupport(in, out);
-				imsi = getImsi(in, out);
-			} catch(InterruptedException ex) {
+				// unless they are eager, attributes are left until they are asked for
+				Set<Attribute> deferred = EnumSet.complementOf(eagerAttributes);
+				if(batched) deferred.removeAll(IDENTITY_ATTRIBUTES);
+				synchronized(this) {
+					pendingAttributes.addAll(deferred);
+				}
+				Set<Attribute> identity = EnumSet.copyOf(eagerAttributes);
+				identity.retainAll(IDENTITY_ATTRIBUTES);
+				if(batched) identity.clear();
+				Set<Attribute> other = EnumSet.copyOf(eagerAttributes);
+				other.removeAll(IDENTITY_ATTRIBUTES);
+				queryAttributes(channel, identity);
+				fire(l -> l.handleIdentityDetected(this));
+				queryAttributes(channel, other);
+				fire(l -> l.handleSmsSupportDetected(this));
+			}
+			if(handoff && isDetected()) connection = new ATDeviceConnection(this, serialPort, channel);
+		} catch(InterruptedException | InterruptedIOException ex) {
+			if(cancelReason != null) {
+				log.info("Detection cancelled: " + cancelReason);
+				this.exceptionMessage = cancelReason;
+			} else {
 				log.info("Detection thread interrupted.", ex);
 				this.exceptionMessage = "Detection interrupted.";
-				break;
-			} catch(Throwable t) {
-				log.info("Problem connecting to device.", t);
-				this.exceptionMessage = t.getMessage();
-
-				// Set serial port to null here to avoid JVM death.  Unfortunately this can leave ports
-				// locked, but on balance this seems preferable.
-				serialPort = null;
-			} finally {
-				// Close any open streams
-				if(out != null) try { out.close(); } catch(Throwable t) { log.warn("Error closing output stream.", t); }
-				if(in != null) try { in.close(); } catch(Throwable t) { log.warn("Error closing input stream.", t); }
-				// N.B. apprently serialPort.close() can result in System.exit from JNI on some systems.  This
-				// appears to be when device is disconnected before detection can be completed.  However,
-				// without it we cannot connect to ports after detector has run on them.  Therefore we should
-				// only call it on ports which have successfully detected.
-				// Failure to call serialPort.close() will leave lock files (`/var/lock/LCK..ttyUSB0` etc.) on
-				// RXTX linux.
-				if(serialPort != null) try { serialPort.close(); } catch(Throwable t) { log.warn("Error closing serial port.", t); }
 			}
+		} catch(PortInUseException ex) {
+			log.info("Port in use; not detecting.");
+			this.portInUse = true;
+			this.exceptionMessage = "Port in use.";
+		} catch(Throwable t) {
+			log.info("Problem connecting to device.", t);
+			this.exceptionMessage = t.getMessage();
+
+			// Set serial port to null here to avoid JVM death.  Unfortunately this can leave ports
+			// locked, but on balance this seems preferable.
+			serialPort = null;
+		} finally {
+			// a connection being handed off is closed by whoever receives it
+			if(connection == null) close(serialPort, channel);
+			metrics.record(DetectionMetrics.TOTAL, System.nanoTime() - detectStart, !isDetected());
 		}
+		if(timeouts != null && isDetected()) timeouts.record(getPortName(), model, roundTrips);
 		finished = true;
-		log.info("Detection completed on port: " + this.portIdentifier.getName() +
+		if(log.isInfoEnabled()) log.info("Detection completed on port: " + this.portIdentifier.getName() +
 				"; manufacturer: " + manufacturer +
 				"; model: " + model +
 				"; phoneNumber: " + phoneNumber);
-		if(listener != null) listener.handleDetectionCompleted(this);
+		try {
+			if(!isDetected()) fire(l -> l.handleDetectionFailed(this, exceptionMessage));
+			if(connection != null) handOff(connection);
+			if(listener != null) listener.handleDetectionCompleted(this);
+		} finally {
+			completion.complete(this);
+		}
+	}
+	
+	/**
+	 * Stops detection as soon as possible.  If it has not started yet, it will finish without opening
+	 * the port.  Unless a device has already been detected, the reason is reported by
+	 * {@link #getExceptionMessage()}.  Does nothing if detection has finished.
+	 */
+	public void cancel(String reason) {
+		synchronized(workerLock) {
+			if(finished || cancelReason != null) return;
+			cancelReason = reason;
+			if(worker != null) worker.interrupt();
+		}
+	}
+	
+	/** @return <code>true</code> if {@link #cancel(String)} was called before detection finished */
+	public boolean isCancelled() {
+		return cancelReason != null;
+	}
+	
+	/** @return <code>true</code> if detection failed because the port was held open elsewhere, so says nothing about the device */
+	public boolean isPortInUse() {
+		return portInUse;
+	}
+	
+	/** @return a task which will cancel detection when the time limit expires, or <code>null</code> if there is no limit */
+	private ScheduledFuture<?> startWatchdog() {
+		if(timeLimit <= 0 || scheduler == null) return null;
+		try {
+			return scheduler.schedule(() -> cancel("Time limit of " + timeLimit + "ms exceeded."), timeLimit, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException ex) {
+			log.info("Scheduler has shut down; detection will not be time limited.");
+			return null;
+		}
+	}
+	
+	private void setWorker(Thread worker) {
+		synchronized(workerLock) {
+			this.worker = worker;
+			// don't leave the thread interrupted by a late cancellation
+			if(worker == null && cancelReason != null) Thread.interrupted();
+		}
+	}
+	
+	/**
+	 * Fetches any attributes which were deferred during detection, reopening the port at the baud
+	 * rate the device was detected at.  Does nothing if detection has not finished, no device was
+	 * detected or nothing is pending.  Blocks while the port is in use, so should not be called on
+	 * a thread which must stay responsive.  Attributes the device would not report are left unset,
+	 * and are not retried; if the port could not be used, they all remain pending.
+	 * @return <code>true</code> if no attributes remain pending
+	 */
+	public boolean fetchDeferred() {
+		synchronized(portLock) {
+			Set<Attribute> attributes;
+			synchronized(this) {
+				if(!finished || !isDetected() || pendingAttributes.isEmpty()) return pendingAttributes.isEmpty();
+				attributes = EnumSet.copyOf(pendingAttributes);
+			}
+			if(!fetch(attributes)) return false;
+			synchronized(this) {
+				pendingAttributes.removeAll(attributes);
+				return pendingAttributes.isEmpty();
+			}
+		}
+	}
+	
+	/**
+	 * Queries the supplied attributes on a reopened port.  Callers must hold {@link #portLock}.
+	 * @return <code>true</code> if the device was queried, or <code>false</code> if the port could not be used
+	 */
+	private boolean fetch(Set<Attribute> attributes) {
+		SerialPort serialPort = null;
+		SerialChannel channel = null;
+		try {
+			serialPort = portIdentifier.open("ATDeviceDetector", 2000);
+			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN);
+			channel = new SerialChannel(serialPort.getInputStream(), serialPort.getOutputStream());
+			serialPort.enableReceiveTimeout(RECEIVE_POLL_INTERVAL);
+			response.setIdleTimeout(receiveTimeout);
+			responseTruncated = false;
+			serialPort.setSerialPortParams(maxBaudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			channel.discardAvailable();
+			queryAttributes(channel, attributes);
+			return true;
+		} catch(Throwable t) {
+			log.info("Problem fetching deferred attributes " + attributes + ".", t);
+			// See detect() for why the port is not closed
+			serialPort = null;
+			return false;
+		} finally {
+			close(serialPort, channel);
+		}
+	}
+	
+	/**
+	 * Checks that the detected device still responds, reopening the port at the baud rate it was
+	 * detected at and sending <code>AT</code>, <code>AT+CSQ</code> and <code>AT+CPIN?</code>.  These
+	 * commands are not recorded in the {@link #getMetrics()}.  The port must be idle: if it is held
+	 * open elsewhere, e.g. after a handoff, the device cannot be checked and is reported as
+	 * {@link ModemHealth#isBusy() busy}.
+	 * @return the device's health, or <code>null</code> if detection has not finished or no device was detected
+	 */
+	public ModemHealth checkHealth() {
+		if(!finished || !isDetected()) return null;
+		synchronized(portLock) {
+			return checkHealthOnPort();
+		}
+	}
+	
+	/** Checks the device's health on a reopened port.  Callers must hold {@link #portLock}. */
+	private ModemHealth checkHealthOnPort() {
+		long timestamp = System.currentTimeMillis();
+		ATResponse health = new ATResponse();
+		health.setIdleTimeout(receiveTimeout);
+		
+		SerialPort serialPort = null;
+		SerialChannel channel = null;
+		try {
+			serialPort = portIdentifier.open("ATDeviceDetector", 2000);
+			serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_RTSCTS_IN);
+			channel = new SerialChannel(serialPort.getInputStream(), serialPort.getOutputStream());
+			serialPort.enableReceiveTimeout(RECEIVE_POLL_INTERVAL);
+			serialPort.setSerialPortParams(maxBaudRate, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			channel.discardAvailable();
+			channel.writeCommand("AT");
+			health.read(channel, commandTimeout);
+			if(!health.isOk()) return ModemHealth.dead(getPortName(), timestamp, "Bad response: " + health);
+			
+			int signalStrength = ModemHealth.SIGNAL_UNKNOWN;
+			int bitErrorRate = ModemHealth.SIGNAL_UNKNOWN;
+			Utils.executeAtCommand(channel, "CSQ", health, commandTimeout);
+			String csq = health.isOk() ? health.getPrefixedInformation("CSQ") : null;
+			if(csq != null) {
+				String[] values = csq.split(",");
+				try {
+					signalStrength = Integer.parseInt(values[0].trim());
+					if(values.length > 1) bitErrorRate = Integer.parseInt(values[1].trim());
+				} catch(NumberFormatException ex) {
+					log.info("Unexpected signal quality: " + csq);
+				}
+			}
+			if(health.isTruncated()) channel.discardAvailable();
+			Utils.executeAtCommand(channel, "CPIN?", health, commandTimeout);
+			String lockType = health.isOk() ? parseLockType(health) : "UNKNOWN (" + health.getText() + ")";
+			return new ModemHealth(getPortName(), timestamp, true, signalStrength, bitErrorRate, lockType, null);
+		} catch(PortInUseException ex) {
+			log.debug("Port in use; device health unknown.");
+			return ModemHealth.busy(getPortName(), timestamp, "Port in use.");
+		} catch(Throwable t) {
+			log.info("Problem checking device health.", t);
+			// unlike a failed detection, the port is closed: the device was detected on it (see
+			// close()), and a port left open would make every later check report it as in use
+			return ModemHealth.dead(getPortName(), timestamp, t.getMessage());
+		} finally {
+			close(serialPort, channel);
+		}
+	}
+	
+	/** Queries each of the supplied attributes in turn. */
+	private void queryAttributes(SerialChannel channel, Set<Attribute> attributes) throws IOException {
+		for(Attribute attribute : attributes) {
+			switch(attribute) {
+				case MANUFACTURER: manufacturer = getManufacturer(channel); break;
+				case MODEL: model = getModel(channel); break;
+				case IMSI: imsi = getImsi(channel); break;
+				case PHONE_NUMBER: phoneNumber = getPhoneNumber(channel); break;
+				case LOCK_TYPE: lockType = getLockType(channel); break;
+				case SMS_SUPPORT: setSmsSupport(channel); break;
+			}
+		}
+	}
+	
+	/** Opens the port's streams, recording their traffic if a {@link #transcriptFile} is set. */
+	private SerialChannel openChannel(SerialPort serialPort) throws IOException {
+		InputStream in = serialPort.getInputStream();
+		OutputStream out = serialPort.getOutputStream();
+		if(transcriptFile != null) {
+			try {
+				SerialTranscript.Recorder recorder = SerialTranscript.Recorder.create(transcriptFile,
+						"Port: " + getPortName() + "\nRecorded: " + new Date());
+				in = recorder.wrap(in);
+				out = recorder.wrap(out);
+			} catch(IOException ex) {
+				log.warn("Not recording transcript to " + transcriptFile, ex);
+			}
+		}
+		return new SerialChannel(in, out);
+	}
+	
+	/** Closes the streams and port, logging any problems. */
+	private void close(SerialPort serialPort, SerialChannel channel) {
+		// Close any open streams
+		if(channel != null) try { channel.close(); } catch(Throwable t) { log.warn("Error closing streams.", t); }
+		// N.B. apprently serialPort.close() can result in System.exit from JNI on some systems.  This
+		// appears to be when device is disconnected before detection can be completed.  However,
+		// without it we cannot connect to ports after detector has run on them.  Therefore we should
+		// only call it on ports which have successfully detected.
+		// Failure to call serialPort.close() will leave lock files (`/var/lock/LCK..ttyUSB0` etc.) on
+		// RXTX linux.
+		if(serialPort != null) try { serialPort.close(); } catch(Throwable t) { log.warn("Error closing serial port.", t); }
+	}
+	
+	/**
+	 * Passes the open port to the {@link #listener}.  If there is no listener, or it fails to take
+	 * the connection, the connection is closed.
+	 */
+	private void handOff(ATDeviceConnection connection) {
+		if(listener == null) {
+			connection.close();
+			return;
+		}
+		try {
+			listener.handleConnectionAvailable(connection);
+		} catch(RuntimeException ex) {
+			log.warn("Listener failed to take connection.", ex);
+			connection.close();
+		}
+	}
+	
+	/**
+	 * Passes a progress event to the {@link #listener}, if there is one.  Exceptions thrown by the
+	 * listener are logged rather than allowed to abort detection.
+	 */
+	private void fire(Consumer<ATDeviceDetectorListener> event) {
+		if(listener == null) return;
+		try {
+			event.accept(listener);
+		} catch(RuntimeException ex) {
+			log.warn("Listener failed to handle detection event.", ex);
+		}
+	}
+	
+	/**
+	 * Checks whether the device recorded in {@link #cached} is still attached, by sending a single
+	 * <code>AT+CGSN</code> at the cached baud rate.  If the serial number matches, the cached device
+	 * properties are copied into this detector.
+	 * @return <code>true</code> if the cached device was confirmed; <code>false</code> otherwise
+	 */
+	boolean verifyCached(SerialPort serialPort, SerialChannel channel) throws IOException {
+		try {
+			serialPort.setSerialPortParams(cached.getBaudRate(), SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+			channel.discardAvailable();
+			String serial = getSerial(channel);
+			if(!serial.equals(cached.getSerial())) {
+				log.info("Cached serial '" + cached.getSerial() + "' does not match device serial '" + serial + "'.");
+				return false;
+			}
+			adaptTimeouts();
+		} catch(UnsupportedCommOperationException ex) {
+			log.info("Cached baud rate not supported by port: " + cached.getBaudRate(), ex);
+			return false;
+		} catch(ATDeviceDetectionException ex) {
+			log.info("Cached device did not respond: " + ex.getMessage());
+			return false;
+		}
+		
+		serial = cached.getSerial();
+		manufacturer = cached.getManufacturer();
+		model = cached.getModel();
+		imsi = cached.getImsi();
+		phoneNumber = cached.getPhoneNumber();
+		lockType = cached.getLockType();
+		smsSendSupported = cached.isSmsSendSupported();
+		smsReceiveSupported = cached.isSmsReceiveSupported();
+		maxBaudRate = cached.getBaudRate();
+		return true;
+	}
+	
+	/**
+	 * Tries each of {@link #BAUD_RATES} in turn, fastest first, on the already-open port until the
+	 * device responds correctly to <code>AT</code>.  The port is left configured at the rate found.
+	 * If the device sends nothing at all within a learned timeout, it is waited for with the default
+	 * timeouts, so a device slower than the one last seen on the port is not missed.
+	 * @return the baud rate the device responded at, or <code>0</code> if it did not respond at any
+	 */
+	int negotiateBaudRate(SerialPort serialPort, SerialChannel channel) throws IOException, InterruptedException {
+		for(int baud : BAUD_RATES) {
+			if(Thread.interrupted()) throw new InterruptedException();
+			long start = System.nanoTime();
+			try {
+				if(log.isDebugEnabled()) log.debug("Setting port params for baud rate: " + baud);
+				serialPort.setSerialPortParams(baud, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+				log.debug("Port params set.");
+			} catch(UnsupportedCommOperationException ex) {
+				log.info("Baud rate not supported by port: " + baud, ex);
+				this.exceptionMessage = ex.getMessage();
+				metrics.record(DetectionMetrics.HANDSHAKE, System.nanoTime() - start, true);
+				continue;
+			}
+			
+			// discard all data currently waiting on the input stream
+			channel.discardAvailable();
+			long sent = System.nanoTime();
+			channel.writeCommand("AT");
+			response.read(channel, commandTimeout);
+			// line noise means the wrong baud rate, but silence may be a device slower than the timeout
+			if(response.getLineCount() == 0) resumeWithDefaultTimeouts(channel, "AT");
+			metrics.record(DetectionMetrics.HANDSHAKE, System.nanoTime() - start, !response.isOk());
+			if(response.isOk()) {
+				log.info("Device responded at baud rate: " + baud);
+				roundTrips.add(System.nanoTime() - sent);
+				adaptTimeouts();
+				return baud;
+			} else {
+				if(log.isDebugEnabled()) log.debug("Bad response at baud rate " + baud + ": " + response);
+				this.exceptionMessage = "Bad response: " + response;
+			}
+		}
+		return 0;
 	}
 
-	String getSerial(InputStream in, OutputStream out) throws IOException, ATDeviceDetectionException {
-		Utils.writeCommand(out, "AT+CGSN");
-		String response = Utils.readAll(in);
-		if(!Utils.isResponseOk(response)) {
+	String getSerial(SerialChannel channel) throws IOException, ATDeviceDetectionException {
+		execute(channel, "CGSN");
+		if(!response.isOk()) {
 			throw new ATDeviceDetectionException("Bad response to request for serial number: " + response);
 		} else {
-			String serial = Utils.trimResponse("AT+CGSN", response);
-			log.debug("Found serial (before stripping): " + serial);
+			String serial = response.getInformation("CGSN");
+			if(log.isDebugEnabled()) log.debug("Found serial: " + serial);
 			if(this.serial != null) {
 				// There was already a serial detected.  Check if it's the same as
 				// what we've just got.
@@ -141,36 +553,62 @@ public class ATDeviceDetector extends Thread {
 					log.info("New serial detected: '" + serial + "'.  Replacing previous: '" + this.serial + "'");
 				}
 			}
-			return serial.replaceAll(STRIP_REGEX, "").trim();
+			return serial;
 		}
 	}
 	
-	String getManufacturer(InputStream in, OutputStream out) throws IOException {
-		return getOptional(in, out, "CGMI");
+	/**
+	 * Fetches serial, manufacturer, model and IMSI in a single round-trip.  Devices which do not
+	 * support concatenated commands, or which fail any one of them (e.g. <code>AT+CIMI</code> with
+	 * the SIM locked), reject the whole line; the caller should then query each separately.
+	 * @return <code>true</code> if all values were fetched; <code>false</code> otherwise
+	 */
+	boolean queryBatchedIdentity(SerialChannel channel) throws IOException {
+		long start = System.nanoTime();
+		String[] values = Utils.executeBatchedAtCommand(channel, response, BATCHED_IDENTITY_COMMANDS);
+		metrics.record(BATCHED_IDENTITY_COMMAND_NAME, System.nanoTime() - start, values == null);
+		if(values == null) {
+			log.info("Batched identity query rejected.  Falling back to individual queries.");
+			return false;
+		}
+		serial = values[0];
+		manufacturer = values[1];
+		model = values[2];
+		imsi = values[3];
+		return true;
+	}
+	
+	String getManufacturer(SerialChannel channel) throws IOException {
+		return getOptional(channel, "CGMI");
 	}
 
-	String getModel(InputStream in, OutputStream out) throws IOException {
-		return getOptional(in, out, "CGMM");
+	String getModel(SerialChannel channel) throws IOException {
+		return getOptional(channel, "CGMM");
 	}
 
-	String getPhoneNumber(InputStream in, OutputStream out) throws IOException {
-		String response = getOptional(in, out, "CNUM");
-		if(response == null) {
+	String getPhoneNumber(SerialChannel channel) throws IOException {
+		String information = getOptional(channel, "CNUM");
+		if(information == null) {
 			return null;
 		} else {
-			Matcher m = Pattern.compile("\\+?\\d+").matcher(response);
-			if(m.find()) return m.group();
-			else return response;
+			String number = response.getNumber("CNUM");
+			if(number != null) return number;
+			else return information;
 		}
 	}
 	
-	String getLockType(InputStream in, OutputStream out) throws IOException {
-		String response = Utils.executeAtCommand(in, out, "CPIN?", true);
-		if(!response.startsWith(": ")) {
-			return "UNKNOWN (" + response.trim() + ")";
+	String getLockType(SerialChannel channel) throws IOException {
+		execute(channel, "CPIN?");
+		return parseLockType(response);
+	}
+	
+	/** @return the lock type from a response to <code>AT+CPIN?</code>, or <code>null</code> if the SIM is ready */
+	private static String parseLockType(ATResponse response) {
+		String type = response.getPrefixedInformation("CPIN?");
+		if(type == null) {
+			return "UNKNOWN (" + response.getText() + ")";
 		} else {
-			String type = response.replaceAll(STRIP_REGEX, "").trim()
-					.substring(": ".length()).toUpperCase();
+			type = type.toUpperCase();
 			if(type.equals("READY")) {
 				return null;
 			} else {
@@ -179,43 +617,100 @@ public class ATDeviceDetector extends Thread {
 		}
 	}
 
-	String getImsi(InputStream in, OutputStream out) throws IOException {
-		return getOptional(in, out, "CIMI");
+	String getImsi(SerialChannel channel) throws IOException {
+		return getOptional(channel, "CIMI");
 	}
 
-	void setSmsSupport(InputStream in, OutputStream out) throws IOException {
-		String response = Utils.executeAtCommand(in, out, "CSMS?", false);
+	void setSmsSupport(SerialChannel channel) throws IOException {
+		execute(channel, "CSMS?");
 		smsReceiveSupported = isSmsReceiveSupported(response);
 		smsSendSupported = isSmsSendSupported(response);
 	}
 	
 	/** @return value or <code>null</code> */
-	String getOptional(InputStream in, OutputStream out, String atCommand) throws IOException {
-		String response = Utils.executeAtCommand(in, out, atCommand, true);
+	String getOptional(SerialChannel channel, String atCommand) throws IOException {
+		execute(channel, atCommand);
 		if(response.contains("ERROR")) {
 			return null;
 		} else {
-			return response.replaceAll(STRIP_REGEX, "").trim();
+			return response.getInformation(atCommand);
 		}
 	}
 
+	/**
+	 * Issues an AT command with {@link Utils#executeAtCommand(SerialChannel, String, ATResponse, long)},
+	 * and records how long it took in {@link #metrics}.  If the response does not arrive within a
+	 * learned timeout, it is waited for with the default timeouts.
+	 */
+	private ATResponse execute(SerialChannel channel, String command) throws IOException {
+		// don't let the end of a response which timed out be read as the response to this command
+		if(responseTruncated) channel.discardAvailable();
+		long start = System.nanoTime();
+		try {
+			Utils.executeAtCommand(channel, command, response, commandTimeout);
+			resumeWithDefaultTimeouts(channel, "AT+" + command);
+			return response;
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			metrics.record("AT+" + command, elapsed, !response.isOk());
+			responseTruncated = response.isTruncated();
+			// a device still sending at the deadline counts too, so the learned timeout can grow
+			if(response.isOk() || response.isError() || responseTruncated) roundTrips.add(elapsed);
+		}
+	}
+	
+	/**
+	 * If the {@link #response} ended without a final result code under a learned timeout, goes
+	 * back to the default timeouts for the rest of detection and carries on reading it.
+	 */
+	private void resumeWithDefaultTimeouts(SerialChannel channel, String command) throws IOException {
+		if(response.isOk() || response.isError() || commandTimeout >= Utils.COMMAND_TIMEOUT) return;
+		log.info("No response to " + command + " within learned timeout of " + commandTimeout + "ms.  Waiting for the default.");
+		useDefaultTimeouts();
+		response.resume(channel, commandTimeout);
+	}
+	
+	/**
+	 * Shortens or lengthens the receive timeout and the command timeout to suit the device,
+	 * using {@link #timeouts} learned from previous detections and the round trips seen during this
+	 * one.  Does nothing until a timeout has been learned.
+	 */
+	private void adaptTimeouts() {
+		if(timeouts == null || defaultTimeouts) return;
+		long timeout = timeouts.getTimeout(getPortName(), roundTrips);
+		if(timeout == 0 || timeout == commandTimeout) return;
+		if(log.isDebugEnabled()) log.debug("Response timeout set to " + timeout + "ms.");
+		commandTimeout = timeout;
+		receiveTimeout = (int) timeout;
+		response.setIdleTimeout(receiveTimeout);
+	}
+
+	/** Goes back to the fixed timeouts for the rest of detection, after a learned timeout proved too short. */
+	private void useDefaultTimeouts() {
+		defaultTimeouts = true;
+		commandTimeout = Utils.COMMAND_TIMEOUT;
+		receiveTimeout = DEFAULT_RECEIVE_TIMEOUT;
+		response.setIdleTimeout(receiveTimeout);
+	}
+	
 	/** @return <code>true</code> if mobile-terminated SMS is supported; <code>false</code> otherwise */
 	boolean isSmsReceiveSupported(String atResponse) {
-		return getDigitAsBoolean(atResponse, 1);
+		return isSmsReceiveSupported(new ATResponse().parse(atResponse));
 	}
 
 	/** @return <code>true</code> if mobile-originated SMS is supported; <code>false</code> otherwise */
 	boolean isSmsSendSupported(String atResponse) {
-		return getDigitAsBoolean(atResponse, 2);
+		return isSmsSendSupported(new ATResponse().parse(atResponse));
 	}
-
-	private boolean getDigitAsBoolean(String values, int index) {
-		Matcher m = DIGIT_PATTERN.matcher(values);
-
-		for(int i=0; m.find(); ++i) {
-			if(i == index) return m.group().equals("1");
-		}
-		return false;
+	
+	/** @return <code>true</code> if mobile-terminated SMS is supported; <code>false</code> otherwise */
+	private boolean isSmsReceiveSupported(ATResponse csmsResponse) {
+		return csmsResponse.getDigit("CSMS?", 1) == 1;
+	}
+	
+	/** @return <code>true</code> if mobile-originated SMS is supported; <code>false</code> otherwise */
+	private boolean isSmsSendSupported(ATResponse csmsResponse) {
+		return csmsResponse.getDigit("CSMS?", 2) == 1;
 	}
 
 //> ACCESSORS
@@ -223,6 +718,105 @@ public class ATDeviceDetector extends Thread {
 		return finished;
 	}
 	
+	/**
+	 * Sets whether serial, manufacturer, model and IMSI are queried with a single concatenated
+	 * command line.  Devices which reject it are queried one command at a time.
+	 */
+	public void setBatchedIdentity(boolean batchedIdentity) {
+		this.batchedIdentity = batchedIdentity;
+	}
+	
+	/**
+	 * Sets which attributes are queried during detection.  Any others are left unset until
+	 * {@link #fetchDeferred()} is called; the getters never talk to the device.  By default all
+	 * attributes are eager.
+	 */
+	public void setEagerAttributes(Set<Attribute> eagerAttributes) {
+		this.eagerAttributes = EnumSet.noneOf(Attribute.class);
+		this.eagerAttributes.addAll(eagerAttributes);
+	}
+	
+	/** @return <code>true</code> if some attributes have been deferred and not fetched yet */
+	public synchronized boolean hasPendingAttributes() {
+		return !pendingAttributes.isEmpty();
+	}
+	
+	/**
+	 * Limits how long detection may run for, from when it starts.  When the limit expires detection is
+	 * cancelled, as by {@link #cancel(String)}.
+	 * @param timeLimit time in milliseconds, or <code>0</code> for no limit
+	 * @param scheduler used to cancel detection when the limit expires
+	 */
+	public void setTimeLimit(long timeLimit, ScheduledExecutorService scheduler) {
+		this.timeLimit = timeLimit;
+		this.scheduler = scheduler;
+	}
+	
+	/**
+	 * Sets whether the port is left open once a device has been detected, and handed to
+	 * {@link ATDeviceDetectorListener#handleConnectionAvailable(ATDeviceConnection)} instead of
+	 * being closed.  Deferred attributes cannot be fetched while the port is held open.
+	 */
+	public void setHandoff(boolean handoff) {
+		this.handoff = handoff;
+	}
+	
+	/**
+	 * Sets the timeouts learned from previous detections.  The timeouts used for this device are
+	 * adjusted as it responds, and what is learned is recorded when detection finishes.  If not set,
+	 * fixed timeouts are used.
+	 */
+	public void setTimeouts(ResponseTimeouts timeouts) {
+		this.timeouts = timeouts;
+	}
+	
+	/** @return the time, in milliseconds, currently allowed for the device to respond to a command */
+	public long getCommandTimeout() {
+		return commandTimeout;
+	}
+	
+	/**
+	 * Records the port's traffic during detection to a transcript, which can be replayed with
+	 * {@link SerialTranscript#newReplay(double)}.  Any previous contents of the file are replaced.
+	 * Traffic when fetching deferred attributes or checking health is not recorded; after a handoff,
+	 * recording continues until the connection is closed.
+	 * @param transcriptFile the file to record to, or <code>null</code> not to record
+	 */
+	public void setTranscriptFile(File transcriptFile) {
+		this.transcriptFile = transcriptFile;
+	}
+	
+	/** Sets the result of a previous detection on this port, to be confirmed before trying a full probe. */
+	public void setCached(DetectionCache.Entry cached) {
+		this.cached = cached;
+	}
+	
+	/** @return timings of each phase of detection and each command sent */
+	public DetectionMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Takes an immutable copy of what has been found so far.  Attributes which are still pending
+	 * are not fetched, and are left unset in the result.
+	 */
+	public DetectionResult getResult() {
+		return getResult(null);
+	}
+	
+	/** @param usbDevice the USB device the port belongs to, if known */
+	DetectionResult getResult(String usbDevice) {
+		boolean detected = isDetected();
+		return new DetectionResult(getPortName(), usbDevice, System.currentTimeMillis(), maxBaudRate, serial,
+				manufacturer, model, imsi, phoneNumber, lockType, smsSendSupported, smsReceiveSupported,
+				hasPendingAttributes(), isCancelled() && !detected, detected ? null : exceptionMessage);
+	}
+	
+	/** @return a future which is completed with this detector when detection has finished */
+	public CompletableFuture<ATDeviceDetector> getCompletion() {
+		return completion;
+	}
+	
 	public boolean isDetected() {
 		return this.maxBaudRate > 0;
 	}
@@ -266,7 +860,7 @@ public class ATDeviceDetector extends Thread {
 	}
 	
 	public boolean isUnlockRequired() {
-		return lockType != null;
+		return getLockType() != null;
 	}
 	
 	public String getLockType() {
@@ -1,5 +1,53 @@
 package net.frontlinesms.messaging;
 
+/**
+ * Receives events from an {@link ATDeviceDetector}.  The progress events are fired on the detection
+ * thread in the order they are declared under <code>PROGRESS EVENTS</code>, skipping any which do
+ * not apply, so a device can be used as soon as enough is known about it.  Although declared first,
+ * {@link #handleDetectionCompleted(ATDeviceDetector)} is always fired after them, once the port has
+ * been closed or handed off.  Implementations should return quickly, as detection waits for them.
+ */
 public interface ATDeviceDetectorListener {
 	void handleDetectionCompleted(ATDeviceDetector detector);
-}
\ No newline at end of file
+
+	/** Called when a port disappears while {@link AllModemsDetector} is watching for port changes. */
+	default void handlePortRemoved(ATDeviceDetector detector) {}
+
+//> PROGRESS EVENTS
+	/** Called when the serial port has been opened and configured. */
+	default void handlePortOpened(ATDeviceDetector detector) {}
+
+	/** Called when the device has responded to <code>AT</code>. */
+	default void handleBaudRateConfirmed(ATDeviceDetector detector, int baudRate) {}
+
+	/**
+	 * Called when the device's serial number is known.  {@link ATDeviceDetector#isDetected()} is
+	 * <code>true</code> from this point on.
+	 */
+	default void handleSerialDetected(ATDeviceDetector detector) {}
+
+	/**
+	 * Called when the device's manufacturer, model and IMSI have been queried.  Any of them may be
+	 * <code>null</code>, and those not set as eager by {@link ATDeviceDetector#setEagerAttributes(java.util.Set)}
+	 * are left unset until {@link ATDeviceDetector#fetchDeferred()} is called.
+	 */
+	default void handleIdentityDetected(ATDeviceDetector detector) {}
+
+	/** Called when the device's eager phone number, lock type and SMS capabilities have been queried. */
+	default void handleSmsSupportDetected(ATDeviceDetector detector) {}
+
+	/**
+	 * Called before {@link #handleDetectionCompleted(ATDeviceDetector)} if no device was detected.
+	 * @param reason description of the last problem encountered, or <code>null</code> if unknown
+	 */
+	default void handleDetectionFailed(ATDeviceDetector detector, String reason) {}
+
+	/**
+	 * Called after the progress events when {@link ATDeviceDetector#setHandoff(boolean)} is set and a
+	 * device was detected.  The implementation takes ownership of the open port and must close the
+	 * connection when it has finished with it.  By default the connection is closed straight away.
+	 */
+	default void handleConnectionAvailable(ATDeviceConnection connection) {
+		connection.close();
+	}
+}
@@ -0,0 +1,446 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The response to a single AT command, held as the raw bytes received from the device.  Lines are
+ * tokenized as the bytes arrive and classified as echo, information, unsolicited result code or
+ * final result code, so values can be picked out of the buffer without regular expressions or
+ * intermediate strings.  Instances are reusable: each call to {@link #read(SerialChannel, long)} or
+ * {@link #parse(byte[], int, int)} replaces the previous response.
+ * N.B. Bytes are treated as ASCII characters.
+ */
+class ATResponse {
+//> LINE TYPES
+	/** The command, echoed back by the device */
+	static final byte ECHO = 0;
+	/** Information sent in response to the command */
+	static final byte INFORMATION = 1;
+	/** Unsolicited result code, e.g. <code>^RSSI:18</code> or <code>+CREG: 1</code> */
+	static final byte UNSOLICITED = 2;
+	/** Final result code <code>OK</code> */
+	static final byte OK = 3;
+	/** Final result code <code>ERROR</code>, <code>+CME ERROR</code> or <code>+CMS ERROR</code> */
+	static final byte ERROR = 4;
+
+	/** Value of {@link #finalResult} before a final result code is received */
+	private static final byte NONE = -1;
+
+//> INSTANCE PROPERTIES
+	/** The command line the response is to, which the device may echo, or <code>null</code> if not known */
+	private String command;
+	/** Raw bytes of the response */
+	private byte[] buffer = new byte[256];
+	/** Number of bytes in {@link #buffer} */
+	private int length;
+	/** Start of the line currently being received */
+	private int pendingLineStart;
+	/** Offset of the first non-whitespace byte of each line */
+	private int[] lineStart = new int[8];
+	/** Offset after the last non-whitespace byte of each line */
+	private int[] lineEnd = new int[8];
+	/** Type of each line */
+	private byte[] lineType = new byte[8];
+	/** Number of non-empty lines tokenized */
+	private int lineCount;
+	/** Type of the final result code, or {@link #NONE} */
+	private byte finalResult = NONE;
+	/** <code>true</code> if reading stopped at the deadline while the device was still sending */
+	private boolean truncated;
+	/** Start of the unterminated line tokenized by {@link #finish()}, so that reading can be resumed */
+	private int finishedLineStart;
+	/** Number of lines tokenized before {@link #finish()} */
+	private int finishedLineCount;
+	/**
+	 * Time, in milliseconds, without receiving anything after which a response is treated as
+	 * finished, or <code>0</code> to finish as soon as the stream's own receive timeout expires.
+	 */
+	private long idleTimeout;
+
+//> READ METHODS
+	/**
+	 * Reads a response from the input stream one byte at a time, so that nothing after the
+	 * response is taken from the stream.  Prefer {@link #read(SerialChannel, long)} when reading
+	 * several responses from the same port.
+	 * @see #read(SerialChannel, long)
+	 */
+	ATResponse read(InputStream in, long timeout) throws IOException {
+		return read(new SerialChannel(in, null, 1), timeout);
+	}
+	
+	/**
+	 * Reads a response from the channel, stopping as soon as a final result code has been
+	 * received.  If no final result code arrives, reading stops when nothing has been received for
+	 * the idle timeout or when the supplied deadline passes, whichever comes first.  Bytes are taken
+	 * from the channel's buffer a bulk read at a time and copied into this response's own buffer,
+	 * which outlives the channel's as a response may span several reads; any received after the
+	 * final result code are left in the channel.  The first line is only treated as the echo if it
+	 * is the command last written to the channel.
+	 * @param timeout the maximum time, in milliseconds, to spend reading the response
+	 * @return this response
+	 * @throws InterruptedIOException if the thread is interrupted while waiting for the device
+	 * @see #setIdleTimeout(long)
+	 */
+	ATResponse read(SerialChannel channel, long timeout) throws IOException {
+		clear();
+		command = channel.getLastCommand();
+		return receive(channel, timeout);
+	}
+	
+	/**
+	 * Carries on reading a response which ended without a final result code, e.g. because the
+	 * timeout proved too short for the device.  What has already been received is kept, so the
+	 * result is as if the response had been read with the longer timeout in the first place.
+	 * Does nothing if a final result code has been received.
+	 * @param timeout the maximum time, in milliseconds, to spend reading the rest of the response
+	 * @return this response
+	 */
+	ATResponse resume(SerialChannel channel, long timeout) throws IOException {
+		if(finalResult != NONE) return this;
+		// the unterminated line may continue
+		pendingLineStart = finishedLineStart;
+		lineCount = finishedLineCount;
+		truncated = false;
+		return receive(channel, timeout);
+	}
+	
+	/** @see #read(SerialChannel, long) */
+	private ATResponse receive(SerialChannel channel, long timeout) throws IOException {
+		long deadline = System.currentTimeMillis() + timeout;
+		long lastReceived = System.currentTimeMillis();
+		while(true) {
+			int available = channel.fill();
+			long now = System.currentTimeMillis();
+			if(available == 0) {
+				// the stream's receive timeout expired; keep waiting unless the response is over
+				if(idleTimeout <= 0 || now - lastReceived >= idleTimeout || now > deadline) break;
+				if(Thread.interrupted()) throw new InterruptedIOException("Interrupted waiting for response.");
+				continue;
+			}
+			lastReceived = now;
+			byte[] bytes = channel.getBuffer();
+			int start = channel.getPosition();
+			int end = start + available;
+			int i = start;
+			boolean complete = false;
+			while(i < end && !complete) {
+				complete = accept(bytes[i++]);
+			}
+			channel.consume(i - start);
+			if(complete) break;
+			if(now > deadline) {
+				truncated = true;
+				break;
+			}
+		}
+		return finish();
+	}
+	
+	/**
+	 * Sets how long {@link #read(SerialChannel, long)} waits without receiving anything before it
+	 * treats the response as finished.  Giving the stream a receive timeout much shorter than this
+	 * lets reading notice that the thread has been interrupted within one receive timeout.
+	 * @param idleTimeout time in milliseconds, or <code>0</code> to stop as soon as the stream's own
+	 * receive timeout expires
+	 */
+	void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Tokenizes a response which has already been received, up to its final result code.
+	 * @return this response
+	 */
+	ATResponse parse(byte[] bytes, int offset, int count) {
+		return parse(null, bytes, offset, count);
+	}
+
+	/**
+	 * As {@link #parse(byte[], int, int)}, for a response to a known command.
+	 * @param command the command line sent, without its \r, which the device may have echoed
+	 */
+	ATResponse parse(String command, byte[] bytes, int offset, int count) {
+		clear();
+		this.command = command;
+		for(int i=offset; i<offset+count; ++i) {
+			if(accept(bytes[i])) break;
+		}
+		return finish();
+	}
+
+	/** @see #parse(byte[], int, int) */
+	ATResponse parse(String response) {
+		return parse(null, response);
+	}
+
+	/** @see #parse(String, byte[], int, int) */
+	ATResponse parse(String command, String response) {
+		byte[] bytes = response.getBytes(StandardCharsets.ISO_8859_1);
+		return parse(command, bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Copies a byte into the response's buffer, tokenizing the current line if the byte ends it.
+	 * @return <code>true</code> if a final result code has been received
+	 */
+	private boolean accept(byte b) {
+		if(length == buffer.length) {
+			byte[] bigger = new byte[buffer.length << 1];
+			System.arraycopy(buffer, 0, bigger, 0, length);
+			buffer = bigger;
+		}
+		buffer[length++] = b;
+		if(b == '\r' || b == '\n') {
+			endLine(pendingLineStart, length - 1);
+			pendingLineStart = length;
+		}
+		return finalResult != NONE;
+	}
+
+	/** Tokenizes any unterminated line left at the end of the response. */
+	private ATResponse finish() {
+		if(finalResult == NONE) {
+			finishedLineStart = pendingLineStart;
+			finishedLineCount = lineCount;
+			endLine(pendingLineStart, length);
+			pendingLineStart = length;
+		}
+		return this;
+	}
+
+	private void clear() {
+		length = 0;
+		pendingLineStart = 0;
+		lineCount = 0;
+		finalResult = NONE;
+		truncated = false;
+	}
+
+	private void endLine(int start, int end) {
+		while(start < end && isWhitespace(buffer[start])) ++start;
+		while(end > start && isWhitespace(buffer[end - 1])) --end;
+		if(start == end) return;
+
+		if(lineCount == lineType.length) {
+			int[] biggerStart = new int[lineCount << 1];
+			int[] biggerEnd = new int[lineCount << 1];
+			byte[] biggerType = new byte[lineCount << 1];
+			System.arraycopy(lineStart, 0, biggerStart, 0, lineCount);
+			System.arraycopy(lineEnd, 0, biggerEnd, 0, lineCount);
+			System.arraycopy(lineType, 0, biggerType, 0, lineCount);
+			lineStart = biggerStart;
+			lineEnd = biggerEnd;
+			lineType = biggerType;
+		}
+
+		byte type = classify(start, end);
+		lineStart[lineCount] = start;
+		lineEnd[lineCount] = end;
+		lineType[lineCount] = type;
+		++lineCount;
+		if(type == OK || type == ERROR) finalResult = type;
+	}
+
+	private byte classify(int start, int end) {
+		if(regionEquals(start, end, "OK")) return OK;
+		if(regionEquals(start, end, "ERROR")
+				|| regionStartsWith(start, end, "+CME ERROR")
+				|| regionStartsWith(start, end, "+CMS ERROR")) return ERROR;
+		// Only the first line can be the echo, and only of the command sent, so information which
+		// happens to start "AT" is kept even when echo is off
+		if(lineCount == 0 && command != null && regionEquals(start, end, command)) return ECHO;
+		if(buffer[start] == '^' && isUnsolicitedName(start + 1, end)) return UNSOLICITED;
+		if(regionStartsWith(start, end, "+CREG:") || regionStartsWith(start, end, "+CGREG:")) return UNSOLICITED;
+		return INFORMATION;
+	}
+
+	/** @return <code>true</code> if the region starts with upper-case letters followed by a colon */
+	private boolean isUnsolicitedName(int start, int end) {
+		int i = start;
+		while(i < end && buffer[i] >= 'A' && buffer[i] <= 'Z') ++i;
+		return i > start && i < end && buffer[i] == ':';
+	}
+
+//> ACCESSORS
+	/** @return <code>true</code> if the device responded with final result code <code>OK</code> */
+	boolean isOk() {
+		return finalResult == OK;
+	}
+
+	/** @return <code>true</code> if the device responded with a final error result code */
+	boolean isError() {
+		return finalResult == ERROR;
+	}
+
+	/**
+	 * @return <code>true</code> if {@link #read(SerialChannel, long)} gave up at its deadline while
+	 * the device was still sending, so the rest of the response may yet arrive
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+	
+	/** @return <code>true</code> if the supplied text appears anywhere in the raw response */
+	boolean contains(String text) {
+		return indexOf(text, 0, length) != -1;
+	}
+
+	int getLineCount() {
+		return lineCount;
+	}
+
+	byte getLineType(int line) {
+		return lineType[line];
+	}
+
+	/** @return the text of the requested line, excluding leading and trailing whitespace */
+	String getLine(int line) {
+		return substring(lineStart[line], lineEnd[line]);
+	}
+
+	/**
+	 * Gets the information sent in response to a command.  If lines are prefixed with the command
+	 * name, e.g. <code>+CGMI: huawei</code>, the prefix is removed.
+	 * @param command the command issued, without the leading "AT+"
+	 * @return the information lines separated by '\n', or an empty string if there were none
+	 */
+	String getInformation(String command) {
+		StringBuilder bob = null;
+		String first = null;
+		for(int i=0; i<lineCount; ++i) {
+			if(lineType[i] != INFORMATION) continue;
+			String value = substring(valueStart(i, command), lineEnd[i]);
+			if(first == null) {
+				first = value;
+			} else {
+				if(bob == null) bob = new StringBuilder(first);
+				bob.append('\n').append(value);
+			}
+		}
+		if(bob != null) return bob.toString();
+		return first == null ? "" : first;
+	}
+
+	/**
+	 * Gets the value of the first information line which is prefixed with the command name, e.g.
+	 * <code>READY</code> from <code>+CPIN: READY</code>.
+	 * @param command the command issued, without the leading "AT+"
+	 * @return the value, or <code>null</code> if no line had the prefix
+	 */
+	String getPrefixedInformation(String command) {
+		for(int i=0; i<lineCount; ++i) {
+			if(lineType[i] != INFORMATION) continue;
+			int start = valueStart(i, command);
+			if(start != lineStart[i]) return substring(start, lineEnd[i]);
+		}
+		return null;
+	}
+
+	/**
+	 * Gets a digit from the information sent in response to a command.
+	 * @param command the command issued, without the leading "AT+"
+	 * @param index index of the digit amongst all digits in the information, starting at zero
+	 * @return the value of the digit, or <code>-1</code> if there were not enough digits
+	 */
+	int getDigit(String command, int index) {
+		for(int i=0; i<lineCount; ++i) {
+			if(lineType[i] != INFORMATION) continue;
+			for(int j=valueStart(i, command); j<lineEnd[i]; ++j) {
+				if(isDigit(buffer[j]) && index-- == 0) return buffer[j] - '0';
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the first number, optionally preceded by '+', in the information sent in response to a command.
+	 * @param command the command issued, without the leading "AT+"
+	 * @return the number, or <code>null</code> if there was none
+	 */
+	String getNumber(String command) {
+		for(int i=0; i<lineCount; ++i) {
+			if(lineType[i] != INFORMATION) continue;
+			int end = lineEnd[i];
+			for(int j=valueStart(i, command); j<end; ++j) {
+				if(isDigit(buffer[j])) {
+					int start = j > lineStart[i] && buffer[j - 1] == '+' ? j - 1 : j;
+					while(j < end && isDigit(buffer[j])) ++j;
+					return substring(start, j);
+				}
+			}
+		}
+		return null;
+	}
+
+	/** @return all lines except the echo, separated by '\n' */
+	String getText() {
+		StringBuilder bob = new StringBuilder();
+		for(int i=0; i<lineCount; ++i) {
+			if(lineType[i] == ECHO) continue;
+			if(bob.length() > 0) bob.append('\n');
+			for(int j=lineStart[i]; j<lineEnd[i]; ++j) bob.append((char) (buffer[j] & 0xFF));
+		}
+		return bob.toString();
+	}
+
+	/** @return the raw response */
+	public String toString() {
+		return substring(0, length);
+	}
+
+//> HELPER METHODS
+	/**
+	 * @return the offset of the value in the line, after any <code>+COMMAND:</code> prefix and
+	 * following whitespace, or the start of the line if it has no such prefix
+	 */
+	private int valueStart(int line, String command) {
+		int start = lineStart[line];
+		int end = lineEnd[line];
+		if(start == end || buffer[start] != '+') return start;
+		int i = start + 1;
+		for(int j=0; j<command.length(); ++j, ++i) {
+			char c = command.charAt(j);
+			if(c == '?' || c == '=') break;
+			if(i == end || buffer[i] != c) return start;
+		}
+		if(i == end || buffer[i] != ':') return start;
+		++i;
+		while(i < end && isWhitespace(buffer[i])) ++i;
+		return i;
+	}
+
+	private int indexOf(String text, int start, int end) {
+		outer: for(int i=start; i<=end-text.length(); ++i) {
+			for(int j=0; j<text.length(); ++j) {
+				if(buffer[i + j] != text.charAt(j)) continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private boolean regionStartsWith(int start, int end, String prefix) {
+		if(end - start < prefix.length()) return false;
+		for(int i=0; i<prefix.length(); ++i) {
+			if(buffer[start + i] != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean regionEquals(int start, int end, String text) {
+		return end - start == text.length() && regionStartsWith(start, end, text);
+	}
+
+	private String substring(int start, int end) {
+		return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
@@ -1,64 +1,523 @@
 package net.frontlinesms.messaging;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.regex.Pattern;
+
+import javax.management.*;
 
 import serial.*;
 
 public class AllModemsDetector {
+	/** Time, in milliseconds, which cancelled detectors are given to stop before results are returned without them */
+	public static final long CANCELLATION_GRACE = 1000;
+	
 //> INSTANCE PROPERTIES
 	private Logger log = new Logger(getClass());
 	private Map<String, ATDeviceDetector> detectors;
-	private ATDeviceDetectorListener listener;
+	/** Pending results of the detectors, keyed by port name. */
+	private Map<String, Future<?>> detections;
+	/** Futures completed once each detector has finished and its results have been recorded, keyed by port name. */
+	private Map<String, CompletableFuture<ATDeviceDetector>> completions;
+	/** USB device each port belongs to, keyed by port name.  Ports which are not USB ports are absent. */
+	private Map<String, String> usbDevices;
+	private volatile ATDeviceDetectorListener listener;
+	/** Passes detector events on to {@link #listener}, after acting on them */
+	private final ATDeviceDetectorListener detectorListener = new DetectorListener();
+	/** Source of the {@link PortInfo} for each port */
+	private final Sysfs sysfs = new Sysfs(new File(Sysfs.DEFAULT_ROOT));
+	/** Runs timed work, such as enforcing deadlines */
+	private final ScheduledExecutorService scheduler = DetectionExecutors.newScheduler();
+	/** Maximum time, in milliseconds, detection may run for on each port, or <code>0</code> for no limit */
+	private volatile long portTimeLimit;
+	/** Decides which ports are probed, and in what order */
+	private volatile PortFilter portFilter = new PortFilter();
+	/** The executor which detectors are run on. */
+	private final ExecutorService executor;
+	/** Watches for ports appearing and disappearing, or <code>null</code> if not watching. */
+	private PortWatcher watcher;
+	/** Timing histograms aggregated from every detection */
+	private final DetectionStatistics statistics = new DetectionStatistics();
+	/** Results of previous detections, or <code>null</code> if caching is disabled. */
+	private volatile DetectionCache cache;
+	/** <code>true</code> if new detectors should query device identity with a single command line */
+	private volatile boolean batchedIdentity;
+	/** Attributes new detectors should query during detection */
+	private volatile Set<ATDeviceDetector.Attribute> eagerAttributes = EnumSet.allOf(ATDeviceDetector.Attribute.class);
+	/** <code>true</code> if deferred attributes should be fetched in the background once detection has finished */
+	private volatile boolean deferredFetch;
+	/** <code>true</code> if new detectors should hand the open port to the listener */
+	private volatile boolean handoff;
+	/** Names of ports handed to the listener which have not yet been closed.  These are not probed again. */
+	private final Set<String> handedOff = new HashSet<String>();
+	/** Response timeouts learned from every detection, remembered across refreshes */
+	private final ResponseTimeouts timeouts = new ResponseTimeouts();
+	/** <code>true</code> if new detectors should use {@link #timeouts} */
+	private volatile boolean adaptiveTimeouts = true;
+	/** The latest result of detection on each port */
+	private final DetectionRegistry registry = new DetectionRegistry();
+	/** Checks the health of detected devices */
+	private final ModemMonitor monitor;
+	/** <code>true</code> if devices should be passed to the {@link #monitor} as they are detected */
+	private volatile boolean monitoring;
+	/** Directory transcripts of each detection are recorded in, or <code>null</code> not to record */
+	private volatile File transcriptDirectory;
+	
+//> CONSTRUCTORS
+	/** Create a detector which runs detection on a {@link DetectionExecutors#newDefault()} pool. */
+	public AllModemsDetector() {
+		this(DetectionExecutors.newDefault());
+	}
+	
+	/**
+	 * Create a detector which runs detection on the supplied executor.
+	 * @param executor see {@link DetectionExecutors} for the standard choices
+	 */
+	public AllModemsDetector(ExecutorService executor) {
+		this.executor = executor;
+		this.monitor = new ModemMonitor(scheduler, executor);
+	}
 	
 //> ACCESSORS
 	public void setListener(ATDeviceDetectorListener listener) {
 		this.listener = listener;
 	}
+	
+	/**
+	 * Sets the level below which this library's log messages are discarded, for every detector.
+	 * @param level one of <code>TRACE</code>, <code>DEBUG</code>, <code>INFO</code>, <code>WARN</code>
+	 * or <code>OFF</code>, ignoring case
+	 * @throws IllegalArgumentException if the level is not recognised
+	 */
+	public static void setLogLevel(String level) {
+		Logger.setLevel(Logger.parseLevel(level));
+	}
+	
+	/** @see ATDeviceDetector#setBatchedIdentity(boolean) */
+	public void setBatchedIdentity(boolean batchedIdentity) {
+		this.batchedIdentity = batchedIdentity;
+	}
+	
+	/** @see ATDeviceDetector#setEagerAttributes(Set) */
+	public void setEagerAttributes(Set<ATDeviceDetector.Attribute> eagerAttributes) {
+		Set<ATDeviceDetector.Attribute> copy = EnumSet.noneOf(ATDeviceDetector.Attribute.class);
+		copy.addAll(eagerAttributes);
+		this.eagerAttributes = Collections.unmodifiableSet(copy);
+	}
+	
+	/**
+	 * Sets whether attributes which were not eager are fetched in the background once a device has
+	 * been detected.  The fetch is queued on the detection executor behind any pending detections.
+	 * If not set, they stay unset until {@link ATDeviceDetector#fetchDeferred()} is called.
+	 */
+	public void setDeferredFetch(boolean deferredFetch) {
+		this.deferredFetch = deferredFetch;
+	}
+	
+	/**
+	 * Ports handed to the listener are not probed again by {@link #refresh()}, or by detection which
+	 * calls it, until their {@link ATDeviceConnection} is closed.  Until then, the detection which
+	 * handed the port off remains the port's result.
+	 * @see ATDeviceDetector#setHandoff(boolean)
+	 */
+	public void setHandoff(boolean handoff) {
+		this.handoff = handoff;
+	}
+	
+	/**
+	 * Records each port's traffic during detection to a transcript in the supplied directory, named
+	 * after the port, e.g. <code>ttyUSB0.transcript</code>.  Each detection replaces the port's
+	 * previous transcript.
+	 * @param transcriptDirectory the directory, which must exist, or <code>null</code> not to record
+	 * @see ATDeviceDetector#setTranscriptFile(File)
+	 */
+	public void setTranscriptDirectory(File transcriptDirectory) {
+		this.transcriptDirectory = transcriptDirectory;
+	}
+	
+	/**
+	 * Sets whether detectors adapt their response timeouts to each device's latency, as learned from
+	 * previous detections of the same model.  Enabled by default.
+	 * @see ATDeviceDetector#setTimeouts(ResponseTimeouts)
+	 */
+	public void setAdaptiveTimeouts(boolean adaptiveTimeouts) {
+		this.adaptiveTimeouts = adaptiveTimeouts;
+	}
+	
+	/** @return the response timeouts learned so far */
+	public ResponseTimeouts getTimeouts() {
+		return timeouts;
+	}
+	
+	/**
+	 * Limits how long detection may run for on each port.  Ports which exceed the limit are
+	 * cancelled, and report the reason as their exception message.
+	 * @param timeLimit the limit, or <code>0</code> for no limit
+	 */
+	public void setPortTimeLimit(long timeLimit, TimeUnit unit) {
+		this.portTimeLimit = unit.toMillis(timeLimit);
+	}
+	
+	/**
+	 * Sets the filter which decides which ports are probed, and in what order.  By default, ports
+	 * known to have no hardware behind them are skipped, and likely modems are probed first.
+	 */
+	public void setPortFilter(PortFilter portFilter) {
+		this.portFilter = portFilter;
+	}
+	
+	/**
+	 * @return the registry the result of each detection is published to as it completes, and
+	 * republished once deferred attributes have been fetched
+	 */
+	public DetectionRegistry getRegistry() {
+		return registry;
+	}
+	
+	/**
+	 * @return the latest result for each device, as {@link #getDetectors()} but only including
+	 * ports where detection has finished.  This takes no locks, and is cheap enough to poll.
+	 */
+	public List<DetectionResult> getResults() {
+		return registry.getSnapshot().getDevices();
+	}
+	
+	/** @return the monitor which checks the health of detected devices; set its listener to receive changes */
+	public ModemMonitor getMonitor() {
+		return monitor;
+	}
+	
+	/**
+	 * Sets the cache of previous detection results.  Ports with a cached device are first checked at
+	 * the cached baud rate, and only fully probed if the device there has changed.  The cache is
+	 * updated and saved as each detection completes.
+	 */
+	public void setCache(DetectionCache cache) {
+		this.cache = cache;
+	}
 
 //> DETECTION METHODS
 	/** Trigger detection, and return the results when it is completed. */
 	public ATDeviceDetector[] detectBlocking() {
-		refresh();
-		waitUntilDetectionComplete();
+		try {
+			return detectAsync().get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException ex) {
+			log.warn("Detection failed.", ex);
+		} catch(CancellationException ex) {
+			log.info("Detection was cancelled.");
+		}
+		return getDetectors();
+	}
+	
+	/**
+	 * Trigger detection, and return the results when it is completed or when the timeout expires,
+	 * whichever comes first.  When the timeout expires, detection on ports which have not finished
+	 * is cancelled, and the results so far are returned once they have stopped.  If a port does not
+	 * stop within {@link #CANCELLATION_GRACE} milliseconds, its unfinished detector is included in the
+	 * results; check {@link ATDeviceDetector#isFinished()}.
+	 */
+	public ATDeviceDetector[] detectBlocking(long timeout, TimeUnit unit) {
+		try {
+			return detectAsync(timeout, unit).get(unit.toMillis(timeout) + CANCELLATION_GRACE, TimeUnit.MILLISECONDS);
+		} catch(TimeoutException ex) {
+			log.info("Detection did not stop when cancelled.");
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException ex) {
+			log.warn("Detection failed.", ex);
+		} catch(CancellationException ex) {
+			log.info("Detection was cancelled.");
+		}
 		return getDetectors();
 	}
 	
-	/** Trigger detection for fresh ports, and restart any finished detectors. */
+	/**
+	 * Trigger detection without waiting for it to complete.
+	 * @return a future which completes with one detector for each device, as {@link #getDetectors()},
+	 * once detection on the last port has finished
+	 */
+	public CompletableFuture<ATDeviceDetector[]> detectAsync() {
+		return detectAsync(new ArrayList<ATDeviceDetector>());
+	}
+	
+	/**
+	 * Trigger detection without waiting for it to complete, cancelling detection on any ports which
+	 * this call started probing and which have not finished when the timeout expires.  Detection
+	 * started by other calls, or on ports added since, carries on.
+	 * @return a future which completes as {@link #detectAsync()}
+	 */
+	public CompletableFuture<ATDeviceDetector[]> detectAsync(long timeout, TimeUnit unit) {
+		List<ATDeviceDetector> probed = new ArrayList<ATDeviceDetector>();
+		CompletableFuture<ATDeviceDetector[]> result = detectAsync(probed);
+		try {
+			ScheduledFuture<?> deadline = scheduler.schedule(() -> cancel(toArray(probed), "Detection deadline exceeded."), timeout, unit);
+			result.whenComplete((detectors, ex) -> deadline.cancel(false));
+		} catch(RejectedExecutionException ex) {
+			log.info("Scheduler has shut down; detection deadline will not be enforced.");
+		}
+		return result;
+	}
+	
+	/**
+	 * Trigger detection without waiting for it to complete.
+	 * @param probed filled with the detector of each port this call waits for
+	 * @return a future which completes as {@link #detectAsync()}
+	 */
+	private CompletableFuture<ATDeviceDetector[]> detectAsync(List<ATDeviceDetector> probed) {
+		List<CompletableFuture<ATDeviceDetector>> pending = new ArrayList<CompletableFuture<ATDeviceDetector>>();
+		synchronized(this) {
+			refresh();
+			for(ATDeviceDetector d : getAllDetectors()) {
+				pending.add(completions.get(d.getPortName()));
+				probed.add(d);
+			}
+		}
+		return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()])).thenApply(v -> {
+			// a port found in use keeps its previous detector, so take each port's from its completion
+			ATDeviceDetector[] detectors = new ATDeviceDetector[pending.size()];
+			for(int i=0; i<detectors.length; ++i) detectors[i] = pending.get(i).join();
+			return deduplicate(detectors);
+		});
+	}
+	
+	/**
+	 * Trigger detection, completing as soon as <code>n</code> devices matching the predicate have
+	 * been detected, e.g. any device which can send SMS.  Detection on the ports which this call
+	 * started probing, and which have not finished, is then cancelled.  If fewer devices match, the
+	 * future completes once every port has finished.
+	 * <p>
+	 * The predicate is only tested on detectors which detected a device, on the thread which ran the
+	 * detection.  Attributes which were deferred are still unset; a predicate which needs them may
+	 * call {@link ATDeviceDetector#fetchDeferred()}, which reopens the port there and then.  Ports of a
+	 * device which already matched are not counted again.
+	 * @return a future which completes with the matching detectors, at most <code>n</code>, in the
+	 * order their detection finished
+	 */
+	public CompletableFuture<ATDeviceDetector[]> detectFirst(int n, Predicate<? super ATDeviceDetector> predicate) {
+		if(n < 1) throw new IllegalArgumentException("Must wait for at least one device: " + n);
+		CompletableFuture<ATDeviceDetector[]> result = new CompletableFuture<ATDeviceDetector[]>();
+		List<ATDeviceDetector> matched = new ArrayList<ATDeviceDetector>(n);
+		ATDeviceDetector[] detectors;
+		List<CompletableFuture<ATDeviceDetector>> completed = new ArrayList<CompletableFuture<ATDeviceDetector>>();
+		Map<String, String> usbDevices;
+		synchronized(this) {
+			refresh();
+			detectors = getAllDetectors();
+			for(ATDeviceDetector d : detectors) completed.add(completions.get(d.getPortName()));
+			usbDevices = new HashMap<String, String>(this.usbDevices);
+		}
+		// attached outside the lock: a completion which is already done runs its callback here and now
+		CompletableFuture<?>[] pending = new CompletableFuture<?>[completed.size()];
+		for(int i=0; i<pending.length; ++i) {
+			pending[i] = completed.get(i).thenAccept(d -> {
+				if(!d.isDetected() || result.isDone() || !predicate.test(d)) return;
+				synchronized(matched) {
+					if(matched.size() == n || isSameDevice(d, matched, usbDevices)) return;
+					matched.add(d);
+					if(matched.size() < n) return;
+				}
+				result.complete(toArray(matched));
+				// only this call's probes; detection started since, e.g. by another caller, carries on
+				cancel(detectors, "Enough matching devices detected.");
+			});
+		}
+		CompletableFuture.allOf(pending).whenComplete((v, ex) -> {
+			if(ex != null) log.info("Detection did not complete on every port.", ex);
+			result.complete(toArray(matched));
+		});
+		return result;
+	}
+	
+	/**
+	 * Cancels detection on every port which has not finished, whoever started it: this includes
+	 * detection for other callers of {@link #detectAsync()} and {@link #detectFirst(int, Predicate)},
+	 * and on ports added by the {@link PortWatcher}.  Cancelled detectors stop promptly, and report the
+	 * reason as their exception message.
+	 * @see ATDeviceDetector#cancel(String)
+	 */
+	public void cancelDetection(String reason) {
+		cancel(getAllDetectors(), reason);
+	}
+	
+	/** @return the future completing when detection on the named port finishes, or <code>null</code> if the port is not being detected */
+	public synchronized CompletableFuture<ATDeviceDetector> getCompletion(String portName) {
+		return completions == null ? null : completions.get(portName);
+	}
+	
+	/** Trigger detection for fresh ports, and restart any finished detectors except those whose port was handed off and is still open. */
 	public synchronized void refresh() {
 		log.trace("Refreshing detectors...");
-		if(detectors == null) {
-			detectors = new HashMap<String, ATDeviceDetector>();
-		}
-		Enumeration<CommPortIdentifier> ports = CommPortIdentifier.getPortIdentifiers();
+		initMaps();
+		PortFilter portFilter = this.portFilter;
+		Map<CommPortIdentifier, PortInfo> toDetect = new HashMap<CommPortIdentifier, PortInfo>();
+		Enumeration<CommPortIdentifier> ports = getPortIdentifiers();
 		while(ports.hasMoreElements()) {
 			CommPortIdentifier port = ports.nextElement();
 			if(port.getPortType() == CommPortIdentifier.PORT_SERIAL) {
 				ATDeviceDetector d = detectors.get(port.getName());
+				PortInfo info = getPortInfo(port.getName());
 				if(d != null && !d.isFinished()) {
 					log.info("Already detecting on port: " + port.getName());
+				} else if(handedOff.contains(port.getName())) {
+					log.info("Port is held by its connection: " + port.getName());
+				} else if(!portFilter.accept(info)) {
+					log.info("Skipping filtered port: " + info);
 				} else {
-					log.info("Beginning detection for serial port: " + port.getName());
-					d = new ATDeviceDetector(port, listener);
-					detectors.put(port.getName(), d);
-					d.start();
+					toDetect.put(port, info);
 				}
 			} else {
 				log.info("Ignoring non-serial port: " + port.getName());
 			}
 		}
+		for(CommPortIdentifier port : prioritise(toDetect, portFilter)) {
+			startDetection(port, toDetect.get(port));
+		}
 		log.trace("All detectors refreshed.");
 	}
 	
+	/**
+	 * Starts incremental detection.  Ports are probed once now, and afterwards only when they appear
+	 * in <code>/dev</code>.  Detectors for ports which disappear are dropped, and the listener is told
+	 * through {@link ATDeviceDetectorListener#handlePortRemoved(ATDeviceDetector)}.  Modems which are
+	 * already detected are not probed again.
+	 */
+	public synchronized void startWatching() throws IOException {
+		startWatching(PortWatcher.DEFAULT_DEVICE_DIRECTORY, PortWatcher.DEFAULT_PORT_NAME_PATTERN);
+	}
+	
+	/**
+	 * Starts incremental detection, watching the supplied directory for device nodes.
+	 * @param portNamePattern nodes whose names match this pattern are treated as serial ports
+	 */
+	public synchronized void startWatching(String deviceDirectory, Pattern portNamePattern) throws IOException {
+		if(watcher != null) return;
+		if(detectors == null) refresh();
+		watcher = new PortWatcher(deviceDirectory, portNamePattern, this);
+		watcher.start();
+	}
+	
+	/** Stops incremental detection started by {@link #startWatching()}.  No ports are added or removed by the watcher once this returns. */
+	public void stopWatching() {
+		PortWatcher watcher;
+		synchronized(this) {
+			watcher = this.watcher;
+			this.watcher = null;
+		}
+		// outside the lock, which the watcher needs to report the change it may be part-way through
+		if(watcher != null) watcher.stop();
+	}
+	
+	/**
+	 * Starts checking the health of each detected device, and of devices as they are detected.  The
+	 * checks are timed by a single scheduler thread and run on the detection executor.  A port is
+	 * not checked while it is being detected again.  Devices whose port was handed off are not
+	 * monitored.
+	 * @param interval time between checks of each device
+	 * @see ModemMonitor
+	 */
+	public void startMonitoring(long interval, TimeUnit unit) {
+		monitor.setInterval(interval, unit);
+		monitoring = true;
+		for(ATDeviceDetector d : getDetectors()) {
+			if(d.isFinished()) monitorDetection(d);
+		}
+	}
+	
+	/** Stops health checks started by {@link #startMonitoring(long, TimeUnit)}. */
+	public void stopMonitoring() {
+		monitoring = false;
+		monitor.stop();
+	}
+	
+	/** Starts detection on a newly-appeared port, unless it is already known. */
+	synchronized void portAdded(String portName) {
+		initMaps();
+		if(detectors.containsKey(portName) || handedOff.contains(portName)) return;
+		PortInfo info = getPortInfo(portName);
+		if(!portFilter.accept(info)) {
+			log.info("Skipping filtered port: " + info);
+			return;
+		}
+		try {
+			startDetection(getPortIdentifier(portName), info);
+		} catch(NoSuchPortException ex) {
+			log.info("New device is not a known serial port: " + portName, ex);
+		}
+	}
+	
+	/** Cancels detection on, and forgets, a port which has disappeared. */
+	void portRemoved(String portName) {
+		ATDeviceDetector d;
+		synchronized(this) {
+			if(detectors == null) return;
+			d = detectors.remove(portName);
+			Future<?> f = detections.remove(portName);
+			if(f != null) f.cancel(true);
+			completions.remove(portName);
+			usbDevices.remove(portName);
+		}
+		monitor.unmonitor(portName);
+		registry.remove(portName);
+		if(d != null) {
+			d.getCompletion().cancel(false);
+			if(listener != null) listener.handlePortRemoved(d);
+		}
+	}
+	
 	public synchronized void reset() {
-		if(detectors!=null) for(ATDeviceDetector d : getDetectors()) {
-			d.interrupt();
+		if(detectors!=null) for(ATDeviceDetector d : detectors.values()) {
+			d.cancel("Detection reset.");
+		}
+		if(detections!=null) for(Future<?> f : detections.values()) {
+			f.cancel(true);
+		}
+		if(detectors!=null) for(ATDeviceDetector d : detectors.values()) {
+			d.getCompletion().cancel(false);
 		}
 		detectors = null;
+		detections = null;
+		completions = null;
+		usbDevices = null;
+		monitor.stop();
 	}
 
 //> ACCESSORS
-	/** Get the detectors. */
-	public synchronized ATDeviceDetector[] getDetectors() {
+	/** @return timing histograms aggregated from every detection run by this detector */
+	public DetectionStatistics getStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * Registers {@link #getStatistics()} with the platform MBean server, under the object name
+	 * <code>net.frontlinesms.messaging:type=DetectionStatistics,name=&lt;name&gt;</code>.
+	 */
+	public void registerMBean(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, getObjectName(name));
+	}
+	
+	/** Unregisters the MBean registered by {@link #registerMBean(String)}. */
+	public void unregisterMBean(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(name));
+	}
+	
+	/**
+	 * Get the detectors, one for each device.  Where a device has several ports, e.g. the interfaces
+	 * of a multi-port USB modem, only the first port it was detected on is included.  Ports are
+	 * recognised as belonging to the same device by their USB device or by the serial number the
+	 * device reports.
+	 */
+	public ATDeviceDetector[] getDetectors() {
+		return deduplicate(getAllDetectors());
+	}
+	
+	/** @return the detectors for every port, including the extra ports of multi-port devices */
+	public synchronized ATDeviceDetector[] getAllDetectors() {
 		if(detectors == null) {
 			return new ATDeviceDetector[0];
 		} else {
@@ -66,18 +525,312 @@ public class AllModemsDetector {
 		}
 	}
 	
-//> STATIC HELPER METHODS	
-	/** Blocks until all detectors have completed execution. */
-	private void waitUntilDetectionComplete() {
-		ATDeviceDetector[] detectors = getDetectors();
-		boolean completed = true;
-		do {
-			for (ATDeviceDetector portDetector : detectors) {
-				if(!portDetector.isFinished()) {
-					completed = false;
-				}
+	/** Cancels any running detection and stops the executor.  This detector cannot be used afterwards. */
+	public void shutdown() {
+		stopWatching();
+		synchronized(this) {
+			stopMonitoring();
+			reset();
+			executor.shutdownNow();
+			scheduler.shutdownNow();
+		}
+	}
+	
+//> INSTANCE HELPER METHODS
+	private static ObjectName getObjectName(String name) throws MalformedObjectNameException {
+		return new ObjectName("net.frontlinesms.messaging:type=DetectionStatistics,name=" + ObjectName.quote(name));
+	}
+	
+	/** @return all ports known to the serial library.  Overridden in tests to supply virtual ports. */
+	Enumeration<CommPortIdentifier> getPortIdentifiers() {
+		return CommPortIdentifier.getPortIdentifiers();
+	}
+	
+	/** @return the named port.  Overridden in tests to supply virtual ports. */
+	CommPortIdentifier getPortIdentifier(String portName) throws NoSuchPortException {
+		return CommPortIdentifier.getPortIdentifier(portName);
+	}
+	
+	/** @return what the operating system knows about the port.  Overridden in tests. */
+	PortInfo getPortInfo(String portName) {
+		return sysfs.getPortInfo(portName);
+	}
+	
+	private void initMaps() {
+		if(detectors == null) {
+			detectors = new HashMap<String, ATDeviceDetector>();
+			detections = new HashMap<String, Future<?>>();
+			completions = new HashMap<String, CompletableFuture<ATDeviceDetector>>();
+			usbDevices = new HashMap<String, String>();
+		}
+	}
+	
+	/**
+	 * Orders ports so that likely modems are probed first, as decided by the {@link PortFilter}.
+	 * Amongst ports of the same priority, one port of each USB device is probed before any device's
+	 * second port, and so on.  Once a device answers on one port its other ports are cancelled, so
+	 * putting them to the back of the queue saves probing them at all.
+	 */
+	private List<CommPortIdentifier> prioritise(Map<CommPortIdentifier, PortInfo> ports, PortFilter portFilter) {
+		List<CommPortIdentifier> ordered = new ArrayList<CommPortIdentifier>(ports.keySet());
+		ordered.sort((a, b) -> a.getName().compareTo(b.getName()));
+		Map<String, Integer> portsSeen = new HashMap<String, Integer>();
+		Map<CommPortIdentifier, Integer> rank = new HashMap<CommPortIdentifier, Integer>();
+		Map<CommPortIdentifier, Integer> priority = new HashMap<CommPortIdentifier, Integer>();
+		for(CommPortIdentifier port : ordered) {
+			PortInfo info = ports.get(port);
+			String device = info.getUsbDevice() != null ? info.getUsbDevice() : port.getName();
+			Integer seen = portsSeen.get(device);
+			rank.put(port, seen == null ? 0 : seen);
+			portsSeen.put(device, seen == null ? 1 : seen + 1);
+			priority.put(port, portFilter.getPriority(info));
+		}
+		// the sort is stable, so ports of the same priority and rank stay in name order
+		ordered.sort((a, b) -> {
+			int byPriority = Integer.compare(priority.get(a), priority.get(b));
+			return byPriority != 0 ? byPriority : Integer.compare(rank.get(a), rank.get(b));
+		});
+		return ordered;
+	}
+	
+	/** @return one detector for each device, see {@link #getDetectors()} */
+	private ATDeviceDetector[] deduplicate(ATDeviceDetector[] all) {
+		ATDeviceDetector[] sorted = all.clone();
+		Arrays.sort(sorted, (a, b) -> a.getPortName().compareTo(b.getPortName()));
+		Map<String, String> usbDevices;
+		synchronized(this) {
+			usbDevices = this.usbDevices == null ? Collections.<String, String>emptyMap() : new HashMap<String, String>(this.usbDevices);
+		}
+		List<ATDeviceDetector> unique = deduplicate(Arrays.asList(sorted), d -> {
+			String device = usbDevices.get(d.getPortName());
+			return device != null ? device : "port:" + d.getPortName();
+		}, ATDeviceDetector::isDetected, ATDeviceDetector::getSerial);
+		return unique.toArray(new ATDeviceDetector[unique.size()]);
+	}
+	
+	/**
+	 * Chooses one of each device's ports, see {@link #getDetectors()}.
+	 * @param ports the ports, sorted by name
+	 * @param device the USB device each port belongs to, or a key unique to the port if it is not a USB port
+	 * @param detected whether a device was detected on each port
+	 * @param serial the serial number of the device detected on each port
+	 * @return the chosen ports, in the order supplied
+	 */
+	static <T> List<T> deduplicate(Collection<T> ports, Function<T, String> device, Predicate<T> detected, Function<T, String> serial) {
+		// choose one port for each USB device, preferring ports the device was detected on
+		Map<String, T> byDevice = new LinkedHashMap<String, T>();
+		for(T port : ports) {
+			String key = device.apply(port);
+			T chosen = byDevice.get(key);
+			if(chosen == null || !detected.test(chosen) && detected.test(port)) byDevice.put(key, port);
+		}
+		
+		// devices without a known USB device may still be the same device on several ports
+		List<T> unique = new ArrayList<T>();
+		Set<String> serials = new HashSet<String>();
+		for(T port : byDevice.values()) {
+			if(!detected.test(port) || serials.add(serial.apply(port))) unique.add(port);
+		}
+		return unique;
+	}
+	
+	/** @return the name of the transcript file for a port, e.g. <code>ttyUSB0.transcript</code> for <code>/dev/ttyUSB0</code> */
+	static String transcriptName(String portName) {
+		String name = portName.substring(portName.lastIndexOf('/') + 1);
+		return name.replaceAll("[^A-Za-z0-9._-]", "_") + ".transcript";
+	}
+	
+	/**
+	 * @param usbDevices the USB device of each port, as {@link #usbDevices}
+	 * @return <code>true</code> if the detector's port belongs to the same device as one of the others
+	 */
+	private static boolean isSameDevice(ATDeviceDetector d, List<ATDeviceDetector> others, Map<String, String> usbDevices) {
+		String device = usbDevices.get(d.getPortName());
+		for(ATDeviceDetector other : others) {
+			if(device != null && device.equals(usbDevices.get(other.getPortName()))) return true;
+			if(d.getSerial() != null && d.getSerial().equals(other.getSerial())) return true;
+		}
+		return false;
+	}
+	
+	/** Cancels detection on each of the supplied detectors which has not finished. */
+	private static void cancel(ATDeviceDetector[] detectors, String reason) {
+		for(ATDeviceDetector d : detectors) {
+			if(!d.isFinished()) d.cancel(reason);
+		}
+	}
+	
+	private static ATDeviceDetector[] toArray(List<ATDeviceDetector> detectors) {
+		synchronized(detectors) {
+			return detectors.toArray(new ATDeviceDetector[detectors.size()]);
+		}
+	}
+	
+	/** Cancels detection on the other ports of the device just detected on the supplied port. */
+	private void cancelSiblings(ATDeviceDetector detected) {
+		List<ATDeviceDetector> siblings = new ArrayList<ATDeviceDetector>();
+		synchronized(this) {
+			if(usbDevices == null) return;
+			String device = usbDevices.get(detected.getPortName());
+			if(device == null) return;
+			for(Map.Entry<String, String> e : usbDevices.entrySet()) {
+				ATDeviceDetector d = detectors.get(e.getKey());
+				if(d != null && d != detected && device.equals(e.getValue())) siblings.add(d);
+			}
+		}
+		for(ATDeviceDetector d : siblings) {
+			if(!d.isDetected()) d.cancel("Device already detected on port " + detected.getPortName() + ".");
+		}
+	}
+	
+	/** Creates a detector for the supplied port, and submits it to the executor. */
+	private void startDetection(CommPortIdentifier port, PortInfo info) {
+		log.info("Beginning detection for serial port: " + port.getName());
+		// the port cannot be checked while it is being probed
+		monitor.unmonitor(port.getName());
+		ATDeviceDetector previous = detectors.get(port.getName());
+		ATDeviceDetector d = new ATDeviceDetector(port, detectorListener);
+		d.setBatchedIdentity(batchedIdentity);
+		d.setEagerAttributes(eagerAttributes);
+		if(adaptiveTimeouts) d.setTimeouts(timeouts);
+		d.setTimeLimit(portTimeLimit, scheduler);
+		d.setHandoff(handoff);
+		if(cache != null) d.setCached(cache.get(port.getName()));
+		File transcriptDirectory = this.transcriptDirectory;
+		if(transcriptDirectory != null) d.setTranscriptFile(new File(transcriptDirectory, transcriptName(port.getName())));
+		detectors.put(port.getName(), d);
+		String usbDevice = info.getUsbDevice();
+		if(usbDevice != null) usbDevices.put(port.getName(), usbDevice);
+		else usbDevices.remove(port.getName());
+		completions.put(port.getName(), d.getCompletion().thenApply(done -> recordDetection(done, previous)));
+		detections.put(port.getName(), executor.submit(d));
+	}
+	
+	/**
+	 * Records a completed detection in the statistics and the cache, and saves the cache.  Detections
+	 * with deferred attributes are cached once the attributes have been fetched.  If the port was in
+	 * use by another program, nothing was learned about the device, so a previous successful
+	 * detection on the port is kept in place of the new one.
+	 * @param previous the detector the port had before, or <code>null</code>
+	 * @return the detector which is now the port's
+	 */
+	private ATDeviceDetector recordDetection(ATDeviceDetector d, ATDeviceDetector previous) {
+		if(d.isPortInUse() && previous != null && previous.isDetected() && restore(d, previous)) {
+			log.info("Port in use; keeping previous detection on " + d.getPortName());
+			if(monitoring) monitorDetection(previous);
+			return previous;
+		}
+		statistics.record(d);
+		publish(d);
+		if(monitoring) monitorDetection(d);
+		if(!d.hasPendingAttributes()) {
+			cacheDetection(d);
+		} else if(deferredFetch) {
+			try {
+				executor.submit(() -> {
+					boolean fetched = d.fetchDeferred();
+					publish(d);
+					if(fetched) cacheDetection(d);
+				});
+			} catch(RejectedExecutionException ex) {
+				log.info("Not fetching deferred attributes for port " + d.getPortName() + "; executor has shut down.");
+			}
+		}
+		return d;
+	}
+	
+	/**
+	 * Passes a device to the {@link #monitor}, unless it was not detected, its port was handed off, or
+	 * it is another port of a device which is already detected.
+	 */
+	private void monitorDetection(ATDeviceDetector d) {
+		if(!d.isDetected() || handoff) return;
+		if(Arrays.asList(getDetectors()).contains(d)) monitor.monitor(d);
+	}
+	
+	/** Puts the previous detector back in place of its replacement, unless the port has since been forgotten or probed again. */
+	private synchronized boolean restore(ATDeviceDetector replacement, ATDeviceDetector previous) {
+		if(detectors == null || detectors.get(replacement.getPortName()) != replacement) return false;
+		detectors.put(previous.getPortName(), previous);
+		return true;
+	}
+	
+	/** Publishes the detector's current result to the {@link #registry}, unless its port has since been forgotten. */
+	private void publish(ATDeviceDetector d) {
+		String usbDevice;
+		synchronized(this) {
+			if(detectors == null || detectors.get(d.getPortName()) != d) return;
+			usbDevice = usbDevices.get(d.getPortName());
+		}
+		registry.publish(d.getResult(usbDevice));
+	}
+	
+	/** Records a detection in the cache, and saves the cache.  Detections which were cancelled before finding a device leave the cache as it was. */
+	private void cacheDetection(ATDeviceDetector d) {
+		DetectionCache cache = this.cache;
+		// a cancelled probe, e.g. one which was slow or no longer needed, says nothing about the device
+		if(cache != null && (d.isDetected() || !d.isCancelled())) {
+			cache.update(d);
+			try {
+				cache.save();
+			} catch(IOException ex) {
+				log.warn("Failed to save detection cache.", ex);
+			}
+		}
+	}
+	
+//> INNER CLASSES
+	/** Acts on events from the detectors, and passes them on to {@link AllModemsDetector#listener}. */
+	private class DetectorListener implements ATDeviceDetectorListener {
+		public void handlePortOpened(ATDeviceDetector detector) {
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handlePortOpened(detector);
+		}
+		
+		public void handleBaudRateConfirmed(ATDeviceDetector detector, int baudRate) {
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleBaudRateConfirmed(detector, baudRate);
+		}
+		
+		public void handleSerialDetected(ATDeviceDetector detector) {
+			cancelSiblings(detector);
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleSerialDetected(detector);
+		}
+		
+		public void handleIdentityDetected(ATDeviceDetector detector) {
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleIdentityDetected(detector);
+		}
+		
+		public void handleSmsSupportDetected(ATDeviceDetector detector) {
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleSmsSupportDetected(detector);
+		}
+		
+		public void handleDetectionFailed(ATDeviceDetector detector, String reason) {
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleDetectionFailed(detector, reason);
+		}
+		
+		public void handleConnectionAvailable(ATDeviceConnection connection) {
+			String portName = connection.getPortName();
+			synchronized(AllModemsDetector.this) {
+				handedOff.add(portName);
 			}
-			Utils.sleep(500);
-		} while(!completed);
+			connection.setCloseAction(() -> {
+				synchronized(AllModemsDetector.this) {
+					handedOff.remove(portName);
+				}
+			});
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleConnectionAvailable(connection);
+			else connection.close();
+		}
+		
+		public void handleDetectionCompleted(ATDeviceDetector detector) {
+			ATDeviceDetectorListener l = listener;
+			if(l != null) l.handleDetectionCompleted(detector);
+		}
 	}
 }
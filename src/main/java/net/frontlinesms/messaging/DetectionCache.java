@@ -0,0 +1,164 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * On-disk record of the devices found by previous detection runs, keyed by port name.  Each entry
+ * holds the device's serial number (IMEI), so a detector can confirm that the same device is still
+ * attached with a single <code>AT+CGSN</code> at the cached baud rate rather than a full probe.
+ */
+public class DetectionCache {
+	/** Logger */
+	private final Logger log = new Logger(getClass());
+	/** File the cache is persisted to */
+	private final File file;
+	/** Cached entries, keyed by port name */
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	
+	public DetectionCache(File file) {
+		this.file = file;
+	}
+	
+//> ACCESSORS
+	/** @return the cached entry for the named port, or <code>null</code> if there is none */
+	public synchronized Entry get(String portName) {
+		return entries.get(portName);
+	}
+	
+	/** Records the outcome of a detection.  Ports on which no device was detected are removed from the cache. */
+	public synchronized void update(ATDeviceDetector d) {
+		if(d.isDetected()) {
+			entries.put(d.getPortName(), new Entry(d));
+		} else {
+			entries.remove(d.getPortName());
+		}
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+	}
+	
+//> PERSISTENCE METHODS
+	/** Replaces the contents of this cache with the contents of the cache file, if it exists. */
+	public synchronized void load() throws IOException {
+		entries.clear();
+		if(!file.exists()) return;
+		
+		Properties p = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+		
+		for(String key : p.stringPropertyNames()) {
+			if(!key.endsWith(".serial")) continue;
+			String portName = key.substring(0, key.length() - ".serial".length());
+			try {
+				entries.put(portName, new Entry(portName, p));
+			} catch(NumberFormatException ex) {
+				log.info("Ignoring corrupt cache entry for port: " + portName, ex);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the contents of this cache to the cache file.  The contents are written to a temporary
+	 * file which then replaces the cache file, so a crash part way through leaves the previous cache.
+	 */
+	public synchronized void save() throws IOException {
+		Properties p = new Properties();
+		for(Entry e : entries.values()) {
+			e.store(p);
+		}
+		
+		File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				p.store(out, "AT modem detection cache");
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException ex) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			// only still there if it could not be written or moved
+			temp.delete();
+		}
+	}
+	
+//> INNER CLASSES
+	/** The cached properties of a device detected on a single port. */
+	public static class Entry {
+		private final String portName;
+		private final String serial;
+		private final int baudRate;
+		private final String manufacturer;
+		private final String model;
+		private final String imsi;
+		private final String phoneNumber;
+		private final String lockType;
+		private final boolean smsSendSupported;
+		private final boolean smsReceiveSupported;
+		
+		Entry(ATDeviceDetector d) {
+			this.portName = d.getPortName();
+			this.serial = d.getSerial();
+			this.baudRate = d.getMaxBaudRate();
+			this.manufacturer = d.getManufacturer();
+			this.model = d.getModel();
+			this.imsi = d.getImsi();
+			this.phoneNumber = d.getPhoneNumber();
+			this.lockType = d.getLockType();
+			this.smsSendSupported = d.isSmsSendSupported();
+			this.smsReceiveSupported = d.isSmsReceiveSupported();
+		}
+		
+		private Entry(String portName, Properties p) {
+			this.portName = portName;
+			this.serial = p.getProperty(portName + ".serial");
+			this.baudRate = Integer.parseInt(p.getProperty(portName + ".baud"));
+			this.manufacturer = p.getProperty(portName + ".manufacturer");
+			this.model = p.getProperty(portName + ".model");
+			this.imsi = p.getProperty(portName + ".imsi");
+			this.phoneNumber = p.getProperty(portName + ".phoneNumber");
+			this.lockType = p.getProperty(portName + ".lockType");
+			this.smsSendSupported = Boolean.parseBoolean(p.getProperty(portName + ".smsSend"));
+			this.smsReceiveSupported = Boolean.parseBoolean(p.getProperty(portName + ".smsReceive"));
+		}
+		
+		private void store(Properties p) {
+			p.setProperty(portName + ".serial", serial);
+			p.setProperty(portName + ".baud", Integer.toString(baudRate));
+			setIfPresent(p, portName + ".manufacturer", manufacturer);
+			setIfPresent(p, portName + ".model", model);
+			setIfPresent(p, portName + ".imsi", imsi);
+			setIfPresent(p, portName + ".phoneNumber", phoneNumber);
+			setIfPresent(p, portName + ".lockType", lockType);
+			p.setProperty(portName + ".smsSend", Boolean.toString(smsSendSupported));
+			p.setProperty(portName + ".smsReceive", Boolean.toString(smsReceiveSupported));
+		}
+		
+		private static void setIfPresent(Properties p, String key, String value) {
+			if(value != null) p.setProperty(key, value);
+		}
+
+		public String getPortName() { return portName; }
+		public String getSerial() { return serial; }
+		public int getBaudRate() { return baudRate; }
+		public String getManufacturer() { return manufacturer; }
+		public String getModel() { return model; }
+		public String getImsi() { return imsi; }
+		public String getPhoneNumber() { return phoneNumber; }
+		public String getLockType() { return lockType; }
+		public boolean isSmsSendSupported() { return smsSendSupported; }
+		public boolean isSmsReceiveSupported() { return smsReceiveSupported; }
+	}
+}
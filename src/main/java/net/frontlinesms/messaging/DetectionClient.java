@@ -0,0 +1,186 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets detection results from a {@link DetectionServer} running on the same host, instead of
+ * probing the ports from this process.
+ * <p>
+ * Results are {@link DetectionResult}s rather than {@link ATDeviceDetector}s, as the detectors and
+ * their ports belong to the server.  Otherwise this mirrors {@link AllModemsDetector}: call
+ * {@link #detectBlocking()} for the results, or {@link #startWatching()} to keep a local
+ * {@link DetectionRegistry} up to date and receive changes through its listeners.
+ */
+public class DetectionClient implements Closeable {
+	/** Time, in milliseconds, allowed for the server to answer beyond any detection timeout */
+	private static final int RESPONSE_GRACE = 5000;
+
+	/** Logger */
+	private final Logger log = new Logger(getClass());
+	private final int port;
+	/** Copy of the server's results, kept up to date while watching */
+	private final DetectionRegistry registry = new DetectionRegistry();
+	/** File holding the server's token, or <code>null</code> if the server does not require one */
+	private volatile File tokenFile;
+	/** Connection changes are received over, or <code>null</code> if not watching.  Guarded by <code>this</code>. */
+	private Socket watchSocket;
+
+	/** Creates a client for a server listening on {@link DetectionServer#DEFAULT_PORT}. */
+	public DetectionClient() {
+		this(DetectionServer.DEFAULT_PORT);
+	}
+
+	public DetectionClient(int port) {
+		this.port = port;
+	}
+
+//> ACCESSORS
+	/**
+	 * Sets the file the server wrote its token to, as set by {@link DetectionServer#setTokenFile(File)}.
+	 * The file is read for each request, so a restarted server's new token is picked up.
+	 */
+	public void setTokenFile(File tokenFile) {
+		this.tokenFile = tokenFile;
+	}
+
+//> DETECTION METHODS
+	/**
+	 * Waits for detection running in the server to finish, then returns the results, one for each
+	 * device.  If the server has already finished detecting, its results are returned straight away.
+	 * @throws IOException if the server cannot be reached
+	 */
+	public List<DetectionResult> detectBlocking() throws IOException {
+		return request(DetectionProtocol.DETECT, 0);
+	}
+
+	/**
+	 * As {@link #detectBlocking()}, but returns the results so far if detection is still running
+	 * when the timeout expires.  Detection carries on in the server.
+	 */
+	public List<DetectionResult> detectBlocking(long timeout, TimeUnit unit) throws IOException {
+		return request(DetectionProtocol.DETECT, Math.max(1, unit.toMillis(timeout)));
+	}
+
+	/**
+	 * Asks the server to probe the ports again, and waits for it to finish.  Clients asking at the
+	 * same time share a single probe.
+	 */
+	public List<DetectionResult> refresh(long timeout, TimeUnit unit) throws IOException {
+		return request(DetectionProtocol.REFRESH, Math.max(1, unit.toMillis(timeout)));
+	}
+
+	/** @return the server's current results, one for each device, without waiting for detection */
+	public List<DetectionResult> getResults() throws IOException {
+		return request(DetectionProtocol.RESULTS, -1);
+	}
+
+//> WATCHING METHODS
+	/**
+	 * Starts copying the server's results into {@link #getRegistry()}, which fires its listeners
+	 * for each change.  Returns once the server's current results have been copied.
+	 */
+	public synchronized void startWatching() throws IOException {
+		if(watchSocket != null) return;
+		Socket socket = connect(0);
+		DataInputStream in;
+		try {
+			in = sendRequest(socket, DetectionProtocol.WATCH, -1);
+			replaceAll(DetectionProtocol.readSnapshot(in));
+		} catch(IOException ex) {
+			socket.close();
+			throw ex;
+		}
+		watchSocket = socket;
+		Thread watcher = new Thread(() -> receiveChanges(socket, in), "DetectionClient-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	/** Stops copying the server's results.  The registry keeps the results copied so far. */
+	public synchronized void stopWatching() {
+		if(watchSocket == null) return;
+		try {
+			watchSocket.close();
+		} catch(IOException ex) {
+			log.info("Error closing connection.", ex);
+		}
+		watchSocket = null;
+	}
+
+	/** @return copies of the server's results, kept up to date while watching; add a listener to receive changes */
+	public DetectionRegistry getRegistry() {
+		return registry;
+	}
+
+	public void close() {
+		stopWatching();
+	}
+
+//> INSTANCE HELPER METHODS
+	/**
+	 * Sends a request which is answered with a single snapshot.
+	 * @param timeout argument to send, or <code>-1</code> for none
+	 * @return one result for each device
+	 */
+	private List<DetectionResult> request(byte request, long timeout) throws IOException {
+		int readTimeout = timeout == 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, Math.max(timeout, 0) + RESPONSE_GRACE);
+		Socket socket = connect(readTimeout);
+		try {
+			List<DetectionResult> results = DetectionProtocol.readSnapshot(sendRequest(socket, request, timeout));
+			results.sort((a, b) -> a.getPortName().compareTo(b.getPortName()));
+			return DetectionRegistry.devicesOf(results);
+		} finally {
+			socket.close();
+		}
+	}
+
+	private Socket connect(int readTimeout) throws IOException {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setSoTimeout(readTimeout);
+		return socket;
+	}
+
+	/** @return the stream the server's answer can be read from */
+	private DataInputStream sendRequest(Socket socket, byte request, long timeout) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		out.writeByte(DetectionProtocol.VERSION);
+		File tokenFile = this.tokenFile;
+		DetectionProtocol.writeString(out, tokenFile == null ? null : DetectionProtocol.readToken(tokenFile));
+		out.writeByte(request);
+		if(timeout >= 0) out.writeLong(timeout);
+		out.flush();
+		return new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	}
+
+	/** Reads changes into the {@link #registry} until the connection is closed. */
+	private void receiveChanges(Socket socket, DataInputStream in) {
+		try {
+			while(true) {
+				DetectionProtocol.expectFrame(in, DetectionProtocol.CHANGE_FRAME);
+				Map.Entry<String, DetectionResult> change = DetectionProtocol.readChange(in);
+				if(change.getValue() != null) registry.publish(change.getValue());
+				else registry.remove(change.getKey());
+			}
+		} catch(IOException ex) {
+			if(!socket.isClosed()) log.warn("Lost connection to detection server.", ex);
+		} finally {
+			synchronized(this) {
+				if(watchSocket == socket) watchSocket = null;
+			}
+		}
+	}
+
+	/** Makes the {@link #registry} hold exactly the supplied results. */
+	private void replaceAll(List<DetectionResult> results) {
+		Set<String> stale = new HashSet<String>();
+		for(DetectionResult r : registry.getSnapshot().getResults()) stale.add(r.getPortName());
+		for(DetectionResult r : results) {
+			stale.remove(r.getPortName());
+			registry.publish(r);
+		}
+		for(String portName : stale) registry.remove(portName);
+	}
+}
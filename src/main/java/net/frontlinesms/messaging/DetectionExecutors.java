@@ -0,0 +1,95 @@
+package net.frontlinesms.messaging;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Factory methods for the {@link ExecutorService}s which {@link AllModemsDetector} can run its
+ * {@link ATDeviceDetector}s on.  A caller may also supply any other {@link ExecutorService}.
+ */
+public class DetectionExecutors {
+	/** Default maximum number of ports probed at the same time by {@link #newDefault()}. */
+	public static final int DEFAULT_MAX_THREADS = 16;
+	
+	private DetectionExecutors() {}
+	
+	/** @return the executor used by {@link AllModemsDetector} when none is supplied */
+	public static ExecutorService newDefault() {
+		return newBoundedPool(DEFAULT_MAX_THREADS);
+	}
+	
+	/**
+	 * Creates a pool which will probe at most <code>maxThreads</code> ports at the same time.  Further
+	 * ports are queued until a thread becomes free.  The pool's threads are daemon threads, so they
+	 * will not prevent the JVM from exiting.
+	 */
+	public static ExecutorService newBoundedPool(int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException("maxThreads must be at least 1: " + maxThreads);
+		return new ThreadPoolExecutor(maxThreads, maxThreads,
+				0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new DaemonThreadFactory("ATDeviceDetector"));
+	}
+	
+	/**
+	 * Creates an executor which starts a new virtual thread for each port, if the JVM supports
+	 * virtual threads.  On older JVMs this falls back to {@link #newDefault()}.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch(Exception ex) {
+			return newDefault();
+		}
+	}
+	
+	/**
+	 * Creates the single-threaded scheduler {@link AllModemsDetector} uses for timed work, such as
+	 * enforcing detection deadlines.  Its thread is a daemon thread.
+	 */
+	public static ScheduledExecutorService newScheduler() {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("ATDeviceDetector-scheduler"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+	
+	/**
+	 * Creates a pool of named daemon threads which grows as needed up to <code>maxThreads</code>, for
+	 * work which mostly waits, such as serving {@link DetectionServer} connections.  Work submitted
+	 * while every thread is busy is rejected rather than queued.
+	 */
+	static ExecutorService newCachedPool(String threadNamePrefix, int maxThreads) {
+		if(maxThreads < 1) throw new IllegalArgumentException("maxThreads must be at least 1: " + maxThreads);
+		return new ThreadPoolExecutor(0, maxThreads,
+				60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(),
+				new DaemonThreadFactory(threadNamePrefix));
+	}
+	
+	/** @return <code>true</code> if {@link #newVirtualThreadExecutor()} will use virtual threads on this JVM */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch(NoSuchMethodException ex) {
+			return false;
+		}
+	}
+	
+	/** Creates named daemon threads for detection pools. */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private int count;
+		
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		public synchronized Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + "-" + (++count));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+
+/**
+ * Timings recorded by a single {@link ATDeviceDetector}: one for each phase of detection, e.g.
+ * opening the port, and one for each AT command sent.  Commands are named as sent, e.g.
+ * <code>AT+CNUM</code>.
+ */
+public class DetectionMetrics {
+//> PHASE NAMES
+	/** Opening the serial port */
+	public static final String OPEN = "open";
+	/** Setting flow control, opening streams and enabling the receive timeout */
+	public static final String CONFIGURE = "configure";
+	/** Setting the baud rate and sending <code>AT</code>; recorded once for each baud rate tried */
+	public static final String HANDSHAKE = "handshake";
+	/** The whole detection */
+	public static final String TOTAL = "total";
+	
+	private final List<Timing> timings = new ArrayList<Timing>();
+	
+	/**
+	 * Records a timing.
+	 * @param name phase or command name
+	 * @param nanos elapsed time, in nanoseconds
+	 * @param failed <code>true</code> if the phase or command did not succeed
+	 */
+	synchronized void record(String name, long nanos, boolean failed) {
+		timings.add(new Timing(name, nanos, failed));
+	}
+	
+	/** @return every timing recorded, in the order they were recorded */
+	public synchronized List<Timing> getTimings() {
+		return new ArrayList<Timing>(timings);
+	}
+	
+	/** @return the total time, in milliseconds, recorded against the named phase or command */
+	public synchronized long getTotalMillis(String name) {
+		long nanos = 0;
+		for(Timing t : timings) {
+			if(t.name.equals(name)) nanos += t.nanos;
+		}
+		return nanos / 1000000;
+	}
+	
+	/** @return the number of times the named phase or command failed */
+	public synchronized int getFailureCount(String name) {
+		int failures = 0;
+		for(Timing t : timings) {
+			if(t.failed && t.name.equals(name)) ++failures;
+		}
+		return failures;
+	}
+	
+	public synchronized String toString() {
+		StringBuilder bob = new StringBuilder();
+		for(Timing t : timings) {
+			if(bob.length() > 0) bob.append("; ");
+			bob.append(t);
+		}
+		return bob.toString();
+	}
+	
+//> INNER CLASSES
+	/** The time taken by a single phase or command. */
+	public static class Timing {
+		private final String name;
+		private final long nanos;
+		private final boolean failed;
+		
+		Timing(String name, long nanos, boolean failed) {
+			this.name = name;
+			this.nanos = nanos;
+			this.failed = failed;
+		}
+		
+		public String getName() { return name; }
+		public long getNanos() { return nanos; }
+		public long getMillis() { return nanos / 1000000; }
+		public boolean isFailed() { return failed; }
+		
+		public String toString() {
+			return name + "=" + getMillis() + "ms" + (failed ? " (failed)" : "");
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * The binary protocol spoken between {@link DetectionServer} and {@link DetectionClient}.
+ * <p>
+ * A client opens a connection, writes {@link #VERSION}, its token and one request code, followed
+ * by the request's arguments.  The token is <code>null</code> unless the server was given a token
+ * file, in which case it must match the file's contents.  The server answers {@link #DETECT}, {@link #REFRESH} and {@link #RESULTS}
+ * with a single snapshot frame and closes the connection.  It answers {@link #WATCH} with a
+ * snapshot frame followed by a change frame for every change, until either side closes.
+ * <pre>
+ * request:  version:byte token:string code:byte argument*
+ * snapshot: 'S' version:long count:int result*
+ * change:   'C' version:long portName:UTF present:boolean result?
+ * error:    'E' message:UTF
+ * result:   portName:UTF usbDevice:string timestamp:long maxBaudRate:int serial:string
+ *           manufacturer:string model:string imsi:string phoneNumber:string lockType:string
+ *           flags:byte exceptionMessage:string
+ * string:   present:boolean UTF?
+ * </pre>
+ * Numbers and UTF strings are as written by {@link DataOutputStream}.
+ */
+class DetectionProtocol {
+	/** Version of the protocol, sent first by the client */
+	static final int VERSION = 2;
+	/** Number of random bytes in a token */
+	private static final int TOKEN_BYTES = 16;
+
+//> REQUEST CODES
+	/** Wait for detection in progress to finish, then send the results.  Argument: timeout in milliseconds as a long, or <code>0</code> for none. */
+	static final byte DETECT = 'D';
+	/** Probe the ports again, then send the results.  Argument: timeout as for {@link #DETECT}. */
+	static final byte REFRESH = 'R';
+	/** Send the current results straight away. */
+	static final byte RESULTS = 'S';
+	/** Send the current results, then every change as it happens. */
+	static final byte WATCH = 'W';
+
+//> FRAME TYPES
+	static final byte SNAPSHOT_FRAME = 'S';
+	static final byte CHANGE_FRAME = 'C';
+	static final byte ERROR_FRAME = 'E';
+
+//> RESULT FLAGS
+	private static final int SMS_SEND = 1;
+	private static final int SMS_RECEIVE = 2;
+	private static final int ATTRIBUTES_PENDING = 4;
+	private static final int CANCELLED = 8;
+
+	private DetectionProtocol() {}
+
+//> WRITE METHODS
+	static void writeSnapshot(DataOutputStream out, DetectionRegistry.Snapshot snapshot) throws IOException {
+		Collection<DetectionResult> results = snapshot.getResults();
+		out.writeByte(SNAPSHOT_FRAME);
+		out.writeLong(snapshot.getVersion());
+		out.writeInt(results.size());
+		for(DetectionResult r : results) writeResult(out, r);
+	}
+
+	/** @param result the port's new result, or <code>null</code> if it was removed */
+	static void writeChange(DataOutputStream out, long version, String portName, DetectionResult result) throws IOException {
+		out.writeByte(CHANGE_FRAME);
+		out.writeLong(version);
+		out.writeUTF(portName);
+		out.writeBoolean(result != null);
+		if(result != null) writeResult(out, result);
+	}
+
+	static void writeError(DataOutputStream out, String message) throws IOException {
+		out.writeByte(ERROR_FRAME);
+		out.writeUTF(message == null ? "Unknown error." : message);
+	}
+
+	private static void writeResult(DataOutputStream out, DetectionResult r) throws IOException {
+		out.writeUTF(r.getPortName());
+		writeString(out, r.getUsbDevice());
+		out.writeLong(r.getTimestamp());
+		out.writeInt(r.getMaxBaudRate());
+		writeString(out, r.getSerial());
+		writeString(out, r.getManufacturer());
+		writeString(out, r.getModel());
+		writeString(out, r.getImsi());
+		writeString(out, r.getPhoneNumber());
+		writeString(out, r.getLockType());
+		out.writeByte((r.isSmsSendSupported() ? SMS_SEND : 0)
+				| (r.isSmsReceiveSupported() ? SMS_RECEIVE : 0)
+				| (r.isAttributesPending() ? ATTRIBUTES_PENDING : 0)
+				| (r.isCancelled() ? CANCELLED : 0));
+		writeString(out, r.getExceptionMessage());
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if(s != null) out.writeUTF(s);
+	}
+
+//> READ METHODS
+	/**
+	 * Reads a snapshot frame.
+	 * @return the results, in the order sent
+	 * @throws IOException if the server sent an error frame, or anything other than a snapshot
+	 */
+	static List<DetectionResult> readSnapshot(DataInputStream in) throws IOException {
+		expectFrame(in, SNAPSHOT_FRAME);
+		in.readLong();
+		int count = in.readInt();
+		List<DetectionResult> results = new ArrayList<DetectionResult>(count);
+		for(int i=0; i<count; ++i) results.add(readResult(in));
+		return results;
+	}
+
+	/**
+	 * Reads a change frame, after its frame type has been read.
+	 * @return the name of the port which changed, and its new result or <code>null</code> if it was removed
+	 */
+	static Map.Entry<String, DetectionResult> readChange(DataInputStream in) throws IOException {
+		in.readLong();
+		String portName = in.readUTF();
+		DetectionResult result = in.readBoolean() ? readResult(in) : null;
+		return new AbstractMap.SimpleImmutableEntry<String, DetectionResult>(portName, result);
+	}
+
+	/** Reads the frame type, throwing if it is not the one expected. */
+	static void expectFrame(DataInputStream in, byte expected) throws IOException {
+		byte frame = in.readByte();
+		if(frame == expected) return;
+		if(frame == ERROR_FRAME) throw new IOException("Detection server failed: " + in.readUTF());
+		throw new IOException("Unexpected frame from detection server: " + (char) frame);
+	}
+
+	private static DetectionResult readResult(DataInputStream in) throws IOException {
+		String portName = in.readUTF();
+		String usbDevice = readString(in);
+		long timestamp = in.readLong();
+		int maxBaudRate = in.readInt();
+		String serial = readString(in);
+		String manufacturer = readString(in);
+		String model = readString(in);
+		String imsi = readString(in);
+		String phoneNumber = readString(in);
+		String lockType = readString(in);
+		int flags = in.readByte();
+		String exceptionMessage = readString(in);
+		return new DetectionResult(portName, usbDevice, timestamp, maxBaudRate, serial, manufacturer, model,
+				imsi, phoneNumber, lockType, (flags & SMS_SEND) != 0, (flags & SMS_RECEIVE) != 0,
+				(flags & ATTRIBUTES_PENDING) != 0, (flags & CANCELLED) != 0, exceptionMessage);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+//> TOKEN METHODS
+	/**
+	 * Generates a random token, and writes it to a new file which only its owner can read, replacing
+	 * any file already there.  On file systems without POSIX permissions, the file is made readable
+	 * by its owner only as far as the platform allows.
+	 * @return the token
+	 */
+	static String createToken(File file) throws IOException {
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		StringBuilder token = new StringBuilder();
+		for(byte b : random) token.append(String.format("%02x", b & 0xFF));
+		
+		Path path = file.toPath();
+		Files.deleteIfExists(path);
+		try {
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch(UnsupportedOperationException ex) {
+			Files.createFile(path);
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+		}
+		Files.write(path, token.toString().getBytes(StandardCharsets.US_ASCII));
+		return token.toString();
+	}
+
+	/** @return the token written to the file by {@link #createToken(File)} */
+	static String readToken(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+	}
+}
@@ -0,0 +1,208 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The latest {@link DetectionResult} for each port, published as each detection completes.
+ * <p>
+ * Readers take an immutable {@link Snapshot} with a single volatile read, so polling is cheap and
+ * never blocks detection.  Each change produces a new snapshot with a higher version number;
+ * readers can skip work when the version has not moved, ask a snapshot what has changed since the
+ * version they last saw, wait for the next change with {@link #awaitChange(long, long, TimeUnit)},
+ * or register a {@link Listener}.
+ */
+public class DetectionRegistry {
+	/** Receives each change to the registry. */
+	public interface Listener {
+		/**
+		 * Called after a result has been published or removed.  Changes made at the same time on
+		 * different threads may be reported out of order; compare the versions if that matters.
+		 * @param previous the port's previous result, or <code>null</code> if it had none
+		 * @param current the port's new result, or <code>null</code> if it has been removed
+		 * @param version the version of the snapshot which includes the change
+		 */
+		void handleResultChanged(DetectionResult previous, DetectionResult current, long version);
+	}
+
+	/** Logger */
+	private final Logger log = new Logger(getClass());
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(Snapshot.EMPTY);
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	/** Notified when the snapshot changes.  Only writers and waiting readers lock it. */
+	private final Object changed = new Object();
+
+//> ACCESSORS
+	/** @return the current snapshot.  This does not lock or copy anything. */
+	public Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/** @return the version of the current snapshot */
+	public long getVersion() {
+		return snapshot.get().version;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Waits until the registry has moved on from the supplied version, or the timeout expires.
+	 * @return the current snapshot, whose version is still <code>version</code> if the timeout expired
+	 */
+	public Snapshot awaitChange(long version, long timeout, TimeUnit unit) throws InterruptedException {
+		Snapshot current = snapshot.get();
+		if(current.version != version) return current;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized(changed) {
+			while((current = snapshot.get()).version == version) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(remaining <= 0) break;
+				changed.wait(remaining);
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * @param results results sorted by port name
+	 * @return one result for each device, see {@link Snapshot#getDevices()}
+	 */
+	static List<DetectionResult> devicesOf(Collection<DetectionResult> results) {
+		return Collections.unmodifiableList(AllModemsDetector.deduplicate(results,
+				r -> r.getUsbDevice() != null ? r.getUsbDevice() : "port:" + r.getPortName(),
+				DetectionResult::isDetected, DetectionResult::getSerial));
+	}
+
+//> UPDATE METHODS
+	/** Publishes the result of a detection, replacing any previous result for the same port. */
+	void publish(DetectionResult result) {
+		Snapshot previous;
+		Snapshot next;
+		do {
+			previous = snapshot.get();
+			next = previous.with(result.getPortName(), result);
+		} while(!snapshot.compareAndSet(previous, next));
+		changed(previous.getResult(result.getPortName()), result, next.version);
+	}
+
+	/** Removes the result for the named port, if there is one. */
+	void remove(String portName) {
+		Snapshot previous;
+		Snapshot next;
+		do {
+			previous = snapshot.get();
+			if(previous.getResult(portName) == null) return;
+			next = previous.with(portName, null);
+		} while(!snapshot.compareAndSet(previous, next));
+		changed(previous.getResult(portName), null, next.version);
+	}
+
+	private void changed(DetectionResult previous, DetectionResult current, long version) {
+		synchronized(changed) {
+			changed.notifyAll();
+		}
+		for(Listener l : listeners) {
+			try {
+				l.handleResultChanged(previous, current, version);
+			} catch(RuntimeException ex) {
+				log.warn("Registry listener failed.", ex);
+			}
+		}
+	}
+
+//> INNER CLASSES
+	/** The contents of the registry at one version.  Instances are immutable. */
+	public static class Snapshot {
+		static final Snapshot EMPTY = new Snapshot(0,
+				Collections.<String, DetectionResult>emptyMap(), Collections.<String, Long>emptyMap(), Collections.<String, Long>emptyMap());
+
+		private final long version;
+		/** Results, keyed and sorted by port name */
+		private final Map<String, DetectionResult> results;
+		/** Version at which each result was published, keyed by port name */
+		private final Map<String, Long> publishedAt;
+		/** Version at which each port's result was removed, keyed by port name */
+		private final Map<String, Long> removedAt;
+		/** One result for each device, computed when first asked for */
+		private volatile List<DetectionResult> devices;
+
+		private Snapshot(long version, Map<String, DetectionResult> results, Map<String, Long> publishedAt, Map<String, Long> removedAt) {
+			this.version = version;
+			this.results = results;
+			this.publishedAt = publishedAt;
+			this.removedAt = removedAt;
+		}
+
+		/** @return a new snapshot, one version on, with the port's result replaced or removed */
+		private Snapshot with(String portName, DetectionResult result) {
+			long next = version + 1;
+			Map<String, DetectionResult> results = new TreeMap<String, DetectionResult>(this.results);
+			Map<String, Long> publishedAt = new HashMap<String, Long>(this.publishedAt);
+			Map<String, Long> removedAt = new HashMap<String, Long>(this.removedAt);
+			if(result == null) {
+				results.remove(portName);
+				publishedAt.remove(portName);
+				removedAt.put(portName, next);
+			} else {
+				results.put(portName, result);
+				publishedAt.put(portName, next);
+				removedAt.remove(portName);
+			}
+			return new Snapshot(next, Collections.unmodifiableMap(results),
+					Collections.unmodifiableMap(publishedAt), Collections.unmodifiableMap(removedAt));
+		}
+
+		/** @return the version of this snapshot; each change to the registry increases it by one */
+		public long getVersion() {
+			return version;
+		}
+
+		/** @return the result for the named port, or <code>null</code> if there is none */
+		public DetectionResult getResult(String portName) {
+			return results.get(portName);
+		}
+
+		/** @return the result for every port, sorted by port name */
+		public Collection<DetectionResult> getResults() {
+			return results.values();
+		}
+
+		/**
+		 * @return one result for each device, as {@link AllModemsDetector#getDetectors()}: ports of
+		 * the same USB device, or reporting the same serial number, are only included once
+		 */
+		public List<DetectionResult> getDevices() {
+			List<DetectionResult> devices = this.devices;
+			if(devices == null) {
+				devices = devicesOf(results.values());
+				this.devices = devices;
+			}
+			return devices;
+		}
+
+		/** @return the results published after the supplied version, sorted by port name */
+		public List<DetectionResult> getChangedSince(long version) {
+			List<DetectionResult> changed = new ArrayList<DetectionResult>();
+			for(DetectionResult r : results.values()) {
+				if(publishedAt.get(r.getPortName()) > version) changed.add(r);
+			}
+			return changed;
+		}
+
+		/** @return the names of ports whose results were removed after the supplied version */
+		public Set<String> getRemovedSince(long version) {
+			Set<String> removed = new TreeSet<String>();
+			for(Map.Entry<String, Long> e : removedAt.entrySet()) {
+				if(e.getValue() > version) removed.add(e.getKey());
+			}
+			return removed;
+		}
+	}
+}
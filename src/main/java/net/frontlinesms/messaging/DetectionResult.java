@@ -0,0 +1,129 @@
+package net.frontlinesms.messaging;
+
+/**
+ * The outcome of detection on a single port, as it stood when {@link ATDeviceDetector#getResult()}
+ * was called.  Instances are immutable, so can be shared between threads freely.
+ * @see DetectionRegistry
+ */
+public class DetectionResult {
+	private final String portName;
+	/** The USB device the port belongs to, or <code>null</code> if unknown */
+	private final String usbDevice;
+	private final long timestamp;
+	private final int maxBaudRate;
+	private final String serial;
+	private final String manufacturer;
+	private final String model;
+	private final String imsi;
+	private final String phoneNumber;
+	private final String lockType;
+	private final boolean smsSendSupported;
+	private final boolean smsReceiveSupported;
+	/** <code>true</code> if some attributes had been deferred and not fetched yet */
+	private final boolean attributesPending;
+	private final boolean cancelled;
+	private final String exceptionMessage;
+
+	DetectionResult(String portName, String usbDevice, long timestamp, int maxBaudRate, String serial,
+			String manufacturer, String model, String imsi, String phoneNumber, String lockType,
+			boolean smsSendSupported, boolean smsReceiveSupported, boolean attributesPending,
+			boolean cancelled, String exceptionMessage) {
+		this.portName = portName;
+		this.usbDevice = usbDevice;
+		this.timestamp = timestamp;
+		this.maxBaudRate = maxBaudRate;
+		this.serial = serial;
+		this.manufacturer = manufacturer;
+		this.model = model;
+		this.imsi = imsi;
+		this.phoneNumber = phoneNumber;
+		this.lockType = lockType;
+		this.smsSendSupported = smsSendSupported;
+		this.smsReceiveSupported = smsReceiveSupported;
+		this.attributesPending = attributesPending;
+		this.cancelled = cancelled;
+		this.exceptionMessage = exceptionMessage;
+	}
+
+//> ACCESSORS
+	public String getPortName() {
+		return portName;
+	}
+
+	/** @return the sysfs path of the USB device the port belongs to, or <code>null</code> if it is not known to be a USB port */
+	public String getUsbDevice() {
+		return usbDevice;
+	}
+
+	/** @return when the result was taken, as from {@link System#currentTimeMillis()} */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public boolean isDetected() {
+		return maxBaudRate > 0;
+	}
+
+	public int getMaxBaudRate() {
+		return maxBaudRate;
+	}
+
+	public String getSerial() {
+		return serial;
+	}
+
+	public String getManufacturer() {
+		return manufacturer;
+	}
+
+	public String getModel() {
+		return model;
+	}
+
+	public String getImsi() {
+		return imsi;
+	}
+
+	public String getPhoneNumber() {
+		return phoneNumber;
+	}
+
+	public String getLockType() {
+		return lockType;
+	}
+
+	public boolean isUnlockRequired() {
+		return lockType != null;
+	}
+
+	public boolean isSmsSendSupported() {
+		return smsSendSupported;
+	}
+
+	public boolean isSmsReceiveSupported() {
+		return smsReceiveSupported;
+	}
+
+	/**
+	 * @return <code>true</code> if some attributes had been deferred and not fetched when the result
+	 * was taken; they are <code>null</code> or <code>false</code> here
+	 * @see ATDeviceDetector#setEagerAttributes(java.util.Set)
+	 */
+	public boolean isAttributesPending() {
+		return attributesPending;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/** @return description of the last problem encountered if no device was detected, otherwise <code>null</code> */
+	public String getExceptionMessage() {
+		return exceptionMessage;
+	}
+
+	public String toString() {
+		return portName + (isDetected() ? " detected at " + maxBaudRate + "; serial: " + serial + "; manufacturer: " + manufacturer + "; model: " + model
+				: " not detected: " + exceptionMessage);
+	}
+}
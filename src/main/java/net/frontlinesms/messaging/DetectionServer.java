@@ -0,0 +1,277 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.*;
+
+/**
+ * Owns detection for the whole host, and serves the results to {@link DetectionClient}s in other
+ * processes over a loopback socket.  Each port is probed by this process only, so processes no
+ * longer fight over port locks, and a client asking for results while detection is running waits
+ * for that detection rather than starting another.
+ * <p>
+ * The server only accepts connections from the local host, but by default accepts them from any
+ * user on it.  Every local user can then read the IMSI and phone number of each device, and make
+ * the server probe the ports again.  Ports whose connection has been handed off are not probed
+ * again, and a port found in use keeps its previous result.  On a host shared with untrusted
+ * users, {@link #setTokenFile(File) require a token}, readable only by users trusted with it.
+ * At most {@link #DEFAULT_MAX_CONNECTIONS} connections are served at once, and a connection which
+ * does not send its request within {@link #DEFAULT_REQUEST_TIMEOUT} milliseconds is closed, so a
+ * local process cannot tie up the server by opening connections and sending nothing.
+ * <p>
+ * The server does not shut down the
+ * {@link AllModemsDetector} it serves; to keep results current as ports come and go, start it
+ * watching with {@link AllModemsDetector#startWatching()}.
+ * @see DetectionProtocol
+ */
+public class DetectionServer implements Closeable {
+	/** Port the server listens on, and the client connects to, by default */
+	public static final int DEFAULT_PORT = 47321;
+	/** Most connections served at the same time; further connections are closed as soon as they are accepted */
+	static final int DEFAULT_MAX_CONNECTIONS = 32;
+	/** Time, in milliseconds, a client is given to send its request before its connection is closed */
+	static final int DEFAULT_REQUEST_TIMEOUT = 5000;
+	/** Time, in milliseconds, between checks that a watching client is still connected while nothing changes */
+	private static final int WATCH_CHECK_INTERVAL = 1000;
+
+	/** Logger */
+	private final Logger log = new Logger(getClass());
+	private final AllModemsDetector detector;
+	private final ServerSocket serverSocket;
+	/** Serves each connection */
+	private final ExecutorService connections;
+	/** @see #DEFAULT_REQUEST_TIMEOUT */
+	private final int requestTimeout;
+	/** Thread accepting connections, or <code>null</code> if not started */
+	private Thread acceptor;
+	/** Token clients must present, or <code>null</code> to accept any client.  Guarded by <code>this</code>. */
+	private String token;
+	/** The latest detection, or <code>null</code> if none has been started.  Guarded by <code>this</code>. */
+	private CompletableFuture<ATDeviceDetector[]> detection;
+	private volatile boolean closed;
+
+	/**
+	 * Binds the server to a port on the loopback interface.  Nothing is served until {@link #start()}.
+	 * @param port the port to listen on, or <code>0</code> for any free port
+	 * @throws IOException if the port cannot be bound, e.g. because another server is running
+	 */
+	public DetectionServer(AllModemsDetector detector, int port) throws IOException {
+		this(detector, port, DEFAULT_MAX_CONNECTIONS, DEFAULT_REQUEST_TIMEOUT);
+	}
+
+	/**
+	 * @param maxConnections the most connections served at the same time
+	 * @param requestTimeout time, in milliseconds, a client is given to send its request
+	 * @see #DetectionServer(AllModemsDetector, int)
+	 */
+	DetectionServer(AllModemsDetector detector, int port, int maxConnections, int requestTimeout) throws IOException {
+		this.detector = detector;
+		this.connections = DetectionExecutors.newCachedPool("DetectionServer", maxConnections);
+		this.requestTimeout = requestTimeout;
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+//> ACCESSORS
+	/** @return the port the server is listening on */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Requires clients to present a secret token.  A new random token is written to the file, which
+	 * is replaced if it exists, and made readable by this process's user only.  Clients are given
+	 * the same file with {@link DetectionClient#setTokenFile(File)}.
+	 */
+	public synchronized void setTokenFile(File tokenFile) throws IOException {
+		this.token = DetectionProtocol.createToken(tokenFile);
+	}
+
+//> LIFECYCLE METHODS
+	/** Starts detection, and starts accepting connections. */
+	public synchronized void start() {
+		if(acceptor != null) return;
+		getDetection(false);
+		acceptor = new Thread(this::acceptConnections, "DetectionServer-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("Serving detection results on port " + getPort());
+	}
+
+	/** Waits until the server has been closed. */
+	public void join() throws InterruptedException {
+		Thread acceptor;
+		synchronized(this) {
+			acceptor = this.acceptor;
+		}
+		if(acceptor != null) acceptor.join();
+	}
+
+	/** Stops accepting connections, and closes those open. */
+	public void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch(IOException ex) {
+			log.info("Error closing server socket.", ex);
+		}
+		connections.shutdownNow();
+	}
+
+//> INSTANCE HELPER METHODS
+	private void acceptConnections() {
+		while(!closed) {
+			try {
+				Socket socket = serverSocket.accept();
+				try {
+					connections.execute(() -> serve(socket));
+				} catch(RejectedExecutionException ex) {
+					log.debug("Too many connections; closing the latest.");
+					socket.close();
+				}
+			} catch(IOException ex) {
+				if(!closed) log.warn("Error accepting connection.", ex);
+			}
+		}
+	}
+
+	/**
+	 * @param refresh <code>true</code> to start a new detection unless one is running
+	 * @return the detection running, or the last to finish
+	 */
+	private synchronized CompletableFuture<ATDeviceDetector[]> getDetection(boolean refresh) {
+		if(detection == null || refresh && detection.isDone()) detection = detector.detectAsync();
+		return detection;
+	}
+
+	/** Answers a single request.  The connection is closed if the request does not arrive in time. */
+	private void serve(Socket socket) {
+		try {
+			socket.setSoTimeout(requestTimeout);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			int version = in.readUnsignedByte();
+			if(version != DetectionProtocol.VERSION) {
+				DetectionProtocol.writeError(out, "Unsupported protocol version: " + version);
+			} else if(!isAuthorised(DetectionProtocol.readString(in))) {
+				log.info("Rejected connection with a bad token.");
+				DetectionProtocol.writeError(out, "Bad token.");
+			} else {
+				byte request = in.readByte();
+				switch(request) {
+					case DetectionProtocol.DETECT:
+						await(getDetection(false), in.readLong());
+						DetectionProtocol.writeSnapshot(out, detector.getRegistry().getSnapshot());
+						break;
+					case DetectionProtocol.REFRESH:
+						await(getDetection(true), in.readLong());
+						DetectionProtocol.writeSnapshot(out, detector.getRegistry().getSnapshot());
+						break;
+					case DetectionProtocol.RESULTS:
+						DetectionProtocol.writeSnapshot(out, detector.getRegistry().getSnapshot());
+						break;
+					case DetectionProtocol.WATCH:
+						watch(socket, in, out);
+						break;
+					default:
+						DetectionProtocol.writeError(out, "Unknown request: " + (char) request);
+				}
+			}
+			out.flush();
+		} catch(InterruptedException ex) {
+			log.debug("Connection interrupted.");
+		} catch(SocketTimeoutException ex) {
+			log.info("Closing connection which sent no request.");
+		} catch(IOException ex) {
+			if(!closed) log.info("Error serving connection.", ex);
+		} finally {
+			try { socket.close(); } catch(IOException ex) { log.info("Error closing connection.", ex); }
+		}
+	}
+
+	/** @return <code>true</code> if no token is required, or the supplied token is the one required */
+	private boolean isAuthorised(String presented) {
+		String token;
+		synchronized(this) {
+			token = this.token;
+		}
+		if(token == null) return true;
+		// compared in constant time, so the token cannot be guessed from how long rejection takes
+		return presented != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII), presented.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Waits for detection to finish.  Detection is shared by every client, so it is not cancelled
+	 * if the timeout expires; the client is sent the results so far.
+	 * @param timeout time in milliseconds, or <code>0</code> to wait as long as it takes
+	 */
+	private void await(CompletableFuture<ATDeviceDetector[]> detection, long timeout) throws InterruptedException {
+		try {
+			if(timeout > 0) detection.get(timeout, TimeUnit.MILLISECONDS);
+			else detection.get();
+		} catch(TimeoutException ex) {
+			log.debug("Detection still running after " + timeout + "ms.");
+		} catch(ExecutionException | CancellationException ex) {
+			log.info("Detection did not complete.", ex);
+		}
+	}
+
+	/**
+	 * Sends the current results, then each change until the connection or server is closed.  While
+	 * nothing changes, the connection is checked every {@link #WATCH_CHECK_INTERVAL} milliseconds, so
+	 * a client which has gone does not hold a thread until the next change.
+	 */
+	private void watch(Socket socket, InputStream in, DataOutputStream out) throws IOException, InterruptedException {
+		BlockingQueue<Change> changes = new LinkedBlockingQueue<Change>();
+		DetectionRegistry.Listener listener = (previous, current, version) -> changes.add(new Change(version,
+				current != null ? current.getPortName() : previous.getPortName(), current));
+		DetectionRegistry registry = detector.getRegistry();
+		registry.addListener(listener);
+		try {
+			DetectionRegistry.Snapshot snapshot = registry.getSnapshot();
+			DetectionProtocol.writeSnapshot(out, snapshot);
+			out.flush();
+			while(!closed) {
+				Change c = changes.poll(WATCH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+				if(c == null) {
+					if(isClosedByClient(socket, in)) return;
+					continue;
+				}
+				// changes made before the snapshot was taken are already in it
+				if(c.version <= snapshot.getVersion()) continue;
+				DetectionProtocol.writeChange(out, c.version, c.portName, c.result);
+				if(changes.isEmpty()) out.flush();
+			}
+		} finally {
+			registry.removeListener(listener);
+		}
+	}
+
+	/**
+	 * Checks, without waiting, whether a client which sends nothing more after its request has closed
+	 * the connection.  Anything the client does send is discarded.
+	 */
+	private static boolean isClosedByClient(Socket socket, InputStream in) throws IOException {
+		socket.setSoTimeout(1);
+		try {
+			return in.read() < 0;
+		} catch(SocketTimeoutException ex) {
+			return false;
+		}
+	}
+
+//> INNER CLASSES
+	/** A change to the registry, waiting to be sent to a watching client. */
+	private static class Change {
+		private final long version;
+		private final String portName;
+		private final DetectionResult result;
+
+		Change(long version, String portName, DetectionResult result) {
+			this.version = version;
+			this.portName = portName;
+			this.result = result;
+		}
+	}
+}
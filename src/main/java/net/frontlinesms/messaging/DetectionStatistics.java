@@ -0,0 +1,157 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+
+/**
+ * Histograms of the {@link DetectionMetrics} recorded by every detection run by an
+ * {@link AllModemsDetector}, for each phase and command.  Can be registered as an MBean with
+ * {@link AllModemsDetector#registerMBean(String)}.
+ */
+public class DetectionStatistics implements DetectionStatisticsMBean {
+	private final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+	private long detectionCount;
+	private long detectedCount;
+	
+	/** Adds the metrics of a completed detection to these statistics. */
+	synchronized void record(ATDeviceDetector d) {
+		++detectionCount;
+		if(d.isDetected()) ++detectedCount;
+		for(DetectionMetrics.Timing t : d.getMetrics().getTimings()) {
+			Histogram h = histograms.get(t.getName());
+			if(h == null) histograms.put(t.getName(), h = new Histogram());
+			h.record(t.getNanos(), t.isFailed());
+		}
+	}
+	
+//> SNAPSHOT API
+	/** @return a copy of the histogram for each phase and command, keyed by name */
+	public synchronized Map<String, Histogram> getSnapshot() {
+		Map<String, Histogram> snapshot = new TreeMap<String, Histogram>();
+		for(Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			snapshot.put(e.getKey(), new Histogram(e.getValue()));
+		}
+		return snapshot;
+	}
+	
+//> MBEAN METHODS
+	public synchronized long getDetectionCount() {
+		return detectionCount;
+	}
+	
+	public synchronized long getDetectedCount() {
+		return detectedCount;
+	}
+	
+	public synchronized String[] getTimerNames() {
+		return histograms.keySet().toArray(new String[histograms.size()]);
+	}
+	
+	public synchronized String[] getSummary() {
+		String[] summary = new String[histograms.size()];
+		int i = 0;
+		for(Map.Entry<String, Histogram> e : histograms.entrySet()) {
+			summary[i++] = e.getKey() + ": " + e.getValue();
+		}
+		return summary;
+	}
+	
+	public synchronized long getFailureCount(String timer) {
+		Histogram h = histograms.get(timer);
+		return h == null ? 0 : h.getFailureCount();
+	}
+	
+	public synchronized double getMeanMillis(String timer) {
+		Histogram h = histograms.get(timer);
+		return h == null ? 0 : h.getMeanMillis();
+	}
+	
+	public synchronized long getPercentileMillis(String timer, double percentile) {
+		Histogram h = histograms.get(timer);
+		return h == null ? 0 : h.getPercentileMillis(percentile);
+	}
+	
+	public synchronized void reset() {
+		histograms.clear();
+		detectionCount = 0;
+		detectedCount = 0;
+	}
+	
+//> INNER CLASSES
+	/** Distribution of the times taken by one phase or command, in buckets of roughly logarithmic width. */
+	public static class Histogram {
+		/** Upper bound, in milliseconds, of each bucket except the last, which is unbounded */
+		private static final long[] BUCKET_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+		
+		private final long[] counts;
+		private long count;
+		private long failureCount;
+		private long totalNanos;
+		private long maxNanos;
+		
+		Histogram() {
+			counts = new long[BUCKET_BOUNDS.length + 1];
+		}
+		
+		Histogram(Histogram h) {
+			counts = h.counts.clone();
+			count = h.count;
+			failureCount = h.failureCount;
+			totalNanos = h.totalNanos;
+			maxNanos = h.maxNanos;
+		}
+		
+		void record(long nanos, boolean failed) {
+			long millis = nanos / 1000000;
+			int bucket = 0;
+			while(bucket < BUCKET_BOUNDS.length && millis >= BUCKET_BOUNDS[bucket]) ++bucket;
+			++counts[bucket];
+			++count;
+			if(failed) ++failureCount;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+		
+		public long getCount() { return count; }
+		public long getFailureCount() { return failureCount; }
+		public long getMaxMillis() { return maxNanos / 1000000; }
+		
+		public double getMeanMillis() {
+			return count == 0 ? 0 : totalNanos / 1e6 / count;
+		}
+		
+		/**
+		 * @param percentile between 0 and 100
+		 * @return the upper bound, in milliseconds, of the bucket containing the requested percentile,
+		 * or the maximum recorded time if that is lower
+		 */
+		public long getPercentileMillis(double percentile) {
+			if(count == 0) return 0;
+			long rank = (long) Math.ceil(count * percentile / 100);
+			long seen = 0;
+			for(int i=0; i<BUCKET_BOUNDS.length; ++i) {
+				seen += counts[i];
+				if(seen >= rank) return Math.min(BUCKET_BOUNDS[i], getMaxMillis());
+			}
+			return getMaxMillis();
+		}
+		
+		/** @return the upper bound, in milliseconds, of each bucket except the last, which is unbounded */
+		public long[] getBucketBounds() {
+			return BUCKET_BOUNDS.clone();
+		}
+		
+		/** @return the number of timings in each bucket */
+		public long[] getBucketCounts() {
+			return counts.clone();
+		}
+		
+		public String toString() {
+			return "count=" + count +
+					" failures=" + failureCount +
+					" mean=" + Math.round(getMeanMillis()) + "ms" +
+					" p50=" + getPercentileMillis(50) + "ms" +
+					" p99=" + getPercentileMillis(99) + "ms" +
+					" max=" + getMaxMillis() + "ms";
+		}
+	}
+}
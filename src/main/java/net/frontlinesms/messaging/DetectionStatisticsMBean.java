@@ -0,0 +1,21 @@
+package net.frontlinesms.messaging;
+
+/** Management interface for {@link DetectionStatistics}. */
+public interface DetectionStatisticsMBean {
+	/** @return number of port detections recorded */
+	long getDetectionCount();
+	/** @return number of recorded detections which found a device */
+	long getDetectedCount();
+	/** @return names of the phases and commands which have been timed */
+	String[] getTimerNames();
+	/** @return one line for each timer, giving count, failures, mean, percentiles and maximum */
+	String[] getSummary();
+	/** @return number of times the named phase or command failed */
+	long getFailureCount(String timer);
+	/** @return mean time, in milliseconds, taken by the named phase or command */
+	double getMeanMillis(String timer);
+	/** @return time, in milliseconds, within which the given percentage of the named phase or command completed */
+	long getPercentileMillis(String timer, double percentile);
+	/** Discards all recorded statistics. */
+	void reset();
+}
@@ -1,33 +1,223 @@
 package net.frontlinesms.messaging;
 
 import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Quick stub of a logger to send things to the command line.  You'll want to replace this with something proper. */
+/**
+ * Lightweight logger which sends things to the command line without blocking the calling thread.
+ * Messages below the current {@link Level} are discarded before they are formatted.  Callers
+ * which build messages by concatenation should check {@link #isDebugEnabled()} etc. first.
+ * <p>
+ * Messages are queued in a fixed-size ring buffer and written to the console by a background
+ * thread.  If the buffer is full, new messages are dropped and counted rather than waiting.
+ * <p>
+ * The level can be set with the system property {@value #LEVEL_PROPERTY}, or at runtime with
+ * {@link AllModemsDetector#setLogLevel(String)}.  Set the system property {@value #LOG4J_PROPERTY} to <code>true</code>
+ * to send messages to log4j instead of the console.
+ */
 class Logger {
-	/** Set this to <code>true</code> if you want logging to be printed. */
-	private static final boolean DO_PRINTING = true;
+	/** Logging levels, in increasing order of severity. */
+	enum Level { TRACE, DEBUG, INFO, WARN, OFF }
+
+	/** System property holding the initial {@link Level} */
+	static final String LEVEL_PROPERTY = "net.frontlinesms.messaging.log.level";
+	/** System property which, when <code>true</code>, sends all messages to log4j */
+	static final String LOG4J_PROPERTY = "net.frontlinesms.messaging.log4j";
+	/** Number of messages which can be waiting to be written before new messages are dropped */
+	private static final int BUFFER_SIZE = 4096;
+
+	/** Messages below this level are discarded */
+	private static volatile Level level = parseLevel(System.getProperty(LEVEL_PROPERTY), Level.INFO);
+	/** Writes messages to the console, or <code>null</code> if messages are sent to log4j */
+	private static final ConsoleAppender console = Boolean.getBoolean(LOG4J_PROPERTY) ? null : newConsole();
+
 	/** Description of this logger */
 	private final String description;
-	
+	/** The log4j logger messages are sent to, or <code>null</code> if they are written by {@link #appender} */
+	private final org.apache.log4j.Logger log4j;
+	/** Writes this logger's messages, or <code>null</code> if they are sent to log4j */
+	private final ConsoleAppender appender;
+
 	/** Create a new logger for the supplied class */
 	public Logger(Class<?> clazz) {
+		this(clazz, console);
+	}
+
+	/** Create a new logger for the supplied class, writing to the supplied appender.  Used in tests. */
+	Logger(Class<?> clazz, ConsoleAppender appender) {
 		this.description = clazz.getSimpleName();
+		this.appender = appender;
+		this.log4j = appender == null ? org.apache.log4j.Logger.getLogger(clazz) : null;
+	}
+
+//> LEVEL GUARDS
+	public boolean isTraceEnabled() { return isEnabled(Level.TRACE); }
+	public boolean isDebugEnabled() { return isEnabled(Level.DEBUG); }
+	public boolean isInfoEnabled() { return isEnabled(Level.INFO); }
+
+//> LOGGING METHODS
+	public void trace(String s) { out(Level.TRACE, s, null); }
+
+	public void debug(String s) { out(Level.DEBUG, s, null); }
+
+	public void info(String s) { out(Level.INFO, s, null); }
+	public void info(String message, Throwable t) { out(Level.INFO, message, t); }
+
+	public void warn(String message) { out(Level.WARN, message, null); }
+	public void warn(String message, Throwable t) { out(Level.WARN, message, t); }
+
+	private static boolean isEnabled(Level messageLevel) {
+		return messageLevel.ordinal() >= level.ordinal();
+	}
+
+	private void out(Level messageLevel, String message, Throwable t) {
+		if(!isEnabled(messageLevel)) return;
+		if(log4j != null) {
+			log4j.log(toLog4jLevel(messageLevel), message, t);
+		} else {
+			appender.append(new Entry(Thread.currentThread().getName(), description, messageLevel, message, t));
+		}
+	}
+
+//> STATIC ACCESSORS
+	static Level getLevel() {
+		return level;
+	}
+
+	static void setLevel(Level level) {
+		Logger.level = level;
+	}
+
+	/** @return the number of messages dropped because the buffer was full */
+	static long getDroppedCount() {
+		return console == null ? 0 : console.getDroppedCount();
+	}
+
+	/** Blocks until all messages logged so far have been written, or one second has passed. */
+	static void flush() {
+		if(console != null) console.flush(1000);
+	}
+
+//> STATIC HELPER METHODS
+	/** @return an appender writing to the console, which is flushed when the JVM exits */
+	private static ConsoleAppender newConsole() {
+		final ConsoleAppender console = new ConsoleAppender(BUFFER_SIZE, System.out, System.err);
+		console.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("Logger flush") {
+			public void run() {
+				console.flush(1000);
+			}
+		});
+		return console;
+	}
+
+	/** @return the named level, ignoring case */
+	static Level parseLevel(String value) {
+		return Level.valueOf(value.trim().toUpperCase());
+	}
+
+	private static Level parseLevel(String value, Level defaultLevel) {
+		if(value == null) return defaultLevel;
+		try {
+			return parseLevel(value);
+		} catch(IllegalArgumentException ex) {
+			return defaultLevel;
+		}
+	}
+
+	private static org.apache.log4j.Level toLog4jLevel(Level level) {
+		switch(level) {
+			case TRACE: return org.apache.log4j.Level.TRACE;
+			case DEBUG: return org.apache.log4j.Level.DEBUG;
+			case INFO: return org.apache.log4j.Level.INFO;
+			default: return org.apache.log4j.Level.WARN;
+		}
 	}
 
-	public void trace(String s) { out("TRACE", s); }
-	
-	public void debug(String s) { out("DEBUG", s); }
-	
-	public void info(String s) { out("INFO", s); }
-	public void info(String message, Throwable t) { out("INFO", message, t); }
+//> INNER CLASSES
+	/** A message waiting to be written. */
+	private static class Entry {
+		private final String threadName;
+		private final String description;
+		private final Level level;
+		private final String message;
+		private final Throwable throwable;
+
+		Entry(String threadName, String description, Level level, String message, Throwable throwable) {
+			this.threadName = threadName;
+			this.description = description;
+			this.level = level;
+			this.message = message;
+			this.throwable = throwable;
+		}
+	}
+
+	/** Writes queued messages to an output stream, or an error stream if they have a {@link Throwable}. */
+	static class ConsoleAppender implements Runnable {
+		private final BlockingQueue<Entry> buffer;
+		private final PrintStream out;
+		private final PrintStream err;
+		private final AtomicLong appended = new AtomicLong();
+		private final AtomicLong written = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		/** Value of {@link #dropped} last reported to the console */
+		private long droppedReported;
+
+		/** Creates an appender which queues messages until {@link #start()} is called. */
+		ConsoleAppender(int bufferSize, PrintStream out, PrintStream err) {
+			this.buffer = new ArrayBlockingQueue<Entry>(bufferSize);
+			this.out = out;
+			this.err = err;
+		}
+
+		/** Starts writing messages in a new daemon thread. */
+		void start() {
+			Thread writer = new Thread(this, "Logger");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		long getDroppedCount() {
+			return dropped.get();
+		}
+
+		void append(Entry e) {
+			appended.incrementAndGet();
+			if(!buffer.offer(e)) {
+				dropped.incrementAndGet();
+				written.incrementAndGet();
+			}
+		}
+
+		void flush(long timeout) {
+			long target = appended.get();
+			long deadline = System.currentTimeMillis() + timeout;
+			while(written.get() < target && System.currentTimeMillis() < deadline) {
+				Utils.sleep(1);
+			}
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					write(buffer.take());
+				} catch(InterruptedException ex) {
+					return;
+				}
+			}
+		}
 
-	public void warn(String message, Throwable t) { out("WARN", message, t); }
-	
-	private void out(String level, String message) { out(level, message, null); }
-	private void out(String level, String message, Throwable t) {
-		if(!DO_PRINTING) return;
-		PrintStream out = t == null ? System.out : System.err;
-		out.println("[" + Thread.currentThread().getName() + " : " + description + "] " + level + ": " + message);
-		if(t != null) t.printStackTrace();
+		private void write(Entry e) {
+			long dropped = this.dropped.get();
+			if(dropped != droppedReported) {
+				err.println("[Logger] WARN: " + (dropped - droppedReported) + " messages dropped.");
+				droppedReported = dropped;
+			}
+			PrintStream out = e.throwable == null ? this.out : err;
+			out.println("[" + e.threadName + " : " + e.description + "] " + e.level + ": " + e.message);
+			if(e.throwable != null) e.throwable.printStackTrace(out);
+			written.incrementAndGet();
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,19 +1,144 @@
 package net.frontlinesms.messaging;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
 import serial.*;
 
 /**
  * A commandline utility for detecting connected AT devices.
+ * <ul>
+ * <li>With no arguments, probes the ports and prints what was found.</li>
+ * <li><code>--daemon [port [token-file]]</code> probes the ports and serves the results to other
+ * processes until killed; see {@link DetectionServer}.  With a token file, only clients which can
+ * read the file are served.</li>
+ * <li><code>--client [port [token-file]]</code> prints the results from a running daemon, without
+ * touching the ports.</li>
+ * <li><code>--record &lt;directory&gt;</code> probes the ports as with no arguments, recording a
+ * transcript of each port's traffic in the directory; see {@link SerialTranscript}.</li>
+ * <li><code>--first &lt;n&gt; [criterion]</code> stops probing as soon as <code>n</code> devices
+ * matching the criterion are found, and prints them.  The criterion is <code>any</code>,
+ * <code>sms</code> (the default), <code>imsi=&lt;imsi&gt;</code> or <code>manufacturer=&lt;name&gt;</code>;
+ * see {@link AllModemsDetector#detectFirst(int, Predicate)}.</li>
+ * </ul>
  * @author Alex Anderson alex@frontlinesms.com
  */
 public class Main {
-	public static void main(String[] args) {
+	private static final String USAGE = "Usage: [--daemon [port [token-file]] | --client [port [token-file]]"
+			+ " | --record <directory> | --first <n> [any|sms|imsi=<imsi>|manufacturer=<name>]]";
+	
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		String mode = args.length > 0 ? args[0] : null;
+		if(("--record".equals(mode) || "--first".equals(mode)) && args.length < 2) {
+			System.err.println(USAGE);
+			return;
+		}
+		int serverPort = DetectionServer.DEFAULT_PORT;
+		int first = 0;
+		Predicate<ATDeviceDetector> criterion = null;
+		try {
+			if("--client".equals(mode) || "--daemon".equals(mode)) serverPort = getServerPort(args);
+			if("--first".equals(mode)) {
+				first = Integer.parseInt(args[1]);
+				if(first < 1) throw new IllegalArgumentException("Must wait for at least one device: " + first);
+				criterion = parseCriterion(args.length > 2 ? args[2] : "sms");
+			}
+		} catch(IllegalArgumentException ex) {
+			// includes NumberFormatException
+			System.err.println("Bad argument: " + ex.getMessage());
+			System.err.println(USAGE);
+			return;
+		}
+		if("--client".equals(mode)) {
+			DetectionClient client = new DetectionClient(serverPort);
+			client.setTokenFile(getTokenFile(args));
+			printReport(client.detectBlocking());
+			return;
+		}
+		
 		SerialClassFactory.init(SerialClassFactory.PACKAGE_JAVAXCOMM);
 		AllModemsDetector amd = new AllModemsDetector();
-		ATDeviceDetector[] detectors = amd.detectBlocking();
+		if("--daemon".equals(mode)) {
+			runDaemon(amd, serverPort, getTokenFile(args));
+			return;
+		}
+		if("--record".equals(mode)) {
+			File directory = new File(args[1]);
+			directory.mkdirs();
+			amd.setTranscriptDirectory(directory);
+		}
+		ATDeviceDetector[] detectors;
+		if("--first".equals(mode)) {
+			detectors = amd.detectFirst(first, criterion).get();
+		} else {
+			detectors = amd.detectBlocking();
+		}
+		// make sure log messages don't interleave with the report
+		Logger.flush();
+		if(detectors.length == 0) System.out.println("No matching devices detected.");
 		printReport(detectors);
 	}
 	
+	/** @return the port given after <code>--daemon</code> or <code>--client</code>, or {@link DetectionServer#DEFAULT_PORT} */
+	private static int getServerPort(String[] args) {
+		return args.length > 1 ? Integer.parseInt(args[1]) : DetectionServer.DEFAULT_PORT;
+	}
+	
+	/** @return the token file given after the port, or <code>null</code> if none was */
+	private static File getTokenFile(String[] args) {
+		return args.length > 2 ? new File(args[2]) : null;
+	}
+	
+	/**
+	 * @param criterion <code>any</code>, <code>sms</code> for devices which can send SMS,
+	 * <code>imsi=&lt;imsi&gt;</code> or <code>manufacturer=&lt;name&gt;</code>, ignoring case
+	 * @return a predicate matching detectors which meet the criterion
+	 */
+	static Predicate<ATDeviceDetector> parseCriterion(String criterion) {
+		if("any".equals(criterion)) return d -> true;
+		if("sms".equals(criterion)) return ATDeviceDetector::isSmsSendSupported;
+		if(criterion.startsWith("imsi=")) {
+			String imsi = criterion.substring("imsi=".length());
+			return d -> imsi.equals(d.getImsi());
+		}
+		if(criterion.startsWith("manufacturer=")) {
+			String manufacturer = criterion.substring("manufacturer=".length());
+			return d -> manufacturer.equalsIgnoreCase(d.getManufacturer());
+		}
+		throw new IllegalArgumentException("Unknown criterion: " + criterion);
+	}
+	
+	/** Serves detection results until the process is killed, keeping them current as ports come and go. */
+	private static void runDaemon(AllModemsDetector amd, int port, File tokenFile) throws IOException, InterruptedException {
+		DetectionServer server = new DetectionServer(amd, port);
+		if(tokenFile != null) server.setTokenFile(tokenFile);
+		server.start();
+		try {
+			amd.startWatching();
+		} catch(IOException ex) {
+			System.err.println("Not watching for port changes: " + ex.getMessage());
+		}
+		server.join();
+	}
+	
+	/** Prints a report to {@link System#out} detailing the devices a daemon has detected. */
+	private static void printReport(List<DetectionResult> results) {
+		for(DetectionResult r : results) {
+			System.out.println("---");
+			System.out.println("PORT   : " + r.getPortName());
+			if(r.isDetected()) {
+				System.out.println("SERIAL : " + r.getSerial());
+				System.out.println("BAUD   : " + r.getMaxBaudRate());
+			} else {
+				System.out.println("DETECTION FAILED");
+				System.out.println("> " + r.getExceptionMessage());
+			}
+		}
+	}
+	
 	/** Prints a report to {@link System#out} detailing the devices that were detected. */
 	private static void printReport(ATDeviceDetector[] completedDetectors) {
 		// All detectors are finished, so print a report
@@ -0,0 +1,92 @@
+package net.frontlinesms.messaging;
+
+/**
+ * The result of a single health check of a detected device, as made by
+ * {@link ATDeviceDetector#checkHealth()}.  Instances are immutable.
+ */
+public class ModemHealth {
+	/** Signal strength reported by <code>AT+CSQ</code> when it is not known or not detectable */
+	public static final int SIGNAL_UNKNOWN = 99;
+
+	private final String portName;
+	private final long timestamp;
+	private final boolean alive;
+	private final boolean busy;
+	private final int signalStrength;
+	private final int bitErrorRate;
+	private final String lockType;
+	private final String failureMessage;
+
+	ModemHealth(String portName, long timestamp, boolean alive, int signalStrength, int bitErrorRate, String lockType, String failureMessage) {
+		this(portName, timestamp, alive, false, signalStrength, bitErrorRate, lockType, failureMessage);
+	}
+
+	private ModemHealth(String portName, long timestamp, boolean alive, boolean busy, int signalStrength, int bitErrorRate, String lockType, String failureMessage) {
+		this.portName = portName;
+		this.timestamp = timestamp;
+		this.alive = alive;
+		this.busy = busy;
+		this.signalStrength = signalStrength;
+		this.bitErrorRate = bitErrorRate;
+		this.lockType = lockType;
+		this.failureMessage = failureMessage;
+	}
+
+	/** @return the health of a device which did not respond, or whose port could not be opened */
+	static ModemHealth dead(String portName, long timestamp, String failureMessage) {
+		return new ModemHealth(portName, timestamp, false, SIGNAL_UNKNOWN, SIGNAL_UNKNOWN, null, failureMessage);
+	}
+
+	/** @return the health of a device which could not be checked because its port is held open elsewhere */
+	static ModemHealth busy(String portName, long timestamp, String failureMessage) {
+		return new ModemHealth(portName, timestamp, false, true, SIGNAL_UNKNOWN, SIGNAL_UNKNOWN, null, failureMessage);
+	}
+
+//> ACCESSORS
+	public String getPortName() {
+		return portName;
+	}
+
+	/** @return the time the check was made, as from {@link System#currentTimeMillis()} */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** @return <code>true</code> if the device responded to <code>AT</code> */
+	public boolean isAlive() {
+		return alive;
+	}
+
+	/**
+	 * @return <code>true</code> if the port was held open elsewhere, e.g. by a handed-off connection,
+	 * so the device could not be checked.  Whether it is alive is then unknown.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/** @return the RSSI reported by <code>AT+CSQ</code>, from <code>0</code> to <code>31</code>, or {@link #SIGNAL_UNKNOWN} */
+	public int getSignalStrength() {
+		return signalStrength;
+	}
+
+	/** @return the bit error rate reported by <code>AT+CSQ</code>, from <code>0</code> to <code>7</code>, or {@link #SIGNAL_UNKNOWN} */
+	public int getBitErrorRate() {
+		return bitErrorRate;
+	}
+
+	/** @return the lock type, as {@link ATDeviceDetector#getLockType()}, or <code>null</code> if the SIM is ready */
+	public String getLockType() {
+		return lockType;
+	}
+
+	/** @return why the device is not alive or could not be checked, or <code>null</code> if it is alive */
+	public String getFailureMessage() {
+		return failureMessage;
+	}
+
+	public String toString() {
+		return portName + (alive ? " alive; signal: " + signalStrength + "," + bitErrorRate + "; lock: " + lockType
+				: busy ? " busy: " + failureMessage : " dead: " + failureMessage);
+	}
+}
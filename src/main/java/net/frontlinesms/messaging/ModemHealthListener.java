@@ -0,0 +1,19 @@
+package net.frontlinesms.messaging;
+
+/**
+ * Receives changes in the health of devices watched by a {@link ModemMonitor}.  Events are fired on
+ * the monitor's executor, so implementations should return quickly.
+ */
+public interface ModemHealthListener {
+	/**
+	 * Called when a device stops or starts responding, including after its first check.
+	 * @param previous the last health reported, or <code>null</code> if this is the first check
+	 */
+	void handleLivenessChanged(ATDeviceDetector detector, ModemHealth previous, ModemHealth current);
+
+	/** Called when a live device's signal strength has moved by at least the monitor's threshold. */
+	default void handleSignalQualityChanged(ATDeviceDetector detector, ModemHealth previous, ModemHealth current) {}
+
+	/** Called when a live device's SIM lock state changes, e.g. the SIM is removed or needs a PIN. */
+	default void handleLockStateChanged(ATDeviceDetector detector, ModemHealth previous, ModemHealth current) {}
+}
@@ -0,0 +1,210 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Periodically checks that detected devices are still responding, and reports changes in their
+ * liveness, signal quality and SIM lock state to a {@link ModemHealthListener}.
+ * <p>
+ * Every device is timed by the same scheduler, and the checks themselves are run on a shared
+ * executor, so monitoring more devices does not create more threads.  A device is not checked
+ * again while its previous check is still running.  Checks are spread across the interval, rather
+ * than all being made at once.
+ * <p>
+ * Each check reopens the device's port, so monitoring needs the port to be idle.  While the port is
+ * held open elsewhere, e.g. by a connection handed off after detection, checks find it
+ * {@link ModemHealth#isBusy() busy}: the result is recorded, but no change is reported until the
+ * device can be checked again.
+ * @see ATDeviceDetector#checkHealth()
+ */
+public class ModemMonitor {
+	/** Default time, in milliseconds, between checks of each device */
+	public static final long DEFAULT_INTERVAL = 60000;
+	/** Default change in signal strength which is reported */
+	public static final int DEFAULT_SIGNAL_THRESHOLD = 3;
+
+	/** Logger */
+	private final Logger log = new Logger(getClass());
+	/** Times the checks */
+	private final ScheduledExecutorService scheduler;
+	/** Runs the checks */
+	private final Executor executor;
+	/** The devices being monitored, keyed by port name */
+	private final Map<String, Monitored> monitored = new HashMap<String, Monitored>();
+	private volatile ModemHealthListener listener;
+	/** Time, in milliseconds, between checks of each device */
+	private volatile long interval = DEFAULT_INTERVAL;
+	/** Change in signal strength, since the last one reported, which is reported */
+	private volatile int signalThreshold = DEFAULT_SIGNAL_THRESHOLD;
+
+//> CONSTRUCTORS
+	/**
+	 * @param scheduler times the checks; see {@link DetectionExecutors#newScheduler()}
+	 * @param executor runs the checks, which block while waiting for devices to respond
+	 */
+	public ModemMonitor(ScheduledExecutorService scheduler, Executor executor) {
+		this.scheduler = scheduler;
+		this.executor = executor;
+	}
+
+//> ACCESSORS
+	public void setListener(ModemHealthListener listener) {
+		this.listener = listener;
+	}
+
+	/** Sets the time between checks of each device.  Applies to devices monitored afterwards. */
+	public void setInterval(long interval, TimeUnit unit) {
+		if(interval <= 0) throw new IllegalArgumentException("Interval must be positive: " + interval);
+		this.interval = unit.toMillis(interval);
+	}
+
+	/** Sets how far signal strength must move, from the last strength reported, before the change is reported. */
+	public void setSignalThreshold(int signalThreshold) {
+		this.signalThreshold = signalThreshold;
+	}
+
+	/** @return the result of the last check of the device on the named port, or <code>null</code> if it has not been checked */
+	public synchronized ModemHealth getHealth(String portName) {
+		Monitored m = monitored.get(portName);
+		return m == null ? null : m.health;
+	}
+
+	/** @return the names of the ports being monitored */
+	public synchronized Set<String> getPortNames() {
+		return new TreeSet<String>(monitored.keySet());
+	}
+
+//> MONITORING METHODS
+	/**
+	 * Starts monitoring a detected device.  If its port is already being monitored, the previous
+	 * detector is replaced, and the next change is reported against the last health reported.
+	 * Does nothing if no device was detected.
+	 */
+	public synchronized void monitor(ATDeviceDetector detector) {
+		if(!detector.isDetected()) return;
+		Monitored previous = monitored.remove(detector.getPortName());
+		if(previous != null) previous.cancel();
+		Monitored m = new Monitored(detector, previous == null ? null : previous.reported);
+		long interval = this.interval;
+		// spread the checks across the interval, so they do not all happen at once
+		long initialDelay = ThreadLocalRandom.current().nextLong(interval);
+		try {
+			m.timer = scheduler.scheduleWithFixedDelay(m::dispatch, initialDelay, interval, TimeUnit.MILLISECONDS);
+			monitored.put(detector.getPortName(), m);
+		} catch(RejectedExecutionException ex) {
+			log.info("Not monitoring port " + detector.getPortName() + "; scheduler has shut down.");
+		}
+	}
+
+	/** Stops monitoring the device on the named port. */
+	public synchronized void unmonitor(String portName) {
+		Monitored m = monitored.remove(portName);
+		if(m != null) m.cancel();
+	}
+
+	/** Stops monitoring every device.  The scheduler and executor are left running. */
+	public synchronized void stop() {
+		for(Monitored m : monitored.values()) m.cancel();
+		monitored.clear();
+	}
+
+//> INSTANCE HELPER METHODS
+	/** Records the result of a check, and reports what has changed since the last health reported. */
+	private void checked(Monitored m, ModemHealth current) {
+		ModemHealth previous;
+		synchronized(this) {
+			if(m.cancelled) return;
+			m.health = current;
+			// a busy port says nothing about the device behind it
+			if(current.isBusy()) return;
+			previous = m.reported;
+			if(!isChanged(previous, current)) return;
+			m.reported = current;
+		}
+		if(log.isDebugEnabled()) log.debug("Health changed: " + current);
+		ModemHealthListener listener = this.listener;
+		if(listener == null) return;
+		ATDeviceDetector d = m.detector;
+		try {
+			if(previous == null || previous.isAlive() != current.isAlive()) {
+				listener.handleLivenessChanged(d, previous, current);
+			}
+			if(previous != null && previous.isAlive() && current.isAlive()) {
+				if(isSignalChanged(previous, current)) listener.handleSignalQualityChanged(d, previous, current);
+				if(!Objects.equals(previous.getLockType(), current.getLockType())) listener.handleLockStateChanged(d, previous, current);
+			}
+		} catch(RuntimeException ex) {
+			log.warn("Health listener failed.", ex);
+		}
+	}
+
+	/** @return <code>true</code> if any change between the two is worth reporting */
+	private boolean isChanged(ModemHealth previous, ModemHealth current) {
+		if(previous == null || previous.isAlive() != current.isAlive()) return true;
+		if(!current.isAlive()) return false;
+		return isSignalChanged(previous, current) || !Objects.equals(previous.getLockType(), current.getLockType());
+	}
+
+	private boolean isSignalChanged(ModemHealth previous, ModemHealth current) {
+		int was = previous.getSignalStrength();
+		int now = current.getSignalStrength();
+		if(was == now) return false;
+		if(was == ModemHealth.SIGNAL_UNKNOWN || now == ModemHealth.SIGNAL_UNKNOWN) return true;
+		return Math.abs(now - was) >= signalThreshold;
+	}
+
+//> INNER CLASSES
+	/** A device being monitored.  Guarded by the enclosing {@link ModemMonitor}. */
+	private class Monitored {
+		private final ATDeviceDetector detector;
+		/** Ticks of the scheduler */
+		private ScheduledFuture<?> timer;
+		/** <code>true</code> while a check is queued or running */
+		private boolean checking;
+		private boolean cancelled;
+		/** The result of the last check */
+		private ModemHealth health;
+		/** The last health reported to the listener */
+		private ModemHealth reported;
+
+		Monitored(ATDeviceDetector detector, ModemHealth reported) {
+			this.detector = detector;
+			this.reported = reported;
+			this.health = reported;
+		}
+
+		/** Called by the scheduler.  Passes a check to the executor, unless one is already under way. */
+		void dispatch() {
+			synchronized(ModemMonitor.this) {
+				if(checking || cancelled) return;
+				checking = true;
+			}
+			try {
+				executor.execute(this::check);
+			} catch(RejectedExecutionException ex) {
+				log.info("Not checking port " + detector.getPortName() + "; executor has shut down.");
+				synchronized(ModemMonitor.this) {
+					checking = false;
+				}
+			}
+		}
+
+		private void check() {
+			try {
+				ModemHealth health = detector.checkHealth();
+				if(health != null) checked(this, health);
+			} finally {
+				synchronized(ModemMonitor.this) {
+					checking = false;
+				}
+			}
+		}
+
+		/** Stops further checks.  A check already running is allowed to finish, but not reported. */
+		void cancel() {
+			cancelled = true;
+			if(timer != null) timer.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which serial ports are worth probing, and in what order, from the {@link PortInfo} the
+ * operating system has about them.
+ * <ul>
+ * <li>A port matching an allow rule is always probed.</li>
+ * <li>Otherwise a port matching a deny rule is skipped.</li>
+ * <li>Otherwise a port is probed unless it is known to have no hardware behind it.</li>
+ * </ul>
+ * To probe only certain ports, deny <code>port=.*</code> and allow the ports wanted.
+ * <p>
+ * Rules can be given as strings: <code>driver=option</code>, <code>usb=12d1</code>,
+ * <code>usb=12d1:1001</code> or <code>port=/dev/ttyS\d+</code>, where the last is a regular
+ * expression matched against the whole port name.
+ */
+public class PortFilter {
+	/** Tests a port against a rule. */
+	public interface Rule {
+		boolean matches(PortInfo port);
+	}
+
+//> PRIORITIES
+	/** Priority of ports which are allowed explicitly, or look like modems */
+	public static final int PRIORITY_MODEM = 0;
+	/** Priority of USB-serial adapters, which may have a modem behind them */
+	public static final int PRIORITY_ADAPTER = 1;
+	/** Priority of ports nothing is known about */
+	public static final int PRIORITY_UNKNOWN = 2;
+	/** Priority of other ports, e.g. those on the motherboard */
+	public static final int PRIORITY_OTHER = 3;
+
+	/** Drivers used by USB modems */
+	private static final Set<String> MODEM_DRIVERS = new HashSet<String>(Arrays.asList(
+			"option", "qcserial", "qcaux", "sierra", "cdc_acm", "zte_ev"));
+	/** USB vendor IDs of modem manufacturers: Huawei, ZTE, Sierra, Telit, Quectel, SIMCom, Qualcomm, Novatel, Wavecom */
+	private static final Set<String> MODEM_VENDORS = new HashSet<String>(Arrays.asList(
+			"12d1", "19d2", "1199", "1bc7", "2c7c", "1e0e", "05c6", "1410", "114f"));
+	/** Drivers used by USB-serial adapters */
+	private static final Set<String> ADAPTER_DRIVERS = new HashSet<String>(Arrays.asList(
+			"ftdi_sio", "pl2303", "cp210x", "ch341"));
+
+	private final List<Rule> allowRules = new CopyOnWriteArrayList<Rule>();
+	private final List<Rule> denyRules = new CopyOnWriteArrayList<Rule>();
+
+//> CONFIGURATION
+	public PortFilter allow(Rule rule) {
+		allowRules.add(rule);
+		return this;
+	}
+
+	/** @see #parse(String) */
+	public PortFilter allow(String rule) {
+		return allow(parse(rule));
+	}
+
+	public PortFilter deny(Rule rule) {
+		denyRules.add(rule);
+		return this;
+	}
+
+	/** @see #parse(String) */
+	public PortFilter deny(String rule) {
+		return deny(parse(rule));
+	}
+
+//> FILTERING METHODS
+	/** @return <code>true</code> if the port should be probed */
+	public boolean accept(PortInfo port) {
+		if(matchesAny(allowRules, port)) return true;
+		if(matchesAny(denyRules, port)) return false;
+		return port.isPresent();
+	}
+
+	/** @return the priority of the port; ports with lower values should be probed first */
+	public int getPriority(PortInfo port) {
+		if(matchesAny(allowRules, port)) return PRIORITY_MODEM;
+		if(!port.isKnown()) return PRIORITY_UNKNOWN;
+		if(MODEM_DRIVERS.contains(port.getDriver()) || MODEM_VENDORS.contains(port.getVendorId())) return PRIORITY_MODEM;
+		if(ADAPTER_DRIVERS.contains(port.getDriver())) return PRIORITY_ADAPTER;
+		return PRIORITY_OTHER;
+	}
+
+//> RULES
+	/** @return a rule matching ports using the named kernel driver */
+	public static Rule driver(String driver) {
+		return port -> driver.equals(port.getDriver());
+	}
+
+	/** @return a rule matching ports of USB devices from the vendor, given as hex digits */
+	public static Rule usb(String vendorId) {
+		String vendor = vendorId.toLowerCase();
+		return port -> vendor.equals(port.getVendorId());
+	}
+
+	/** @return a rule matching ports of USB devices with the vendor and product IDs, given as hex digits */
+	public static Rule usb(String vendorId, String productId) {
+		Rule vendor = usb(vendorId);
+		String product = productId.toLowerCase();
+		return port -> vendor.matches(port) && product.equals(port.getProductId());
+	}
+
+	/** @return a rule matching ports whose whole name matches the pattern */
+	public static Rule portName(Pattern pattern) {
+		return port -> pattern.matcher(port.getPortName()).matches();
+	}
+
+	/**
+	 * Parses a rule given as a string, see {@link PortFilter}.
+	 * @throws IllegalArgumentException if the rule is not understood
+	 */
+	public static Rule parse(String rule) {
+		int equals = rule.indexOf('=');
+		if(equals == -1) throw new IllegalArgumentException("Rule has no '=': " + rule);
+		String key = rule.substring(0, equals).trim();
+		String value = rule.substring(equals + 1).trim();
+		if(key.equals("driver")) {
+			return driver(value);
+		} else if(key.equals("usb")) {
+			int colon = value.indexOf(':');
+			return colon == -1 ? usb(value) : usb(value.substring(0, colon), value.substring(colon + 1));
+		} else if(key.equals("port")) {
+			return portName(Pattern.compile(value));
+		} else {
+			throw new IllegalArgumentException("Unknown rule type '" + key + "' in rule: " + rule);
+		}
+	}
+
+//> HELPER METHODS
+	private static boolean matchesAny(List<Rule> rules, PortInfo port) {
+		for(Rule r : rules) {
+			if(r.matches(port)) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,71 @@
+package net.frontlinesms.messaging;
+
+/**
+ * What the operating system knows about the hardware behind a serial port, as read from sysfs on
+ * Linux.  On other systems nothing is known, and the port is assumed to be present.
+ */
+public class PortInfo {
+	private final String portName;
+	/** <code>false</code> if nothing could be found out about the port */
+	private final boolean known;
+	/** <code>false</code> if the port is known to have no hardware behind it */
+	private final boolean present;
+	private final String driver;
+	private final String usbDevice;
+	private final String vendorId;
+	private final String productId;
+
+	PortInfo(String portName, boolean known, boolean present, String driver, String usbDevice, String vendorId, String productId) {
+		this.portName = portName;
+		this.known = known;
+		this.present = present;
+		this.driver = driver;
+		this.usbDevice = usbDevice;
+		this.vendorId = vendorId;
+		this.productId = productId;
+	}
+
+	/** @return info for a port nothing is known about */
+	static PortInfo unknown(String portName) {
+		return new PortInfo(portName, false, true, null, null, null, null);
+	}
+
+//> ACCESSORS
+	public String getPortName() {
+		return portName;
+	}
+
+	/** @return <code>true</code> if the operating system had information about the port */
+	public boolean isKnown() {
+		return known;
+	}
+
+	/** @return <code>false</code> if the port is known to have no hardware behind it, e.g. an unused <code>ttyS</code> node */
+	public boolean isPresent() {
+		return present;
+	}
+
+	/** @return the name of the kernel driver, e.g. <code>option</code> or <code>cdc_acm</code>, or <code>null</code> if unknown */
+	public String getDriver() {
+		return driver;
+	}
+
+	/** @return the sysfs path of the USB device the port belongs to, or <code>null</code> if not a USB port */
+	public String getUsbDevice() {
+		return usbDevice;
+	}
+
+	/** @return the USB vendor ID as four lower-case hex digits, e.g. <code>12d1</code>, or <code>null</code> */
+	public String getVendorId() {
+		return vendorId;
+	}
+
+	/** @return the USB product ID as four lower-case hex digits, or <code>null</code> */
+	public String getProductId() {
+		return productId;
+	}
+
+	public String toString() {
+		return portName + " [driver: " + driver + "; usb: " + vendorId + ":" + productId + "; present: " + present + "]";
+	}
+}
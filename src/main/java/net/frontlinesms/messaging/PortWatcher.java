@@ -0,0 +1,124 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a device directory, normally <code>/dev</code>, for serial port nodes appearing and
+ * disappearing, and reports each change to an {@link AllModemsDetector}.  The sysfs tree is not
+ * watched because inotify does not report changes to it.
+ */
+class PortWatcher implements Runnable {
+	/** Directory which device nodes are created in */
+	static final String DEFAULT_DEVICE_DIRECTORY = "/dev";
+	/** Names of device nodes which may be serial ports */
+	static final Pattern DEFAULT_PORT_NAME_PATTERN = Pattern.compile("tty(USB|ACM|AMA|S)\\d+");
+	/** Time, in milliseconds, to let udev finish setting up new nodes before they are reported */
+	private static final long SETTLE_TIME = 500;
+	
+	/** Logger */
+	private final Logger log = new Logger(getClass());
+	private final Path directory;
+	private final Pattern portNamePattern;
+	private final AllModemsDetector target;
+	private WatchService watchService;
+	private Thread thread;
+	
+	PortWatcher(String directory, Pattern portNamePattern, AllModemsDetector target) {
+		this.directory = Paths.get(directory);
+		this.portNamePattern = portNamePattern;
+		this.target = target;
+	}
+	
+	/** Starts watching in a new daemon thread. */
+	synchronized void start() throws IOException {
+		watchService = directory.getFileSystem().newWatchService();
+		directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+		thread = new Thread(this, "PortWatcher: " + directory);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stops watching, and waits for the watching thread to finish.  No further changes will be
+	 * reported once this returns, unless it is called from that thread, e.g. by a listener.  Must not
+	 * be called while holding the target's lock, which the thread needs to report a change.
+	 */
+	void stop() {
+		Thread thread;
+		synchronized(this) {
+			thread = this.thread;
+			if(thread == null) return;
+			this.thread = null;
+			thread.interrupt();
+			try { watchService.close(); } catch(IOException ex) { log.warn("Error closing watch service.", ex); }
+		}
+		if(thread == Thread.currentThread()) return;
+		try {
+			thread.join();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public void run() {
+		try {
+			while(!Thread.currentThread().isInterrupted()) {
+				WatchKey key = watchService.take();
+				Thread.sleep(SETTLE_TIME);
+				for(WatchEvent<?> event : key.pollEvents()) {
+					if(Thread.currentThread().isInterrupted()) return;
+					if(event.kind() == OVERFLOW) {
+						log.info("Missed device events; resynchronising with " + directory);
+						resynchronise();
+					} else {
+						String name = event.context().toString();
+						if(!portNamePattern.matcher(name).matches()) continue;
+						String portName = directory.resolve(name).toString();
+						if(event.kind() == ENTRY_CREATE) {
+							log.info("Port added: " + portName);
+							target.portAdded(portName);
+						} else {
+							log.info("Port removed: " + portName);
+							target.portRemoved(portName);
+						}
+					}
+				}
+				if(!key.reset()) {
+					log.info("Device directory is no longer accessible: " + directory);
+					break;
+				}
+			}
+		} catch(InterruptedException ex) {
+			// stop watching
+		} catch(ClosedWatchServiceException ex) {
+			// stop watching
+		}
+	}
+	
+	/**
+	 * Reports every matching node currently present as added, and every known port whose node has
+	 * gone as removed, including other ports of a device detected on several.
+	 */
+	void resynchronise() {
+		File[] nodes = directory.toFile().listFiles();
+		if(nodes != null) for(File node : nodes) {
+			if(Thread.currentThread().isInterrupted()) return;
+			if(portNamePattern.matcher(node.getName()).matches()) {
+				target.portAdded(node.getPath());
+			}
+		}
+		for(ATDeviceDetector d : target.getAllDetectors()) {
+			if(Thread.currentThread().isInterrupted()) return;
+			File node = new File(d.getPortName());
+			if(directory.equals(node.toPath().getParent())
+					&& portNamePattern.matcher(node.getName()).matches()
+					&& !node.exists()) {
+				target.portRemoved(d.getPortName());
+			}
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+
+/**
+ * Response timeouts learned from the round-trip times of AT commands, remembered per device model.
+ * A device's timeout is a multiple of a high percentile of the round-trip times seen from its model,
+ * so fast devices are not waited on for long while slow ones are given the time they need.  Until
+ * enough round trips have been seen, no timeout is learned and detectors use their fixed defaults.
+ * <p>
+ * A learned timeout is only a first guess.  Detectors wait for a response which misses it with
+ * their default timeouts rather than give up on the device, and record the full round trip, so
+ * the timeout grows again for a device slower than those seen before.
+ * <p>
+ * Models are recognised by the port they were last detected on, as the model of a device is not
+ * known until after the handshake.
+ */
+public class ResponseTimeouts {
+	/** Lowest timeout, in milliseconds, that will be learned */
+	public static final long MIN_TIMEOUT = 200;
+	/** Highest timeout, in milliseconds, that will be learned */
+	public static final long MAX_TIMEOUT = Utils.COMMAND_TIMEOUT;
+	/** Timeouts are this multiple of the {@link #PERCENTILE}th round-trip time */
+	static final int MULTIPLIER = 4;
+	static final double PERCENTILE = 0.95;
+	/** Number of round trips which must be seen before a timeout is learned */
+	static final int MIN_SAMPLES = 3;
+
+	/** Round-trip times of each model, keyed by model name */
+	private final Map<String, Samples> samples = new HashMap<String, Samples>();
+	/** Key into {@link #samples} for the device last detected on each port, keyed by port name */
+	private final Map<String, String> models = new HashMap<String, String>();
+
+	/**
+	 * @param portName the port the device is attached to
+	 * @param observed round trips already seen during the current detection, or <code>null</code>
+	 * @return the timeout, in milliseconds, to wait for a response from the device on the port, or
+	 * <code>0</code> if not enough round trips have been seen to learn one
+	 */
+	public synchronized long getTimeout(String portName, Samples observed) {
+		String model = models.get(portName);
+		Samples learned = model == null ? null : samples.get(model);
+		Samples all = new Samples();
+		if(learned != null) all.addAll(learned);
+		if(observed != null) all.addAll(observed);
+		if(all.size() < MIN_SAMPLES) return 0;
+		long millis = MULTIPLIER * all.getPercentile(PERCENTILE) / 1000000;
+		return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, millis));
+	}
+
+	/**
+	 * Remembers the round trips seen from a device.
+	 * @param model the device's model, or <code>null</code> if not known, in which case round trips
+	 * are remembered against the port
+	 */
+	public synchronized void record(String portName, String model, Samples observed) {
+		String key = model != null ? model : "port:" + portName;
+		models.put(portName, key);
+		Samples s = samples.get(key);
+		if(s == null) samples.put(key, s = new Samples());
+		s.addAll(observed);
+	}
+
+	/** Forgets everything learned. */
+	public synchronized void clear() {
+		samples.clear();
+		models.clear();
+	}
+
+//> INNER CLASSES
+	/** The most recent round-trip times, in nanoseconds.  Not thread-safe. */
+	public static class Samples {
+		/** Number of round trips kept */
+		static final int CAPACITY = 64;
+
+		private final long[] nanos = new long[CAPACITY];
+		private int count;
+		/** Index the next round trip will be written to */
+		private int next;
+
+		public void add(long roundTripNanos) {
+			nanos[next] = roundTripNanos;
+			next = (next + 1) % CAPACITY;
+			if(count < CAPACITY) ++count;
+		}
+
+		void addAll(Samples other) {
+			for(int i=0; i<other.count; ++i) {
+				add(other.nanos[(other.next - other.count + i + CAPACITY) % CAPACITY]);
+			}
+		}
+
+		public int size() {
+			return count;
+		}
+
+		/** @return the round-trip time, in nanoseconds, which the supplied fraction of round trips took no longer than */
+		long getPercentile(double fraction) {
+			if(count == 0) return 0;
+			long[] sorted = new long[count];
+			for(int i=0; i<count; ++i) sorted[i] = nanos[(next - count + i + CAPACITY) % CAPACITY];
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(fraction * count) - 1;
+			return sorted[Math.max(0, index)];
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+
+/**
+ * The streams of an open serial port, read in bulk into a reusable buffer and written a whole
+ * command frame at a time, so that each command costs one or two calls into the serial driver
+ * rather than one for every byte.
+ * <p>
+ * Received bytes are taken from the buffer by the reader, e.g. {@link ATResponse}, without going
+ * through a stream a byte at a time: see {@link #fill()}, {@link #getBuffer()},
+ * {@link #getPosition()} and {@link #consume(int)}.  Bytes which arrive after the response being
+ * read, e.g. unsolicited result codes, stay buffered for the next read.  Instances are not
+ * thread-safe.
+ */
+public class SerialChannel implements Closeable {
+	/** Default size, in bytes, of the receive buffer */
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	private final InputStream in;
+	private final OutputStream out;
+	/** Bytes received from {@link #in} */
+	private final byte[] rx;
+	/** Offset of the first byte in {@link #rx} which has not been consumed */
+	private int rxPosition;
+	/** Offset after the last byte received into {@link #rx} */
+	private int rxLimit;
+	/** Reused to assemble each command frame written to {@link #out} */
+	private byte[] tx = new byte[64];
+	/** The command line last written, or <code>null</code> if none has been */
+	private String lastCommand;
+	/** Number of reads from {@link #in} */
+	private long readCount;
+	/** Number of writes to {@link #out} */
+	private long writeCount;
+	/** Bytes left in the buffer, followed by the rest of {@link #in} */
+	private final InputStream inputStream = new BufferedInput();
+
+	public SerialChannel(InputStream in, OutputStream out) {
+		this(in, out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param bufferSize size of the receive buffer.  A size of <code>1</code> reads one byte at a
+	 * time, so nothing beyond the end of a response is ever taken from the stream.
+	 */
+	SerialChannel(InputStream in, OutputStream out, int bufferSize) {
+		this.in = in;
+		this.out = out;
+		this.rx = new byte[bufferSize];
+	}
+
+//> RECEIVE METHODS
+	/**
+	 * Makes received bytes available in {@link #getBuffer()}, reading from the port in bulk only if
+	 * every byte already buffered has been consumed.  If nothing has arrived, this blocks for up to
+	 * the port's receive timeout.
+	 * @return the number of bytes available from {@link #getPosition()}, or <code>0</code> if none
+	 * arrived before the receive timeout expired or the stream ended
+	 */
+	public int fill() throws IOException {
+		if(rxPosition == rxLimit) {
+			rxPosition = rxLimit = 0;
+			++readCount;
+			int count = in.read(rx, 0, rx.length);
+			if(count > 0) rxLimit = count;
+		}
+		return rxLimit - rxPosition;
+	}
+
+	/** @return the receive buffer.  Bytes from {@link #getPosition()} to {@link #getLimit()} have been received but not consumed. */
+	public byte[] getBuffer() {
+		return rx;
+	}
+
+	public int getPosition() {
+		return rxPosition;
+	}
+
+	public int getLimit() {
+		return rxLimit;
+	}
+
+	/** Marks bytes from {@link #getPosition()} as consumed, so they are not returned again. */
+	public void consume(int count) {
+		if(count < 0 || count > rxLimit - rxPosition) throw new IllegalArgumentException("Cannot consume " + count + " of " + (rxLimit - rxPosition) + " bytes.");
+		rxPosition += count;
+	}
+
+	/** Discards all buffered bytes, and all bytes which can be read from the port without blocking. */
+	public void discardAvailable() throws IOException {
+		rxPosition = rxLimit = 0;
+		int available;
+		while((available = in.available()) > 0) {
+			++readCount;
+			if(in.read(rx, 0, Math.min(available, rx.length)) <= 0) break;
+		}
+	}
+
+//> SEND METHODS
+	/** Writes the supplied command followed by a \r character, in a single write. */
+	public void writeCommand(String command) throws IOException {
+		int length = command.length() + 1;
+		if(tx.length < length) tx = new byte[Math.max(length, tx.length << 1)];
+		for(int i=0; i<command.length(); ++i) {
+			tx[i] = (byte) command.charAt(i);
+		}
+		tx[length - 1] = '\r';
+		++writeCount;
+		lastCommand = command;
+		out.write(tx, 0, length);
+	}
+
+//> ACCESSORS
+	/** @return a stream returning any bytes left in the buffer, followed by the rest of the port's input */
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	/** @return the command line last written with {@link #writeCommand(String)}, without its \r, or <code>null</code> if none has been */
+	public String getLastCommand() {
+		return lastCommand;
+	}
+
+	/** @return the number of reads made from the port's input stream */
+	public long getReadCount() {
+		return readCount;
+	}
+
+	/** @return the number of writes made to the port's output stream */
+	public long getWriteCount() {
+		return writeCount;
+	}
+
+	/** Closes both streams.  Buffered bytes are discarded. */
+	public void close() throws IOException {
+		rxPosition = rxLimit = 0;
+		try {
+			if(out != null) out.close();
+		} finally {
+			in.close();
+		}
+	}
+
+//> INNER CLASSES
+	/** Reads from the buffer first, then from the port. */
+	private class BufferedInput extends InputStream {
+		public int read() throws IOException {
+			if(rxPosition < rxLimit) return rx[rxPosition++] & 0xFF;
+			return in.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len == 0) return 0;
+			int buffered = rxLimit - rxPosition;
+			if(buffered == 0) return in.read(b, off, len);
+			int count = Math.min(buffered, len);
+			System.arraycopy(rx, rxPosition, b, off, count);
+			rxPosition += count;
+			return count;
+		}
+
+		public int available() throws IOException {
+			return rxLimit - rxPosition + in.available();
+		}
+
+		public void close() throws IOException {
+			SerialChannel.this.close();
+		}
+	}
+}
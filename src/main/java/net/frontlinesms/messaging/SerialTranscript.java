@@ -0,0 +1,453 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timestamped traffic in both directions between the detector and a device, so that devices seen
+ * in the field can be reproduced without the hardware.
+ * <p>
+ * A {@link Recorder} wraps the streams of an open port and writes each read and write to a text
+ * file; see {@link ATDeviceDetector#setTranscriptFile(File)}.  A {@link Replay} plays a transcript
+ * back through a pair of streams, at the original speed or faster, for use in tests and
+ * benchmarks.  Each line of a transcript is either a comment, or one event:
+ * <pre>
+ * # comment
+ * &lt;microseconds since the port was opened&gt; &lt;direction&gt; &lt;bytes&gt;
+ * </pre>
+ * where direction is <code>&gt;</code> for bytes sent to the device and <code>&lt;</code> for
+ * bytes received from it.  Bytes outside printable ASCII, and backslashes, are escaped as
+ * <code>\r</code>, <code>\n</code>, <code>\\</code> or <code>\xHH</code>.  Instances are immutable.
+ */
+public class SerialTranscript {
+	/** Direction of bytes sent to the device */
+	public static final char SENT = '>';
+	/** Direction of bytes received from the device */
+	public static final char RECEIVED = '<';
+
+	private final List<Event> events;
+
+	SerialTranscript(List<Event> events) {
+		this.events = Collections.unmodifiableList(new ArrayList<Event>(events));
+	}
+
+//> ACCESSORS
+	/** @return the events, in the order they were recorded */
+	public List<Event> getEvents() {
+		return events;
+	}
+
+	/**
+	 * @param speed how much faster than recorded to deliver the device's bytes, e.g. <code>1</code>
+	 * for the original timing, or {@link Double#POSITIVE_INFINITY} to deliver them as soon as the
+	 * commands preceding them have been written
+	 * @return a new replay of this transcript
+	 */
+	public Replay newReplay(double speed) {
+		return new Replay(events, speed);
+	}
+
+//> STATIC FACTORIES
+	/** Reads a transcript from a file written by a {@link Recorder}. */
+	public static SerialTranscript load(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.ISO_8859_1);
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a transcript in the format written by a {@link Recorder}.
+	 * @throws IOException if a line is neither a comment nor an event
+	 */
+	public static SerialTranscript parse(Reader reader) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+		List<Event> events = new ArrayList<Event>();
+		String line;
+		int lineNumber = 0;
+		while((line = in.readLine()) != null) {
+			++lineNumber;
+			if(line.length() == 0 || line.charAt(0) == '#') continue;
+			int space = line.indexOf(' ');
+			if(space < 0 || line.length() < space + 3 || line.charAt(space + 2) != ' ') {
+				throw new IOException("Bad transcript event at line " + lineNumber + ": " + line);
+			}
+			char direction = line.charAt(space + 1);
+			if(direction != SENT && direction != RECEIVED) {
+				throw new IOException("Bad direction at line " + lineNumber + ": " + direction);
+			}
+			try {
+				events.add(new Event(Long.parseLong(line.substring(0, space)), direction, unescape(line.substring(space + 3))));
+			} catch(IllegalArgumentException ex) {
+				throw new IOException("Bad transcript event at line " + lineNumber + ": " + line, ex);
+			}
+		}
+		return new SerialTranscript(events);
+	}
+
+//> STATIC HELPER METHODS
+	/** @return the bytes, with anything outside printable ASCII escaped */
+	static String escape(byte[] bytes, int offset, int length) {
+		StringBuilder s = new StringBuilder(length);
+		for(int i=offset; i<offset+length; ++i) {
+			int b = bytes[i] & 0xFF;
+			if(b == '\r') s.append("\\r");
+			else if(b == '\n') s.append("\\n");
+			else if(b == '\\') s.append("\\\\");
+			else if(b < 0x20 || b > 0x7E) s.append(String.format("\\x%02X", b));
+			else s.append((char) b);
+		}
+		return s.toString();
+	}
+
+	/** @throws IllegalArgumentException if an escape sequence is not recognised */
+	static byte[] unescape(String s) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(s.length());
+		for(int i=0; i<s.length(); ++i) {
+			char c = s.charAt(i);
+			if(c != '\\') {
+				bytes.write(c);
+			} else if(++i == s.length()) {
+				throw new IllegalArgumentException("Incomplete escape at end of: " + s);
+			} else if(s.charAt(i) == 'r') {
+				bytes.write('\r');
+			} else if(s.charAt(i) == 'n') {
+				bytes.write('\n');
+			} else if(s.charAt(i) == '\\') {
+				bytes.write('\\');
+			} else if(s.charAt(i) == 'x' && i + 2 < s.length()) {
+				bytes.write(Integer.parseInt(s.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else {
+				throw new IllegalArgumentException("Unknown escape \\" + s.charAt(i) + " in: " + s);
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+//> INNER CLASSES
+	/** Bytes sent or received in a single call to the serial driver. */
+	public static class Event {
+		private final long time;
+		private final char direction;
+		private final byte[] bytes;
+
+		Event(long time, char direction, byte[] bytes) {
+			this.time = time;
+			this.direction = direction;
+			this.bytes = bytes;
+		}
+
+		/** @return microseconds between the port being opened and this event */
+		public long getTime() {
+			return time;
+		}
+
+		/** @return {@link SerialTranscript#SENT} or {@link SerialTranscript#RECEIVED} */
+		public char getDirection() {
+			return direction;
+		}
+
+		public boolean isSent() {
+			return direction == SENT;
+		}
+
+		public byte[] getBytes() {
+			return bytes.clone();
+		}
+
+		/** @return the event as a line of a transcript, without the line terminator */
+		public String toString() {
+			return time + " " + direction + " " + escape(bytes, 0, bytes.length);
+		}
+	}
+
+	/**
+	 * Writes the traffic on a port's streams to a transcript.  Each event is flushed as it happens,
+	 * so the transcript survives the JVM dying mid-detection.  Closing the wrapped input stream
+	 * closes the recorder.  Problems writing the transcript are logged once, and stop recording
+	 * without affecting the port.
+	 */
+	public static class Recorder implements Closeable {
+		/** Logger */
+		private final Logger log = new Logger(getClass());
+		/** Where the transcript is written, or <code>null</code> once closed or failed.  Guarded by <code>this</code>. */
+		private Writer out;
+		private final long start = System.nanoTime();
+
+		/**
+		 * @param out where the transcript is written
+		 * @param header written as a comment at the top of the transcript, e.g. the port's name;
+		 * may be <code>null</code>
+		 */
+		public Recorder(Writer out, String header) throws IOException {
+			this.out = new BufferedWriter(out);
+			if(header != null) {
+				for(String line : header.split("\n")) this.out.write("# " + line + "\n");
+				this.out.flush();
+			}
+		}
+
+		/** Creates a recorder writing to a file, replacing anything it already contains. */
+		public static Recorder create(File file, String header) throws IOException {
+			return new Recorder(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.ISO_8859_1), header);
+		}
+
+		/** @return a stream reading from the supplied one, and recording what is read */
+		public InputStream wrap(InputStream in) {
+			return new FilterInputStream(in) {
+				public int read() throws IOException {
+					int b = in.read();
+					if(b >= 0) record(RECEIVED, new byte[] { (byte) b }, 0, 1);
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					int count = in.read(b, off, len);
+					if(count > 0) record(RECEIVED, b, off, count);
+					return count;
+				}
+
+				public long skip(long n) throws IOException {
+					byte[] skipped = new byte[(int) Math.min(n, 1024)];
+					return Math.max(0, read(skipped, 0, skipped.length));
+				}
+
+				public void close() throws IOException {
+					try {
+						in.close();
+					} finally {
+						Recorder.this.close();
+					}
+				}
+			};
+		}
+
+		/** @return a stream writing to the supplied one, and recording what is written */
+		public OutputStream wrap(OutputStream out) {
+			return new FilterOutputStream(out) {
+				public void write(int b) throws IOException {
+					out.write(b);
+					record(SENT, new byte[] { (byte) b }, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					record(SENT, b, off, len);
+				}
+			};
+		}
+
+		private synchronized void record(char direction, byte[] bytes, int offset, int length) {
+			if(out == null) return;
+			long time = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+			try {
+				out.write(time + " " + direction + " " + escape(bytes, offset, length) + "\n");
+				out.flush();
+			} catch(IOException ex) {
+				log.warn("Stopped recording transcript.", ex);
+				closeQuietly();
+			}
+		}
+
+		public synchronized void close() {
+			closeQuietly();
+		}
+
+		private void closeQuietly() {
+			if(out == null) return;
+			try {
+				out.close();
+			} catch(IOException ex) {
+				log.info("Error closing transcript.", ex);
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * Plays a transcript back as if it were a device.  Received bytes are not delivered until the
+	 * bytes sent before them in the transcript have been written to {@link #getOutputStream()}, and
+	 * then only after the delay recorded between the latest of those writes and the bytes arriving,
+	 * divided by the speed.  The device's timing relative to each command is therefore kept even
+	 * if the code under test is faster or slower than the code which was recorded.
+	 * <p>
+	 * Reads block for up to the read timeout, and then return <code>0</code> as a serial port's
+	 * stream does when its receive timeout expires.  Once the transcript is exhausted, the device
+	 * goes silent.  Bytes written are compared with those sent in the transcript; see
+	 * {@link #getDivergence()}.
+	 */
+	public static class Replay {
+		/** Default time, in milliseconds, a read waits for bytes to arrive */
+		public static final int DEFAULT_READ_TIMEOUT = 50;
+
+		/** Bytes received from the device, in order */
+		private final byte[][] received;
+		/** Number of bytes which must be written before each of {@link #received} can be delivered */
+		private final long[] sentBefore;
+		/** Nanoseconds between the latest write before each of {@link #received}, and its arrival */
+		private final long[] delay;
+		/** Every byte sent to the device, in order */
+		private final byte[] sent;
+		/** When each of {@link #received} could start its delay, or <code>0</code> if it cannot yet. Guarded by <code>this</code>. */
+		private final long[] anchor;
+		private final InputStream in = new ReplayInputStream();
+		private final OutputStream out = new ReplayOutputStream();
+		private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+		/** Number of bytes written.  Guarded by <code>this</code>. */
+		private long written;
+		/** Offset of the first written byte which differs from the transcript, or <code>-1</code>.  Guarded by <code>this</code>. */
+		private long divergence = -1;
+		/** Index of the next of {@link #received} to deliver.  Guarded by <code>this</code>. */
+		private int next;
+		/** Offset within it of the next byte to deliver.  Guarded by <code>this</code>. */
+		private int nextOffset;
+		/** Index of the first of {@link #received} whose {@link #anchor} has not been set.  Guarded by <code>this</code>. */
+		private int nextAnchor;
+
+		Replay(List<Event> events, double speed) {
+			if(!(speed > 0)) throw new IllegalArgumentException("Speed must be positive: " + speed);
+			List<byte[]> received = new ArrayList<byte[]>();
+			List<Long> sentBefore = new ArrayList<Long>();
+			List<Long> delay = new ArrayList<Long>();
+			ByteArrayOutputStream sent = new ByteArrayOutputStream();
+			long lastSentTime = 0;
+			for(Event e : events) {
+				if(e.isSent()) {
+					sent.write(e.bytes, 0, e.bytes.length);
+					lastSentTime = e.time;
+				} else {
+					received.add(e.bytes);
+					sentBefore.add((long) sent.size());
+					delay.add((long) (TimeUnit.MICROSECONDS.toNanos(Math.max(0, e.time - lastSentTime)) / speed));
+				}
+			}
+			this.received = received.toArray(new byte[received.size()][]);
+			this.sent = sent.toByteArray();
+			this.sentBefore = new long[this.received.length];
+			this.delay = new long[this.received.length];
+			this.anchor = new long[this.received.length];
+			for(int i=0; i<this.received.length; ++i) {
+				this.sentBefore[i] = sentBefore.get(i);
+				this.delay[i] = delay.get(i);
+			}
+			anchor(System.nanoTime());
+		}
+
+	//> ACCESSORS
+		/** @return the device's output: the bytes received in the transcript */
+		public InputStream getInputStream() {
+			return in;
+		}
+
+		/** @return the device's input, which should be sent the bytes sent in the transcript */
+		public OutputStream getOutputStream() {
+			return out;
+		}
+
+		/** @param readTimeout time, in milliseconds, a read waits for bytes to arrive before returning <code>0</code> */
+		public void setReadTimeout(int readTimeout) {
+			this.readTimeout = readTimeout;
+		}
+
+		/**
+		 * @return the offset of the first byte written which differs from the bytes sent in the
+		 * transcript, or <code>-1</code> if none has.  If this is not <code>-1</code>, the code
+		 * under test has behaved differently to the code which was recorded, and the rest of the
+		 * replay may not make sense.
+		 */
+		public synchronized long getDivergence() {
+			return divergence;
+		}
+
+		/** @return <code>true</code> if every byte received in the transcript has been read */
+		public synchronized boolean isFinished() {
+			return next == received.length;
+		}
+
+	//> INSTANCE HELPER METHODS
+		/** Starts the delay of each event whose preceding bytes have now all been written. */
+		private void anchor(long now) {
+			while(nextAnchor < received.length && sentBefore[nextAnchor] <= written) {
+				anchor[nextAnchor++] = now;
+			}
+		}
+
+		private synchronized void write(byte[] b, int off, int len) {
+			for(int i=0; i<len && divergence < 0; ++i) {
+				if(written + i >= sent.length || sent[(int) (written + i)] != b[off + i]) divergence = written + i;
+			}
+			written += len;
+			anchor(System.nanoTime());
+			notifyAll();
+		}
+
+		/** @return nanoseconds until the next bytes are due, <code>0</code> if they are due now, or <code>-1</code> if not known */
+		private long untilDue(long now) {
+			if(next == received.length || next >= nextAnchor) return -1;
+			return Math.max(0, anchor[next] + delay[next] - now);
+		}
+
+		private synchronized int read(byte[] b, int off, int len) throws InterruptedIOException {
+			if(len == 0) return 0;
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(readTimeout);
+			long now;
+			long wait;
+			while((wait = untilDue(now = System.nanoTime())) != 0) {
+				long remaining = deadline - now;
+				if(remaining <= 0) return 0;
+				if(wait > 0) remaining = Math.min(remaining, wait);
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch(InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			byte[] bytes = received[next];
+			int count = Math.min(len, bytes.length - nextOffset);
+			System.arraycopy(bytes, nextOffset, b, off, count);
+			nextOffset += count;
+			if(nextOffset == bytes.length) {
+				++next;
+				nextOffset = 0;
+			}
+			return count;
+		}
+
+		private synchronized int available() {
+			if(untilDue(System.nanoTime()) != 0) return 0;
+			return received[next].length - nextOffset;
+		}
+
+	//> INNER CLASSES
+		private class ReplayInputStream extends InputStream {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return Replay.this.read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return Replay.this.read(b, off, len);
+			}
+
+			public int available() {
+				return Replay.this.available();
+			}
+		}
+
+		private class ReplayOutputStream extends OutputStream {
+			public void write(int b) {
+				Replay.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				Replay.this.write(b, off, len);
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Reads what the Linux kernel knows about serial ports from sysfs.  On other systems, or for ports
+ * which are not in sysfs, nothing is known.
+ */
+class Sysfs {
+	/** Where sysfs is normally mounted */
+	static final String DEFAULT_ROOT = "/sys";
+	/** Contents of a serial core port's <code>type</code> file when there is no UART behind it */
+	private static final String PORT_UNKNOWN = "0";
+
+	/** Root of the sysfs tree */
+	private final File root;
+
+	Sysfs(File root) {
+		this.root = root;
+	}
+
+	/** @return what is known about the port, e.g. <code>/dev/ttyUSB0</code> */
+	PortInfo getPortInfo(String portName) {
+		File tty = getTty(portName);
+		if(!tty.isDirectory()) return PortInfo.unknown(portName);
+		File device = getDevice(portName);
+		// ttys without a device are virtual, and those with a UART type of 0 have no hardware
+		boolean present = device != null && !PORT_UNKNOWN.equals(read(new File(tty, "type")));
+		String driver = device == null ? null : getLinkName(new File(device, "driver"));
+		String usbDevice = getUsbDevice(portName);
+		String vendorId = usbDevice == null ? null : read(new File(usbDevice, "idVendor"));
+		String productId = usbDevice == null ? null : read(new File(usbDevice, "idProduct"));
+		return new PortInfo(portName, true, present, driver, usbDevice, vendorId, productId);
+	}
+
+	/**
+	 * Gets the USB device a port belongs to.  Multi-port modems expose several ports with the same
+	 * USB device.
+	 * @param portName e.g. <code>/dev/ttyUSB0</code>
+	 * @return the sysfs path of the USB device, or <code>null</code> if the port is not a USB port
+	 */
+	String getUsbDevice(String portName) {
+		File device = getDevice(portName);
+		if(device == null) return null;
+		// the port's device is a USB interface; the USB device is the nearest ancestor with a vendor ID
+		for(File f=device; f!=null && !f.equals(root); f=f.getParentFile()) {
+			if(new File(f, "idVendor").isFile()) return f.getPath();
+		}
+		return null;
+	}
+
+//> HELPER METHODS
+	private File getTty(String portName) {
+		return new File(root, "class/tty/" + new File(portName).getName());
+	}
+
+	/** @return the port's device directory with symbolic links resolved, or <code>null</code> if it has none */
+	private File getDevice(String portName) {
+		File device = new File(getTty(portName), "device");
+		if(!device.exists()) return null;
+		try {
+			return device.getCanonicalFile();
+		} catch(IOException ex) {
+			return null;
+		}
+	}
+
+	/** @return the name of the file a symbolic link points to, or <code>null</code> if it does not exist */
+	private static String getLinkName(File link) {
+		if(!link.exists()) return null;
+		try {
+			return link.getCanonicalFile().getName();
+		} catch(IOException ex) {
+			return null;
+		}
+	}
+
+	/** @return the trimmed contents of a sysfs attribute, or <code>null</code> if it cannot be read */
+	private static String read(File attribute) {
+		if(!attribute.isFile()) return null;
+		try {
+			return new String(Files.readAllBytes(attribute.toPath()), StandardCharsets.US_ASCII).trim();
+		} catch(IOException ex) {
+			return null;
+		}
+	}
+}
@@ -3,6 +3,9 @@ package net.frontlinesms.messaging;
 import java.io.*;
 
 class Utils {
+	/** Hard deadline, in milliseconds, for the complete response to a single command. */
+	public static final long COMMAND_TIMEOUT = 5000;
+	
 	/** Calls {@link Thread#sleep(long)} and ignores {@link InterruptedException}s thrown. */
 	public static final void sleep(long millis) {
 		try {
@@ -13,53 +16,66 @@ class Utils {
 	}
 	
 	/**
-	 * Read all bytes available on the input stream, and concatenates them into a string.
-	 * N.B. This casts bytes read directly to characters.
+	 * Writes an AT command to the serial driver and reads the response.  The supplied
+	 * command will be prepended with "AT+" and appended with a \r.
+	 * @param command
+	 * @param response buffer to read the response into; its previous contents are discarded
+	 * @return the response to the issued command
+	 * @throws IOException If there was an issue contacting the serial port
 	 */
-	public static final String readAll(InputStream in) throws IOException {
-		StringBuilder bob = new StringBuilder();
-		int c;
-		while((c = in.read()) != -1) {
-			bob.append((char) c);
-		}
-		return bob.toString();
+	public static ATResponse executeAtCommand(InputStream in, OutputStream out, String command, ATResponse response) throws IOException {
+		return executeAtCommand(in, out, command, response, COMMAND_TIMEOUT);
 	}
 	
-	/** Writes the supplied command to the output stream, followed by a \r character */
-	public static final void writeCommand(OutputStream out, String command) throws IOException {
-		for(char c : command.toCharArray()) out.write(c);
-		out.write('\r');
+	/**
+	 * As {@link #executeAtCommand(InputStream, OutputStream, String, ATResponse)}, giving up on
+	 * the response after the supplied timeout rather than {@link #COMMAND_TIMEOUT}.
+	 * @param timeout the maximum time, in milliseconds, to wait for the complete response
+	 */
+	public static ATResponse executeAtCommand(InputStream in, OutputStream out, String command, ATResponse response, long timeout) throws IOException {
+		return executeAtCommand(new SerialChannel(in, out, 1), command, response, timeout);
 	}
 	
-	/** @return <code>true</code> if the response contains "OK" */
-	public static final boolean isResponseOk(String response) {
-		return response.indexOf("OK") != -1;
+	/**
+	 * As {@link #executeAtCommand(InputStream, OutputStream, String, ATResponse, long)}, writing
+	 * the command and reading the response in bulk through the channel.
+	 */
+	public static ATResponse executeAtCommand(SerialChannel channel, String command, ATResponse response, long timeout) throws IOException {
+		channel.writeCommand("AT+" + command);
+		return response.read(channel, timeout);
 	}
 	
-	/** @return the response with the original command, "OK" and all trailing and leading whitespace removed */
-	public static final String trimResponse(String command, String response) {
-		return response.replace("OK", "").replace(command, "").trim();
-	}
-
 	/**
-	 * Writes an AT command to the serial driver and retrieves the response.  The supplied
-	 * command will be prepended with "AT+" and appended with a \r.  If requested, any
-	 * presence of the command in the response will be removed.
-	 * @param command
-	 * @param removeCommand If set true, the command is removed from the response.
-	 * @return the response to the issued command
+	 * Issues several AT commands concatenated on a single command line, e.g.
+	 * <code>AT+CGSN;+CGMI;+CGMM</code>, and splits the combined response into one value per command.
+	 * This only works for commands which each respond with exactly one line of information.
+	 * @param response buffer to read the response into; its previous contents are discarded
+	 * @param commands the commands to issue, without the leading "AT+"
+	 * @return the response to each command, in order, or <code>null</code> if the device rejected
+	 * the command line or the response could not be split
 	 * @throws IOException If there was an issue contacting the serial port
 	 */
-	public static String executeAtCommand(InputStream in, OutputStream out, String command, boolean removeCommand) throws IOException {
-		// Issue the command
-		writeCommand(out, "AT+" + command);
-		String response = readAll(in);
-
-		// If requested, remove the command we issued from the response string
-		if(removeCommand) {
-			response = response.replaceAll("\\s*(AT)?\\+" + command + "\\s*", "");
+	public static String[] executeBatchedAtCommand(InputStream in, OutputStream out, ATResponse response, String... commands) throws IOException {
+		return executeBatchedAtCommand(new SerialChannel(in, out, 1), response, commands);
+	}
+	
+	/** @see #executeBatchedAtCommand(InputStream, OutputStream, ATResponse, String...) */
+	public static String[] executeBatchedAtCommand(SerialChannel channel, ATResponse response, String... commands) throws IOException {
+		StringBuilder commandLine = new StringBuilder();
+		for(String command : commands) {
+			if(commandLine.length() > 0) commandLine.append(";+");
+			commandLine.append(command);
 		}
-
-		return response;
+		executeAtCommand(channel, commandLine.toString(), response, COMMAND_TIMEOUT);
+		if(!response.isOk()) return null;
+		
+		String[] values = new String[commands.length];
+		int found = 0;
+		for(int i=0; i<response.getLineCount(); ++i) {
+			if(response.getLineType(i) != ATResponse.INFORMATION) continue;
+			if(found == values.length) return null;
+			values[found++] = response.getLine(i);
+		}
+		return found == values.length ? values : null;
 	}
-}
\ No newline at end of file
+}
@@ -30,7 +30,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream("ERROR: 1");
 		
 		// when
-		String response = d.getOptional(in, out, "RANDOM_COMMAND");
+		String response = d.getOptional(channel(), "RANDOM_COMMAND");
 		
 		// then
 		assertNull(response);
@@ -41,7 +41,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream("asdf\rOK");
 		
 		// when
-		String response = d.getOptional(in, out, "RANDOM_COMMAND");
+		String response = d.getOptional(channel(), "RANDOM_COMMAND");
 		
 		// then
 		assertEquals("asdf", response);
@@ -52,7 +52,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream("012345678901234\r\nOK");
 
 		// when
-		String response = d.getImsi(in, out);
+		String response = d.getImsi(channel());
 
 		// then
 		assertEquals("012345678901234", response);
@@ -78,7 +78,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream(modemOutput);
 
 		// when
-		String actualResponse = d.getSerial(in, out);
+		String actualResponse = d.getSerial(channel());
 
 		// then
 		assertEquals(expectedResponse, actualResponse);
@@ -103,7 +103,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream(modemOutput);
 		
 		// when
-		String actualResponse = d.getManufacturer(in, out);
+		String actualResponse = d.getManufacturer(channel());
 		
 		// then
 		assertEquals(expectedResponse, actualResponse);
@@ -128,7 +128,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream(modemOutput);
 		
 		// when
-		String actualResponse = d.getLockType(in, out);
+		String actualResponse = d.getLockType(channel());
 		
 		// then
 		assertEquals(expectedResponse, actualResponse);
@@ -151,7 +151,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream(modemOutput);
 		
 		// when
-		String actualResponse = d.getModel(in, out);
+		String actualResponse = d.getModel(channel());
 		
 		// then
 		assertEquals(expectedResponse, actualResponse);
@@ -162,7 +162,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream("\"Phone\", \"0712345678\",129\rOK");
 		
 		// when
-		String response = d.getPhoneNumber(in, out);
+		String response = d.getPhoneNumber(channel());
 		
 		// then
 		assertEquals("0712345678", response);
@@ -173,7 +173,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream("\"Phone\", \"+44712345678\",129\rOK");
 		
 		// when
-		String response = d.getPhoneNumber(in, out);
+		String response = d.getPhoneNumber(channel());
 		
 		// then
 		assertEquals("+44712345678", response);
@@ -184,7 +184,7 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 		in = mockInputStream("ERROR");
 		
 		// when
-		String response = d.getPhoneNumber(in, out);
+		String response = d.getPhoneNumber(channel());
 		
 		// then
 		assertEquals(null, response);
@@ -249,6 +249,10 @@ public class ATDeviceDetectorTest extends BaseTestCase {
 	}
 
 //> TEST SETUP METHODS
+	private SerialChannel channel() {
+		return new SerialChannel(in, out);
+	}
+
 	private InputStream mockInputStream(String string) throws UnsupportedEncodingException {
 		return new ByteArrayInputStream(string.getBytes("UTF-8"));
 	}
@@ -0,0 +1,162 @@
+package net.frontlinesms.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class ATResponseTest extends BaseTestCase {
+	private ATResponse r;
+	
+	public void setUp() {
+		r = new ATResponse();
+	}
+	
+	public void testRead_stopsAtFinalResultCode() throws Exception {
+		final String[][] testPairs = new String[][] {
+				/* { <modemOutput>, <expectedResponse> } */
+				{ "AT\r\r\nOK\r\n^RSSI:18\r\n", "AT\r\r\nOK\r" },
+				{ "\r\nERROR\r\nAT", "\r\nERROR\r" },
+				{ "\r\n+CME ERROR: 10\r\n+CREG: 1\r\n", "\r\n+CME ERROR: 10\r" },
+				{ "\r\n+CMS ERROR: 302\r\nOK\r\n", "\r\n+CMS ERROR: 302\r" },
+		};
+		
+		for(String[] pair : testPairs) {
+			assertEquals(pair[1], r.read(mockInputStream(pair[0]), Utils.COMMAND_TIMEOUT).toString());
+		}
+	}
+	
+	public void testRead_noFinalResultCode() throws Exception {
+		// when
+		r.read(mockInputStream("\r\n^RSSI:18\r\nOKAY"), Utils.COMMAND_TIMEOUT);
+		
+		// then
+		assertEquals("\r\n^RSSI:18\r\nOKAY", r.toString());
+		assertFalse(r.isOk());
+		assertFalse(r.isError());
+	}
+	
+	public void testResume_keepsPartialLine() throws Exception {
+		// given
+		SerialChannel channel = new SerialChannel(chunkedInputStream("AT+CGSN\r\r\n3567", null, "89\r\n\r\nOK\r\n"), new ByteArrayOutputStream());
+		channel.writeCommand("AT+CGSN");
+		r.read(channel, Utils.COMMAND_TIMEOUT);
+		assertFalse(r.isOk());
+		
+		// when
+		r.resume(channel, Utils.COMMAND_TIMEOUT);
+		
+		// then
+		assertTrue(r.isOk());
+		assertEquals(3, r.getLineCount());
+		assertEquals("356789", r.getInformation("CGSN"));
+	}
+	
+	public void testLineTypes() {
+		// when
+		r.parse("AT+CGMI", "AT+CGMI\r\r\n^BOOT:9716548,0,0,0,20\r\n+CREG: 1\r\nATMEL\r\n\r\nOK");
+		
+		// then
+		assertEquals(5, r.getLineCount());
+		assertEquals(ATResponse.ECHO, r.getLineType(0));
+		assertEquals(ATResponse.UNSOLICITED, r.getLineType(1));
+		assertEquals(ATResponse.UNSOLICITED, r.getLineType(2));
+		assertEquals(ATResponse.INFORMATION, r.getLineType(3));
+		assertEquals(ATResponse.OK, r.getLineType(4));
+		assertEquals("ATMEL", r.getLine(3));
+		assertTrue(r.isOk());
+	}
+	
+	public void testLineTypes_echoOff() throws Exception {
+		// given
+		SerialChannel channel = new SerialChannel(mockInputStream("\r\nATMEL\r\n\r\nOK\r\n"), new ByteArrayOutputStream());
+		channel.writeCommand("AT+CGMI");
+		
+		// when
+		r.read(channel, Utils.COMMAND_TIMEOUT);
+		
+		// then
+		assertEquals(2, r.getLineCount());
+		assertEquals(ATResponse.INFORMATION, r.getLineType(0));
+		assertEquals("ATMEL", r.getInformation("CGMI"));
+	}
+	
+	public void testLineTypes_echoOfOtherCommandIsNotEcho() {
+		// when
+		r.parse("AT+CGMM", "AT+CGMI\r\r\nATMEL\r\n\r\nOK");
+		
+		// then
+		assertEquals(ATResponse.INFORMATION, r.getLineType(0));
+		assertEquals(ATResponse.INFORMATION, r.getLineType(1));
+	}
+	
+	public void testGetInformation() {
+		final String[][] testPairs = new String[][] {
+				/* { <modemOutput>, <expectedInformation> } */
+				{ "huawei\r\n\r\nOK", "huawei" },
+				{ "AT+CGMI\r\r\n+CGMI: huawei\r\n\r\nOK", "huawei" },
+				{ "\r\n^RSSI:18\r\nline one\r\nline two\r\nOK", "line one\nline two" },
+				{ "\r\nOK\r\n", "" },
+		};
+		
+		for(String[] pair : testPairs) {
+			assertEquals(pair[1], r.parse("AT+CGMI", pair[0]).getInformation("CGMI"));
+		}
+	}
+	
+	public void testGetDigit() {
+		// when
+		r.parse("AT+CSMS?", "AT+CSMS?\r\r\n+CSMS: 0,1,0,1\r\n\r\nOK");
+		
+		// then
+		assertEquals(0, r.getDigit("CSMS?", 0));
+		assertEquals(1, r.getDigit("CSMS?", 1));
+		assertEquals(0, r.getDigit("CSMS?", 2));
+		assertEquals(-1, r.getDigit("CSMS?", 4));
+	}
+	
+	public void testGetNumber() {
+		// expect
+		assertEquals("+44712345678", r.parse("+CNUM: \"Phone\",\"+44712345678\",145\r\nOK").getNumber("CNUM"));
+		assertNull(r.parse("+CNUM: \"Phone\"\r\nOK").getNumber("CNUM"));
+	}
+	
+	public void testParse_reused() {
+		// given
+		r.parse("first\r\nsecond\r\nthird\r\nERROR");
+		
+		// when
+		r.parse("fourth\rOK");
+		
+		// then
+		assertEquals(2, r.getLineCount());
+		assertEquals("fourth", r.getInformation("CGMI"));
+		assertTrue(r.isOk());
+	}
+
+//> TEST SETUP METHODS
+	private InputStream mockInputStream(String string) throws UnsupportedEncodingException {
+		return new ByteArrayInputStream(string.getBytes("UTF-8"));
+	}
+	
+	/** @return a stream returning each chunk from a single read, or nothing for a <code>null</code> chunk, as when a port's receive timeout expires */
+	private InputStream chunkedInputStream(String... chunks) {
+		final Queue<String> queue = new LinkedList<String>(Arrays.asList(chunks));
+		return new InputStream() {
+			public int read() {
+				throw new UnsupportedOperationException();
+			}
+			
+			public int read(byte[] b, int off, int len) {
+				if(queue.isEmpty()) return -1;
+				String chunk = queue.remove();
+				if(chunk == null) return 0;
+				for(int i=0; i<chunk.length(); ++i) b[off + i] = (byte) chunk.charAt(i);
+				return chunk.length();
+			}
+		};
+	}
+}
@@ -0,0 +1,577 @@
+package net.frontlinesms.messaging;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class AllModemsDetectorTest extends BaseTestCase {
+	private VirtualModemFarm farm;
+	private ExecutorService executor;
+	private AllModemsDetector amd;
+	
+	public void setUp() {
+		farm = new VirtualModemFarm();
+		executor = DetectionExecutors.newBoundedPool(32);
+		amd = farm.newDetector(executor);
+	}
+	
+	public void tearDown() {
+		amd.shutdown();
+	}
+	
+	public void testDetectBlocking_mixedFarm() throws Exception {
+		// given
+		farm.add("/dev/ttyHEALTHY", 100);
+		farm.add("/dev/ttyQUIET", 20).forEach(m -> m.setEcho(false).setUnsolicited("^RSSI:18", "+CREG: 1"));
+		farm.add("/dev/ttyNOSIM", 20).forEach(m -> m.setError("+CNUM", "+CIMI").setPinState("SIM PIN"));
+		farm.add("/dev/ttySLOW", 20).forEach(m -> m.setLatency(50).setPhoneNumber("+447123456789"));
+		farm.add("/dev/ttyOLD", 4).forEach(m -> m.setBaudRates(9600, 19200));
+		farm.add("/dev/ttyDEAD", 4).forEach(m -> m.setDead(true));
+		
+		// when
+		ATDeviceDetector[] detectors = amd.detectBlocking(60, TimeUnit.SECONDS);
+		
+		// then
+		assertEquals(farm.getModems().size(), detectors.length);
+		for(ATDeviceDetector d : detectors) {
+			VirtualModem m = farm.get(d.getPortName());
+			assertTrue(d.getPortName(), d.isFinished());
+			assertEquals(d.getPortName(), m.getMaxBaudRate(), d.getMaxBaudRate());
+			if(d.isDetected()) {
+				assertEquals(m.getSerial(), d.getSerial());
+				assertTrue(d.isSmsSendSupported());
+			}
+			// ports which were never detected are left open rather than risk closing them
+			assertEquals(d.getPortName(), !d.isDetected(), m.isOpen());
+		}
+		assertEquals("+447123456789", detectorFor(detectors, "/dev/ttySLOW0").getPhoneNumber());
+		assertEquals("SIM PIN", detectorFor(detectors, "/dev/ttyNOSIM0").getLockType());
+		assertNull(detectorFor(detectors, "/dev/ttyNOSIM0").getImsi());
+		assertEquals(farm.get("/dev/ttyQUIET0").getImsi(), detectorFor(detectors, "/dev/ttyQUIET0").getImsi());
+	}
+	
+	public void testDetectBlocking_batchedIdentity() throws Exception {
+		// given
+		VirtualModem batching = farm.add("/dev/ttyUSB0");
+		VirtualModem rejecting = farm.add("/dev/ttyUSB1").setConcatenationSupported(false);
+		amd.setBatchedIdentity(true);
+		
+		// when
+		ATDeviceDetector[] detectors = amd.detectBlocking(10, TimeUnit.SECONDS);
+		
+		// then
+		for(VirtualModem m : Arrays.asList(batching, rejecting)) {
+			ATDeviceDetector d = detectorFor(detectors, m.getPortName());
+			assertEquals(m.getSerial(), d.getSerial());
+			assertEquals(m.getImsi(), d.getImsi());
+			assertEquals("VIRTUAL", d.getManufacturer());
+		}
+		assertTrue(batching.getCommandCount() < rejecting.getCommandCount());
+	}
+	
+	public void testStatistics() throws Exception {
+		// given
+		farm.add("/dev/ttyUSB", 3);
+		farm.add("/dev/ttyNOSIM", 2).forEach(m -> m.setError("+CNUM"));
+		farm.add("/dev/ttyOLD0").setBaudRates(9600);
+		
+		// when
+		ATDeviceDetector[] detectors = amd.detectBlocking(30, TimeUnit.SECONDS);
+		
+		// then
+		DetectionStatistics statistics = amd.getStatistics();
+		assertEquals(6, statistics.getDetectionCount());
+		assertEquals(6, statistics.getDetectedCount());
+		assertEquals(2, statistics.getFailureCount("AT+CNUM"));
+		assertEquals(4, statistics.getFailureCount(DetectionMetrics.HANDSHAKE));
+		DetectionStatistics.Histogram handshakes = statistics.getSnapshot().get(DetectionMetrics.HANDSHAKE);
+		assertEquals(10, handshakes.getCount());
+		assertEquals(4, detectorFor(detectors, "/dev/ttyOLD0").getMetrics().getFailureCount(DetectionMetrics.HANDSHAKE));
+	}
+
+	public void testProgressEvents() throws Exception {
+		// given
+		farm.add("/dev/ttyUSB0").setLatency(20);
+		farm.add("/dev/ttyDEAD0").setDead(true);
+		Map<String, List<String>> events = new ConcurrentHashMap<String, List<String>>();
+		amd.setListener(new ATDeviceDetectorListener() {
+			public void handlePortOpened(ATDeviceDetector d) { event(d, "opened"); }
+			public void handleBaudRateConfirmed(ATDeviceDetector d, int baudRate) { event(d, "baud " + baudRate); }
+			public void handleSerialDetected(ATDeviceDetector d) { event(d, "serial " + d.isDetected() + " " + d.getSerial()); }
+			public void handleIdentityDetected(ATDeviceDetector d) { event(d, "identity " + d.getImsi()); }
+			public void handleSmsSupportDetected(ATDeviceDetector d) { event(d, "sms " + d.isSmsSendSupported()); }
+			public void handleDetectionFailed(ATDeviceDetector d, String reason) { event(d, "failed"); }
+			public void handleDetectionCompleted(ATDeviceDetector d) { event(d, "completed"); }
+			private void event(ATDeviceDetector d, String event) {
+				events.computeIfAbsent(d.getPortName(), k -> new ArrayList<String>()).add(event);
+			}
+		});
+
+		// when
+		amd.detectBlocking(30, TimeUnit.SECONDS);
+
+		// then
+		VirtualModem m = farm.get("/dev/ttyUSB0");
+		assertEquals(Arrays.asList("opened", "baud 115200", "serial true " + m.getSerial(),
+						"identity " + m.getImsi(), "sms true", "completed"),
+				events.get("/dev/ttyUSB0"));
+		assertEquals(Arrays.asList("opened", "failed", "completed"), events.get("/dev/ttyDEAD0"));
+	}
+
+	public void testLazyAttributes() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0").setPhoneNumber("+447123456789");
+		amd.setEagerAttributes(EnumSet.noneOf(ATDeviceDetector.Attribute.class));
+
+		// when
+		ATDeviceDetector d = amd.detectBlocking(10, TimeUnit.SECONDS)[0];
+
+		// then
+		assertTrue(d.isDetected());
+		assertEquals(m.getSerial(), d.getSerial());
+		assertEquals(2, m.getCommandCount());
+		assertTrue(d.hasPendingAttributes());
+		assertNull(d.getPhoneNumber());
+		assertNull(d.getImsi());
+		assertEquals(1, m.getOpenCount());
+		
+		// when
+		boolean fetched = d.fetchDeferred();
+		
+		// then
+		assertTrue(fetched);
+		assertFalse(d.hasPendingAttributes());
+		assertEquals("+447123456789", d.getPhoneNumber());
+		assertEquals(m.getImsi(), d.getImsi());
+		assertEquals(2, m.getOpenCount());
+		assertFalse(m.isOpen());
+	}
+	
+	public void testLazyAttributes_keptPendingWhilePortInUse() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		amd.setEagerAttributes(EnumSet.noneOf(ATDeviceDetector.Attribute.class));
+		Map<String, ATDeviceConnection> connections = new ConcurrentHashMap<String, ATDeviceConnection>();
+		amd.setHandoff(true);
+		amd.setListener(new ATDeviceDetectorListener() {
+			public void handleConnectionAvailable(ATDeviceConnection c) { connections.put(c.getPortName(), c); }
+			public void handleDetectionCompleted(ATDeviceDetector d) {}
+		});
+		ATDeviceDetector d = amd.detectBlocking(10, TimeUnit.SECONDS)[0];
+		
+		// when
+		boolean fetchedWhileHeld = d.fetchDeferred();
+		
+		// then
+		assertFalse(fetchedWhileHeld);
+		assertTrue(d.hasPendingAttributes());
+		assertNull(d.getImsi());
+		
+		// when
+		connections.get("/dev/ttyUSB0").close();
+		boolean fetched = d.fetchDeferred();
+		
+		// then
+		assertTrue(fetched);
+		assertEquals(m.getImsi(), d.getImsi());
+		assertFalse(m.isOpen());
+	}
+
+	public void testDeferredFetch() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		amd.setEagerAttributes(EnumSet.of(ATDeviceDetector.Attribute.IMSI));
+		amd.setDeferredFetch(true);
+
+		// when
+		ATDeviceDetector d = amd.detectBlocking(10, TimeUnit.SECONDS)[0];
+		long deadline = System.currentTimeMillis() + 10000;
+		while(d.hasPendingAttributes() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+		// then
+		assertEquals(m.getImsi(), d.getImsi());
+		assertFalse(d.hasPendingAttributes());
+		assertEquals("VIRTUAL", d.getManufacturer());
+		assertTrue(d.isSmsReceiveSupported());
+		assertEquals(2, m.getOpenCount());
+	}
+
+	public void testAdaptiveTimeouts() throws Exception {
+		// given
+		farm.add("/dev/ttyOLD0").setBaudRates(9600);
+		ATDeviceDetector first = amd.detectBlocking(30, TimeUnit.SECONDS)[0];
+
+		// when
+		ATDeviceDetector second = amd.detectBlocking(30, TimeUnit.SECONDS)[0];
+
+		// then
+		assertEquals(9600, second.getMaxBaudRate());
+		assertEquals(ResponseTimeouts.MIN_TIMEOUT, second.getCommandTimeout());
+		long firstHandshake = first.getMetrics().getTotalMillis(DetectionMetrics.HANDSHAKE);
+		long secondHandshake = second.getMetrics().getTotalMillis(DetectionMetrics.HANDSHAKE);
+		assertTrue(firstHandshake + "ms then " + secondHandshake + "ms", secondHandshake * 2 < firstHandshake);
+	}
+
+	public void testAdaptiveTimeouts_slowerDeviceStillDetected() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		amd.detectBlocking(30, TimeUnit.SECONDS);
+		assertEquals(ResponseTimeouts.MIN_TIMEOUT, amd.getTimeouts().getTimeout("/dev/ttyUSB0", null));
+		m.setLatency(400);
+
+		for(int i=0; i<3; ++i) {
+			// when
+			ATDeviceDetector d = amd.detectBlocking(60, TimeUnit.SECONDS)[0];
+
+			// then
+			assertTrue(d.getResult().toString(), d.isDetected());
+			assertEquals(m.getSerial(), d.getSerial());
+		}
+		assertTrue(amd.getTimeouts().getTimeout("/dev/ttyUSB0", null) > 400);
+	}
+
+	public void testHandoff() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		farm.add("/dev/ttyDEAD0").setDead(true);
+		Map<String, ATDeviceConnection> connections = new ConcurrentHashMap<String, ATDeviceConnection>();
+		amd.setHandoff(true);
+		amd.setListener(new ATDeviceDetectorListener() {
+			public void handleConnectionAvailable(ATDeviceConnection c) { connections.put(c.getPortName(), c); }
+			public void handleDetectionCompleted(ATDeviceDetector d) {}
+		});
+
+		// when
+		amd.detectBlocking(30, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(1, connections.size());
+		ATDeviceConnection c = connections.get("/dev/ttyUSB0");
+		assertEquals(115200, c.getBaudRate());
+		assertTrue(m.isOpen());
+		ATResponse response = Utils.executeAtCommand(c.getInputStream(), c.getOutputStream(), "CGSN", new ATResponse());
+		assertEquals(m.getSerial(), response.getInformation("CGSN"));
+		c.close();
+		assertFalse(m.isOpen());
+		assertEquals(1, m.getOpenCount());
+	}
+
+	public void testHandoff_heldPortNotProbedAgain() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		Map<String, ATDeviceConnection> connections = new ConcurrentHashMap<String, ATDeviceConnection>();
+		amd.setHandoff(true);
+		amd.setListener(new ATDeviceDetectorListener() {
+			public void handleConnectionAvailable(ATDeviceConnection c) { connections.put(c.getPortName(), c); }
+			public void handleDetectionCompleted(ATDeviceDetector d) {}
+		});
+		ATDeviceDetector first = amd.detectBlocking(30, TimeUnit.SECONDS)[0];
+
+		// when
+		ATDeviceDetector second = amd.detectBlocking(30, TimeUnit.SECONDS)[0];
+
+		// then
+		assertSame(first, second);
+		assertTrue(second.isDetected());
+		assertEquals(1, m.getOpenCount());
+		assertEquals(1, connections.size());
+		assertTrue(amd.getRegistry().getSnapshot().getResult("/dev/ttyUSB0").isDetected());
+		
+		// when
+		connections.remove("/dev/ttyUSB0").close();
+		ATDeviceDetector third = amd.detectBlocking(30, TimeUnit.SECONDS)[0];
+		
+		// then
+		assertNotSame(first, third);
+		assertTrue(third.isDetected());
+		assertEquals(2, m.getOpenCount());
+		connections.remove("/dev/ttyUSB0").close();
+	}
+
+	public void testMultiPortModem_siblingsCancelled() throws Exception {
+		// given
+		List<VirtualModem> interfaces = farm.add("/dev/ttyUSB", 4);
+		for(VirtualModem m : interfaces) {
+			m.setUsbDevice("/sys/devices/usb1/1-1").setSerial("356789000000042").setDead(true);
+		}
+		VirtualModem pcui = interfaces.get(2).setDead(false);
+		farm.add("/dev/ttyS0");
+
+		// when
+		long start = System.currentTimeMillis();
+		ATDeviceDetector[] detectors = amd.detectBlocking(30, TimeUnit.SECONDS);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// then
+		assertEquals(2, detectors.length);
+		assertTrue(detectorFor(detectors, pcui.getPortName()).isDetected());
+		assertEquals(5, amd.getAllDetectors().length);
+		for(ATDeviceDetector d : amd.getAllDetectors()) {
+			if(d.getPortName().startsWith("/dev/ttyUSB") && d != detectorFor(detectors, pcui.getPortName())) {
+				assertTrue(d.getPortName(), d.isCancelled());
+				assertFalse(d.getPortName(), farm.get(d.getPortName()).isOpen());
+			}
+		}
+		assertTrue(elapsed + "ms", elapsed < 3000);
+	}
+
+	public void testGetDetectors_sameSerialOnSeveralPorts() throws Exception {
+		// given
+		farm.add("/dev/ttyACM0").setSerial("356789000000042");
+		farm.add("/dev/ttyACM1").setSerial("356789000000042");
+		farm.add("/dev/ttyACM2");
+
+		// when
+		ATDeviceDetector[] detectors = amd.detectBlocking(10, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(2, detectors.length);
+		assertEquals("356789000000042", detectorFor(detectors, "/dev/ttyACM0").getSerial());
+		assertEquals(3, amd.getAllDetectors().length);
+	}
+
+	public void testPortFilter() throws Exception {
+		// given
+		farm.add("/dev/ttyS0").setPortInfo(new PortInfo("/dev/ttyS0", true, true, "serial8250", null, null, null));
+		farm.add("/dev/ttyS1").setPortInfo(new PortInfo("/dev/ttyS1", true, false, "serial8250", null, null, null));
+		farm.add("/dev/ttyUSB0").setPortInfo(new PortInfo("/dev/ttyUSB0", true, true, "ftdi_sio", "/sys/devices/usb1/1-1", "0403", "6001"));
+		farm.add("/dev/ttyUSB1").setUsbDevice("/sys/devices/usb1/1-2");
+		farm.add("/dev/ttyUSB2").setUsbDevice("/sys/devices/usb1/1-3");
+		AllModemsDetector oneAtATime = farm.newDetector(DetectionExecutors.newBoundedPool(1));
+		List<String> opened = Collections.synchronizedList(new ArrayList<String>());
+		oneAtATime.setListener(new ATDeviceDetectorListener() {
+			public void handlePortOpened(ATDeviceDetector d) { opened.add(d.getPortName()); }
+			public void handleDetectionCompleted(ATDeviceDetector d) {}
+		});
+
+		try {
+			// when
+			ATDeviceDetector[] detectors = oneAtATime.detectBlocking(30, TimeUnit.SECONDS);
+
+			// then
+			assertEquals(4, detectors.length);
+			assertEquals(Arrays.asList("/dev/ttyUSB1", "/dev/ttyUSB2", "/dev/ttyUSB0", "/dev/ttyS0"), opened);
+			assertEquals(0, farm.get("/dev/ttyS1").getOpenCount());
+		} finally {
+			oneAtATime.shutdown();
+		}
+	}
+
+	public void testPortTimeLimit() throws Exception {
+		// given
+		farm.add("/dev/ttyUSB0");
+		farm.add("/dev/ttyDEAD", 4).forEach(m -> m.setDead(true));
+		amd.setPortTimeLimit(300, TimeUnit.MILLISECONDS);
+
+		// when
+		long start = System.currentTimeMillis();
+		ATDeviceDetector[] detectors = amd.detectBlocking(30, TimeUnit.SECONDS);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// then
+		assertEquals(5, detectors.length);
+		assertTrue(detectorFor(detectors, "/dev/ttyUSB0").isDetected());
+		for(ATDeviceDetector d : detectors) {
+			assertTrue(d.getPortName(), d.isFinished());
+			assertFalse(d.getPortName(), farm.get(d.getPortName()).isOpen());
+			if(d.getPortName().startsWith("/dev/ttyDEAD")) assertTrue(d.getPortName(), d.isCancelled());
+		}
+		assertTrue(elapsed + "ms", elapsed < 1500);
+	}
+
+	public void testDetectBlocking_deadlineReturnsPartialResults() throws Exception {
+		// given
+		farm.add("/dev/ttyUSB0");
+		farm.add("/dev/ttyDEAD", 4).forEach(m -> m.setDead(true));
+
+		// when
+		long start = System.currentTimeMillis();
+		ATDeviceDetector[] detectors = amd.detectBlocking(300, TimeUnit.MILLISECONDS);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// then
+		assertEquals(5, detectors.length);
+		assertTrue(detectorFor(detectors, "/dev/ttyUSB0").isDetected());
+		for(ATDeviceDetector d : detectors) {
+			assertTrue(d.getPortName(), d.isFinished());
+			assertFalse(d.getPortName(), farm.get(d.getPortName()).isOpen());
+			if(!d.isDetected()) assertEquals("Detection deadline exceeded.", d.getExceptionMessage());
+		}
+		assertTrue(elapsed + "ms", elapsed < 1000);
+	}
+
+	public void testDetectBlocking_cancelledPortKeepsCacheEntry() throws Exception {
+		// given
+		File file = File.createTempFile("detection-cache", ".properties");
+		file.deleteOnExit();
+		DetectionCache cache = new DetectionCache(file);
+		amd.setCache(cache);
+		VirtualModem slow = farm.add("/dev/ttyUSB0");
+		amd.detectBlocking();
+		slow.setLatency(2000);
+
+		// when
+		ATDeviceDetector pastDeadline = amd.detectBlocking(300, TimeUnit.MILLISECONDS)[0];
+		amd.setPortTimeLimit(300, TimeUnit.MILLISECONDS);
+		ATDeviceDetector pastTimeLimit = amd.detectBlocking(30, TimeUnit.SECONDS)[0];
+
+		// then
+		assertEquals("Detection deadline exceeded.", pastDeadline.getExceptionMessage());
+		assertTrue(pastTimeLimit.getExceptionMessage(), pastTimeLimit.getExceptionMessage().startsWith("Time limit"));
+		cache.load();
+		assertEquals(slow.getSerial(), cache.get("/dev/ttyUSB0").getSerial());
+		file.delete();
+	}
+
+	public void testDetectAsync_deadlineLeavesOtherDetectionRunning() throws Exception {
+		// given
+		farm.add("/dev/ttyDEAD").setDead(true);
+		CompletableFuture<ATDeviceDetector[]> detection = amd.detectAsync(300, TimeUnit.MILLISECONDS);
+		VirtualModem added = farm.add("/dev/ttyUSB1").setLatency(300);
+		amd.portAdded("/dev/ttyUSB1");
+
+		// when
+		detection.get(10, TimeUnit.SECONDS);
+		ATDeviceDetector d = amd.getCompletion("/dev/ttyUSB1").get(30, TimeUnit.SECONDS);
+
+		// then
+		assertEquals("Detection deadline exceeded.", amd.getCompletion("/dev/ttyDEAD").get().getExceptionMessage());
+		assertFalse(d.isCancelled());
+		assertTrue(d.isDetected());
+		assertEquals(added.getSerial(), d.getSerial());
+	}
+
+	public void testDetectFirst_cancelsRemainingProbes() throws Exception {
+		// given
+		farm.add("/dev/ttyNOSMS").setSmsSupport("0,0,0,1");
+		farm.add("/dev/ttySMS");
+		farm.add("/dev/ttyDEAD", 4).forEach(m -> m.setDead(true));
+
+		// when
+		long start = System.currentTimeMillis();
+		ATDeviceDetector[] first = amd.detectFirst(1, ATDeviceDetector::isSmsSendSupported).get(10, TimeUnit.SECONDS);
+		long elapsed = System.currentTimeMillis() - start;
+
+		// then
+		assertEquals(1, first.length);
+		assertEquals("/dev/ttySMS", first[0].getPortName());
+		assertTrue(elapsed + "ms", elapsed < 1000);
+		for(VirtualModem m : farm.getModems()) {
+			ATDeviceDetector d = amd.getCompletion(m.getPortName()).get(2, TimeUnit.SECONDS);
+			if(m.getPortName().startsWith("/dev/ttyDEAD")) assertEquals("Enough matching devices detected.", d.getExceptionMessage());
+		}
+	}
+
+	public void testDetectFirst_portsAddedLaterNotCancelled() throws Exception {
+		// given
+		farm.add("/dev/ttyUSB0").setLatency(100);
+		CompletableFuture<ATDeviceDetector[]> first = amd.detectFirst(1, d -> true);
+		VirtualModem added = farm.add("/dev/ttyUSB1").setLatency(300);
+		amd.portAdded("/dev/ttyUSB1");
+
+		// when
+		ATDeviceDetector[] matched = first.get(10, TimeUnit.SECONDS);
+		ATDeviceDetector d = amd.getCompletion("/dev/ttyUSB1").get(30, TimeUnit.SECONDS);
+
+		// then
+		assertEquals("/dev/ttyUSB0", matched[0].getPortName());
+		assertFalse(d.isCancelled());
+		assertTrue(d.isDetected());
+		assertEquals(added.getSerial(), d.getSerial());
+	}
+
+	public void testDetectFirst_fewerMatchesThanWanted() throws Exception {
+		// given
+		VirtualModem wanted = farm.add("/dev/ttyUSB0");
+		farm.add("/dev/ttyUSB1");
+		farm.add("/dev/ttyUSB2").setSerial(wanted.getSerial());
+
+		// when
+		ATDeviceDetector[] first = amd.detectFirst(2, d -> wanted.getSerial().equals(d.getSerial())).get(10, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(1, first.length);
+		assertTrue(first[0].getPortName().equals("/dev/ttyUSB0") || first[0].getPortName().equals("/dev/ttyUSB2"));
+		for(ATDeviceDetector d : amd.getDetectors()) {
+			assertTrue(d.getPortName(), d.isFinished());
+			assertFalse(d.getPortName(), d.isCancelled());
+		}
+	}
+
+	public void testDetectFirst_cancelledPortKeepsCacheEntry() throws Exception {
+		// given
+		File file = File.createTempFile("detection-cache", ".properties");
+		file.deleteOnExit();
+		DetectionCache cache = new DetectionCache(file);
+		amd.setCache(cache);
+		farm.add("/dev/ttyUSB0");
+		VirtualModem slow = farm.add("/dev/ttyUSB1");
+		amd.detectBlocking();
+		slow.setLatency(2000);
+
+		// when
+		ATDeviceDetector[] first = amd.detectFirst(1, d -> true).get(10, TimeUnit.SECONDS);
+		ATDeviceDetector cancelled = amd.getCompletion("/dev/ttyUSB1").get(10, TimeUnit.SECONDS);
+
+		// then
+		assertEquals("/dev/ttyUSB0", first[0].getPortName());
+		assertTrue(cancelled.isCancelled());
+		assertFalse(cancelled.isDetected());
+		cache.load();
+		assertEquals(slow.getSerial(), cache.get("/dev/ttyUSB1").getSerial());
+		file.delete();
+	}
+
+	public void testDetection_oneOrTwoDriverCallsPerCommand() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0").setUnsolicited("^RSSI:18");
+
+		// when
+		ATDeviceDetector[] detectors = amd.detectBlocking(10, TimeUnit.SECONDS);
+
+		// then
+		assertTrue(detectors[0].isDetected());
+		assertTrue(m.getDriverCallCount() + " calls for " + m.getCommandCount() + " commands",
+				m.getDriverCallCount() <= 2 * m.getCommandCount());
+	}
+
+	public void testGetResults() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		farm.add("/dev/ttyDEAD0").setDead(true);
+		amd.setEagerAttributes(EnumSet.noneOf(ATDeviceDetector.Attribute.class));
+		amd.setDeferredFetch(true);
+		BlockingQueue<DetectionResult> published = new LinkedBlockingQueue<DetectionResult>();
+		amd.getRegistry().addListener((previous, current, version) -> {
+			if(current.getPortName().equals("/dev/ttyUSB0")) published.add(current);
+		});
+
+		// when
+		amd.detectBlocking(10, TimeUnit.SECONDS);
+		DetectionResult detected = published.poll(5, TimeUnit.SECONDS);
+		DetectionResult fetched = published.poll(5, TimeUnit.SECONDS);
+
+		// then
+		assertTrue(detected.isDetected());
+		assertTrue(detected.isAttributesPending());
+		assertNull(detected.getImsi());
+		assertFalse(fetched.isAttributesPending());
+		assertEquals(m.getImsi(), fetched.getImsi());
+		DetectionRegistry.Snapshot snapshot = amd.getRegistry().getSnapshot();
+		assertEquals(3, snapshot.getVersion());
+		assertSame(fetched, snapshot.getResult("/dev/ttyUSB0"));
+		assertFalse(snapshot.getResult("/dev/ttyDEAD0").isDetected());
+		assertEquals(2, amd.getResults().size());
+	}
+
+//> TEST HELPER METHODS
+	private ATDeviceDetector detectorFor(ATDeviceDetector[] detectors, String portName) {
+		for(ATDeviceDetector d : detectors) {
+			if(d.getPortName().equals(portName)) return d;
+		}
+		fail("No detector for port: " + portName);
+		return null;
+	}
+}
@@ -0,0 +1,135 @@
+package net.frontlinesms.messaging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class DetectionCacheTest extends BaseTestCase {
+	private File file;
+	
+	public void setUp() throws Exception {
+		file = File.createTempFile("detection-cache", ".properties");
+		file.deleteOnExit();
+	}
+	
+	public void tearDown() {
+		file.delete();
+	}
+	
+	public void testLoad_missingFile() throws Exception {
+		// given
+		file.delete();
+		DetectionCache cache = new DetectionCache(file);
+		
+		// when
+		cache.load();
+		
+		// then
+		assertNull(cache.get("/dev/ttyUSB0"));
+	}
+	
+	public void testSave_replacesFileWithoutLeavingTemporaryFiles() throws Exception {
+		// given
+		writeCacheFile("/dev/ttyUSB9.serial=1\n/dev/ttyUSB9.baud=9600\n");
+		DetectionCache cache = new DetectionCache(file);
+		
+		// when
+		cache.save();
+		
+		// then
+		cache.load();
+		assertNull(cache.get("/dev/ttyUSB9"));
+		File[] leftovers = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName()) && !name.equals(file.getName()));
+		assertEquals(0, leftovers.length);
+	}
+	
+	public void testVerifyCached_singleCommand() throws Exception {
+		// given
+		VirtualModem m = new VirtualModemFarm().add("/dev/ttyUSB0").setBaudRates(9600);
+		DetectionCache cache = detectAndCache(m);
+		int commands = m.getCommandCount();
+		ATDeviceDetector d = new ATDeviceDetector(m.getPortIdentifier(), null);
+		d.setCached(cache.get("/dev/ttyUSB0"));
+		
+		// when
+		d.run();
+		
+		// then
+		assertTrue(d.isDetected());
+		assertEquals(1, m.getCommandCount() - commands);
+		assertEquals(9600, d.getMaxBaudRate());
+		assertEquals(m.getSerial(), d.getSerial());
+		assertEquals("VIRTUAL", d.getManufacturer());
+	}
+	
+	public void testVerifyCached_serialMismatchFallsBackToFullProbe() throws Exception {
+		// given
+		VirtualModem m = new VirtualModemFarm().add("/dev/ttyUSB0");
+		DetectionCache cache = detectAndCache(m);
+		int commands = m.getCommandCount();
+		m.setSerial("356789999999999").setManufacturer("OTHER");
+		ATDeviceDetector d = new ATDeviceDetector(m.getPortIdentifier(), null);
+		d.setCached(cache.get("/dev/ttyUSB0"));
+		
+		// when
+		d.run();
+		
+		// then
+		assertTrue(d.isDetected());
+		assertTrue(m.getCommandCount() - commands > 2);
+		assertEquals(115200, d.getMaxBaudRate());
+		assertEquals("356789999999999", d.getSerial());
+		assertEquals("OTHER", d.getManufacturer());
+	}
+	
+	public void testSaveAndLoad() throws Exception {
+		// given
+		writeCacheFile("/dev/ttyUSB0.serial=123457890\n" +
+				"/dev/ttyUSB0.baud=115200\n" +
+				"/dev/ttyUSB0.manufacturer=huawei\n" +
+				"/dev/ttyUSB0.smsSend=true\n" +
+				"/dev/ttyUSB0.smsReceive=false\n" +
+				"/dev/ttyUSB1.serial=85558555\n" +
+				"/dev/ttyUSB1.baud=not-a-number\n");
+		DetectionCache cache = new DetectionCache(file);
+		cache.load();
+		
+		// when
+		cache.save();
+		cache.load();
+		
+		// then
+		DetectionCache.Entry e = cache.get("/dev/ttyUSB0");
+		assertEquals("123457890", e.getSerial());
+		assertEquals(115200, e.getBaudRate());
+		assertEquals("huawei", e.getManufacturer());
+		assertNull(e.getModel());
+		assertTrue(e.isSmsSendSupported());
+		assertFalse(e.isSmsReceiveSupported());
+		assertNull(cache.get("/dev/ttyUSB1"));
+	}
+
+//> TEST SETUP METHODS
+	/** @return a cache holding the result of a full detection on the modem */
+	private DetectionCache detectAndCache(VirtualModem m) throws Exception {
+		ATDeviceDetector d = new ATDeviceDetector(m.getPortIdentifier(), null);
+		d.run();
+		assertTrue(d.isDetected());
+		DetectionCache cache = new DetectionCache(file);
+		cache.update(d);
+		cache.save();
+		cache.load();
+		return cache;
+	}
+	
+	private void writeCacheFile(String contents) throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("ISO-8859-1"));
+		} finally {
+			out.close();
+		}
+	}
+}
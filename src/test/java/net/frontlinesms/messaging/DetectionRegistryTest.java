@@ -0,0 +1,109 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class DetectionRegistryTest extends BaseTestCase {
+	private DetectionRegistry registry;
+
+	public void setUp() {
+		registry = new DetectionRegistry();
+	}
+
+	public void testPublish_versionedSnapshots() {
+		// given
+		DetectionRegistry.Snapshot empty = registry.getSnapshot();
+
+		// when
+		registry.publish(detected("/dev/ttyUSB0", null, "356789000000001"));
+		DetectionRegistry.Snapshot first = registry.getSnapshot();
+		registry.publish(notDetected("/dev/ttyS0"));
+		registry.publish(detected("/dev/ttyUSB0", null, "356789000000002"));
+
+		// then
+		assertEquals(0, empty.getVersion());
+		assertTrue(empty.getResults().isEmpty());
+		assertEquals(1, first.getVersion());
+		assertEquals("356789000000001", first.getResult("/dev/ttyUSB0").getSerial());
+		DetectionRegistry.Snapshot latest = registry.getSnapshot();
+		assertEquals(3, latest.getVersion());
+		assertEquals("356789000000002", latest.getResult("/dev/ttyUSB0").getSerial());
+		assertEquals(Arrays.asList("/dev/ttyS0", "/dev/ttyUSB0"), portNames(latest.getResults()));
+		assertEquals(Arrays.asList("/dev/ttyUSB0"), portNames(latest.getChangedSince(2)));
+		assertSame(latest, registry.getSnapshot());
+	}
+
+	public void testRemove() {
+		// given
+		registry.publish(notDetected("/dev/ttyS0"));
+		registry.publish(notDetected("/dev/ttyS1"));
+		long version = registry.getVersion();
+
+		// when
+		registry.remove("/dev/ttyS0");
+		registry.remove("/dev/ttyS9");
+
+		// then
+		DetectionRegistry.Snapshot snapshot = registry.getSnapshot();
+		assertEquals(version + 1, snapshot.getVersion());
+		assertNull(snapshot.getResult("/dev/ttyS0"));
+		assertEquals(Collections.singleton("/dev/ttyS0"), snapshot.getRemovedSince(version));
+		assertTrue(snapshot.getChangedSince(version).isEmpty());
+	}
+
+	public void testGetDevices() {
+		// given
+		registry.publish(notDetected("/dev/ttyUSB0", "/sys/devices/usb1/1-1"));
+		registry.publish(detected("/dev/ttyUSB1", "/sys/devices/usb1/1-1", "356789000000001"));
+		registry.publish(detected("/dev/ttyACM0", null, "356789000000002"));
+		registry.publish(detected("/dev/ttyACM1", null, "356789000000002"));
+		registry.publish(notDetected("/dev/ttyS0"));
+
+		// then
+		assertEquals(Arrays.asList("/dev/ttyACM0", "/dev/ttyS0", "/dev/ttyUSB1"), portNames(registry.getSnapshot().getDevices()));
+	}
+
+	public void testAwaitChangeAndListener() throws Exception {
+		// given
+		List<String> changes = new CopyOnWriteArrayList<String>();
+		registry.addListener((previous, current, version) -> changes.add(version + ":" + (previous == null ? null : previous.getPortName()) + "->" + (current == null ? null : current.getPortName())));
+		long version = registry.getVersion();
+		ScheduledExecutorService scheduler = DetectionExecutors.newScheduler();
+
+		try {
+			// when
+			scheduler.schedule(() -> registry.publish(notDetected("/dev/ttyS0")), 50, TimeUnit.MILLISECONDS);
+			DetectionRegistry.Snapshot changed = registry.awaitChange(version, 5, TimeUnit.SECONDS);
+			DetectionRegistry.Snapshot unchanged = registry.awaitChange(changed.getVersion(), 20, TimeUnit.MILLISECONDS);
+			registry.remove("/dev/ttyS0");
+
+			// then
+			assertEquals(version + 1, changed.getVersion());
+			assertSame(changed, unchanged);
+			assertEquals(Arrays.asList("1:null->/dev/ttyS0", "2:/dev/ttyS0->null"), changes);
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+
+//> TEST HELPER METHODS
+	private static DetectionResult detected(String portName, String usbDevice, String serial) {
+		return new DetectionResult(portName, usbDevice, 0, 115200, serial, null, null, null, null, null, true, true, false, false, null);
+	}
+
+	private static DetectionResult notDetected(String portName) {
+		return notDetected(portName, null);
+	}
+
+	private static DetectionResult notDetected(String portName, String usbDevice) {
+		return new DetectionResult(portName, usbDevice, 0, 0, null, null, null, null, null, null, false, false, false, false, "No response.");
+	}
+
+	private static List<String> portNames(Collection<DetectionResult> results) {
+		List<String> names = new ArrayList<String>();
+		for(DetectionResult r : results) names.add(r.getPortName());
+		return names;
+	}
+}
@@ -0,0 +1,222 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+
+import serial.SerialPort;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class DetectionServerTest extends BaseTestCase {
+	private VirtualModemFarm farm;
+	private AllModemsDetector amd;
+	private DetectionServer server;
+	private DetectionClient client;
+
+	public void setUp() throws Exception {
+		farm = new VirtualModemFarm();
+		amd = farm.newDetector(DetectionExecutors.newBoundedPool(8));
+		server = new DetectionServer(amd, 0);
+		client = new DetectionClient(server.getPort());
+	}
+
+	public void tearDown() {
+		client.close();
+		server.close();
+		amd.shutdown();
+	}
+
+	public void testDetectBlocking_probesOncePerHost() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0").setPhoneNumber("+447123456789");
+		farm.add("/dev/ttyDEAD0").setDead(true);
+		server.start();
+
+		// when
+		List<DetectionResult> first = client.detectBlocking();
+		List<DetectionResult> second = new DetectionClient(server.getPort()).detectBlocking(10, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(2, first.size());
+		DetectionResult r = first.get(1);
+		assertEquals("/dev/ttyUSB0", r.getPortName());
+		assertEquals(m.getSerial(), r.getSerial());
+		assertEquals(115200, r.getMaxBaudRate());
+		assertEquals("+447123456789", r.getPhoneNumber());
+		assertTrue(r.isSmsSendSupported());
+		assertFalse(first.get(0).isDetected());
+		assertNotNull(first.get(0).getExceptionMessage());
+		assertEquals(2, second.size());
+		assertEquals(1, m.getOpenCount());
+	}
+
+	public void testRefresh() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		server.start();
+		client.detectBlocking();
+
+		// when
+		List<DetectionResult> results = client.refresh(10, TimeUnit.SECONDS);
+
+		// then
+		assertEquals(1, results.size());
+		assertTrue(results.get(0).isDetected());
+		assertEquals(2, m.getOpenCount());
+	}
+
+	public void testRefresh_portInUseKeepsResult() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		server.start();
+		client.detectBlocking();
+		SerialPort held = m.getPortIdentifier().open("other program", 0);
+
+		// when
+		List<DetectionResult> results = client.refresh(10, TimeUnit.SECONDS);
+		held.close();
+
+		// then
+		assertEquals(1, results.size());
+		assertTrue(results.get(0).isDetected());
+		assertEquals(m.getSerial(), results.get(0).getSerial());
+	}
+
+	public void testTokenFile() throws Exception {
+		// given
+		File tokenFile = File.createTempFile("detection", ".token");
+		try {
+			server.setTokenFile(tokenFile);
+			farm.add("/dev/ttyUSB0");
+			server.start();
+
+			// when
+			try {
+				client.getResults();
+				fail("Should have rejected a client without the token.");
+			} catch(IOException ex) {
+				// expected
+			}
+			client.setTokenFile(tokenFile);
+			List<DetectionResult> results = client.detectBlocking();
+
+			// then
+			assertEquals(1, results.size());
+			assertTrue(results.get(0).isDetected());
+			if(Files.getFileStore(tokenFile.toPath()).supportsFileAttributeView("posix")) {
+				assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+			}
+		} finally {
+			tokenFile.delete();
+		}
+	}
+
+	public void testWatching() throws Exception {
+		// given
+		farm.add("/dev/ttyUSB0");
+		server.start();
+		client.detectBlocking();
+		BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+		client.getRegistry().addListener((previous, current, version) ->
+				changes.add(current == null ? "removed " + previous.getPortName() : "published " + current.getPortName()));
+
+		// when
+		client.startWatching();
+		VirtualModem added = farm.add("/dev/ttyUSB1");
+		amd.portAdded("/dev/ttyUSB1");
+		awaitChange(changes, "published /dev/ttyUSB1");
+		farm.remove("/dev/ttyUSB0");
+		amd.portRemoved("/dev/ttyUSB0");
+
+		// then
+		awaitChange(changes, "removed /dev/ttyUSB0");
+		DetectionRegistry.Snapshot mirror = client.getRegistry().getSnapshot();
+		assertEquals(1, mirror.getResults().size());
+		assertEquals(added.getSerial(), mirror.getResult("/dev/ttyUSB1").getSerial());
+	}
+
+	public void testSilentConnectionClosed() throws Exception {
+		// given
+		server.close();
+		server = new DetectionServer(amd, 0, 4, 200);
+		server.start();
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+
+		// when
+		socket.setSoTimeout(5000);
+		int read = socket.getInputStream().read();
+
+		// then
+		assertEquals(-1, read);
+		socket.close();
+	}
+
+	public void testConnectionLimit() throws Exception {
+		// given
+		server.close();
+		server = new DetectionServer(amd, 0, 1, 5000);
+		server.start();
+		Socket idle = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+
+		// when
+		try {
+			new DetectionClient(server.getPort()).getResults();
+			fail("Should have been refused while the only connection is in use.");
+		} catch(IOException ex) {
+			// expected
+		} finally {
+			idle.close();
+		}
+	}
+
+	public void testWatching_clientGoneReleasesConnection() throws Exception {
+		// given
+		server.close();
+		server = new DetectionServer(amd, 0, 1, 5000);
+		server.start();
+		client = new DetectionClient(server.getPort());
+		client.startWatching();
+
+		// when
+		client.stopWatching();
+
+		// then
+		long deadline = System.currentTimeMillis() + 10000;
+		while(true) {
+			try {
+				new DetectionClient(server.getPort()).getResults();
+				break;
+			} catch(IOException ex) {
+				assertTrue("Connection was not released.", System.currentTimeMillis() < deadline);
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	public void testServerNotRunning() throws Exception {
+		// given
+		server.close();
+
+		// when
+		try {
+			client.getResults();
+			fail("Should not have connected.");
+		} catch(java.io.IOException ex) {
+			// expected
+		}
+	}
+
+//> TEST HELPER METHODS
+	/** Takes changes from the queue until the expected one arrives, failing if it does not. */
+	private static void awaitChange(BlockingQueue<String> changes, String expected) throws InterruptedException {
+		String change;
+		do {
+			change = changes.poll(5, TimeUnit.SECONDS);
+			assertNotNull("Timed out waiting for: " + expected, change);
+		} while(!change.equals(expected));
+	}
+}
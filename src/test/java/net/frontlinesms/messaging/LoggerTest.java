@@ -0,0 +1,93 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class LoggerTest extends BaseTestCase {
+	private Logger.Level originalLevel;
+	private ByteArrayOutputStream out;
+	private ByteArrayOutputStream err;
+	private Logger.ConsoleAppender appender;
+	private Logger log;
+
+	public void setUp() {
+		originalLevel = Logger.getLevel();
+		out = new ByteArrayOutputStream();
+		err = new ByteArrayOutputStream();
+		appender = new Logger.ConsoleAppender(2, new PrintStream(out, true), new PrintStream(err, true));
+		log = new Logger(LoggerTest.class, appender);
+	}
+
+	public void tearDown() {
+		Logger.setLevel(originalLevel);
+	}
+
+	public void testLevelGating() throws Exception {
+		// given
+		AllModemsDetector.setLogLevel("warn");
+		appender.start();
+
+		// when
+		log.debug("debug message");
+		log.info("info message");
+		log.warn("warn message");
+		appender.flush(1000);
+
+		// then
+		assertFalse(log.isInfoEnabled());
+		assertEquals(Logger.Level.WARN, Logger.getLevel());
+		String written = out.toString("UTF-8");
+		assertFalse(written, written.contains("debug message"));
+		assertFalse(written, written.contains("info message"));
+		assertTrue(written, written.contains(": LoggerTest] WARN: warn message"));
+	}
+
+	public void testSetLogLevel_unknown() {
+		try {
+			AllModemsDetector.setLogLevel("verbose");
+			fail("Should have rejected the level.");
+		} catch(IllegalArgumentException ex) {
+			// expected
+		}
+		assertEquals(originalLevel, Logger.getLevel());
+	}
+
+	public void testDroppedWhenBufferFull() throws Exception {
+		// given
+		Logger.setLevel(Logger.Level.INFO);
+
+		// when
+		log.info("first");
+		log.info("second");
+		log.info("third");
+		appender.start();
+		appender.flush(1000);
+
+		// then
+		assertEquals(1, appender.getDroppedCount());
+		String written = out.toString("UTF-8");
+		assertTrue(written, written.contains("first"));
+		assertTrue(written, written.contains("second"));
+		assertFalse(written, written.contains("third"));
+		assertTrue(err.toString("UTF-8").contains("1 messages dropped."));
+	}
+
+	public void testFlush_waitsForQueuedMessages() throws Exception {
+		// given
+		Logger.setLevel(Logger.Level.INFO);
+		log.info("queued");
+		log.info("failed", new IOException("broken"));
+		assertEquals(0, out.size());
+
+		// when
+		appender.start();
+		appender.flush(1000);
+
+		// then
+		assertTrue(out.toString("UTF-8").contains("INFO: queued"));
+		String errors = err.toString("UTF-8");
+		assertTrue(errors, errors.contains("INFO: failed"));
+		assertTrue(errors, errors.contains("java.io.IOException: broken"));
+	}
+}
@@ -0,0 +1,161 @@
+package net.frontlinesms.messaging;
+
+import java.util.concurrent.*;
+
+import serial.SerialPort;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class ModemMonitorTest extends BaseTestCase {
+	private VirtualModemFarm farm;
+	private AllModemsDetector amd;
+	private BlockingQueue<String> events;
+
+	public void setUp() {
+		farm = new VirtualModemFarm();
+		amd = farm.newDetector(DetectionExecutors.newBoundedPool(4));
+		events = new LinkedBlockingQueue<String>();
+		amd.getMonitor().setListener(new ModemHealthListener() {
+			public void handleLivenessChanged(ATDeviceDetector d, ModemHealth previous, ModemHealth current) {
+				events.add(d.getPortName() + (current.isAlive() ? " alive" : " dead"));
+			}
+			public void handleSignalQualityChanged(ATDeviceDetector d, ModemHealth previous, ModemHealth current) {
+				events.add(d.getPortName() + " signal " + current.getSignalStrength());
+			}
+			public void handleLockStateChanged(ATDeviceDetector d, ModemHealth previous, ModemHealth current) {
+				events.add(d.getPortName() + " lock " + current.getLockType());
+			}
+		});
+	}
+
+	public void tearDown() {
+		amd.shutdown();
+	}
+
+	public void testMonitoring() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		farm.add("/dev/ttyDEAD0").setDead(true);
+		amd.detectBlocking(10, TimeUnit.SECONDS);
+
+		// when
+		amd.startMonitoring(50, TimeUnit.MILLISECONDS);
+
+		// then
+		assertEquals("/dev/ttyUSB0 alive", nextEvent());
+		assertEquals(18, amd.getMonitor().getHealth("/dev/ttyUSB0").getSignalStrength());
+		assertEquals(1, amd.getMonitor().getPortNames().size());
+
+		// when
+		m.setSignalQuality("17,99");
+		m.setSignalQuality("9,99");
+		// then
+		assertEquals("/dev/ttyUSB0 signal 9", nextEvent());
+
+		// when
+		m.setPinState("SIM PIN");
+		// then
+		assertEquals("/dev/ttyUSB0 lock SIM PIN", nextEvent());
+
+		// when
+		m.setDead(true);
+		// then
+		assertEquals("/dev/ttyUSB0 dead", nextEvent());
+
+		// when
+		m.setDead(false);
+		// then
+		assertEquals("/dev/ttyUSB0 alive", nextEvent());
+		assertEquals("SIM PIN", amd.getMonitor().getHealth("/dev/ttyUSB0").getLockType());
+	}
+
+	public void testSmallSignalChangesNotReported() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		amd.detectBlocking(10, TimeUnit.SECONDS);
+		amd.startMonitoring(20, TimeUnit.MILLISECONDS);
+		assertEquals("/dev/ttyUSB0 alive", nextEvent());
+
+		// when
+		m.setSignalQuality("16,99");
+		Thread.sleep(200);
+
+		// then
+		assertEquals(16, amd.getMonitor().getHealth("/dev/ttyUSB0").getSignalStrength());
+		assertNull(events.poll());
+	}
+
+	public void testPortHeldOpen_reportedBusyNotDead() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		amd.detectBlocking(10, TimeUnit.SECONDS);
+		amd.startMonitoring(20, TimeUnit.MILLISECONDS);
+		assertEquals("/dev/ttyUSB0 alive", nextEvent());
+
+		// when
+		SerialPort held = m.getPortIdentifier().open("test", 0);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(!amd.getMonitor().getHealth("/dev/ttyUSB0").isBusy() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		Thread.sleep(100);
+
+		// then
+		ModemHealth health = amd.getMonitor().getHealth("/dev/ttyUSB0");
+		assertTrue(health.toString(), health.isBusy());
+		assertFalse(health.isAlive());
+		assertNull(events.poll());
+
+		// when
+		held.close();
+		m.setDead(true);
+		// then
+		assertEquals("/dev/ttyUSB0 dead", nextEvent());
+		assertFalse(amd.getMonitor().getHealth("/dev/ttyUSB0").isBusy());
+	}
+
+	public void testCheckHealth_failurePartWayClosesPort() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		ATDeviceDetector d = amd.detectBlocking(10, TimeUnit.SECONDS)[0];
+		m.setBroken(true);
+
+		// when
+		ModemHealth failed = d.checkHealth();
+
+		// then
+		assertFalse(failed.isAlive());
+		assertFalse(failed.isBusy());
+		assertFalse(m.isOpen());
+
+		// when
+		m.setBroken(false);
+		ModemHealth recovered = d.checkHealth();
+
+		// then
+		assertTrue(recovered.toString(), recovered.isAlive());
+	}
+
+	public void testStopMonitoring() throws Exception {
+		// given
+		VirtualModem m = farm.add("/dev/ttyUSB0");
+		amd.detectBlocking(10, TimeUnit.SECONDS);
+		amd.startMonitoring(20, TimeUnit.MILLISECONDS);
+		assertEquals("/dev/ttyUSB0 alive", nextEvent());
+
+		// when
+		amd.stopMonitoring();
+		Thread.sleep(50);
+		int opened = m.getOpenCount();
+		Thread.sleep(200);
+
+		// then
+		assertEquals(opened, m.getOpenCount());
+		assertTrue(amd.getMonitor().getPortNames().isEmpty());
+	}
+
+//> TEST HELPER METHODS
+	private String nextEvent() throws InterruptedException {
+		String event = events.poll(5, TimeUnit.SECONDS);
+		assertNotNull("No event received.", event);
+		return event;
+	}
+}
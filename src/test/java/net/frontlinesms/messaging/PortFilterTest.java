@@ -0,0 +1,59 @@
+package net.frontlinesms.messaging;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class PortFilterTest extends BaseTestCase {
+	private static final PortInfo HUAWEI = new PortInfo("/dev/ttyUSB0", true, true, "option1", "/sys/devices/usb1/1-1", "12d1", "1001");
+	private static final PortInfo FTDI = new PortInfo("/dev/ttyUSB1", true, true, "ftdi_sio", "/sys/devices/usb1/1-2", "0403", "6001");
+	private static final PortInfo UART = new PortInfo("/dev/ttyS0", true, true, "serial8250", null, null, null);
+	private static final PortInfo NO_UART = new PortInfo("/dev/ttyS1", true, false, "serial8250", null, null, null);
+	private static final PortInfo UNKNOWN = PortInfo.unknown("COM3");
+
+	public void testAccept_defaults() {
+		// given
+		PortFilter filter = new PortFilter();
+
+		// then
+		assertTrue(filter.accept(HUAWEI));
+		assertTrue(filter.accept(UART));
+		assertTrue(filter.accept(UNKNOWN));
+		assertFalse(filter.accept(NO_UART));
+	}
+
+	public void testAccept_rules() {
+		// given
+		PortFilter filter = new PortFilter()
+				.deny("port=/dev/ttyS\\d+")
+				.deny("usb=0403:6001")
+				.allow("port=/dev/ttyS1");
+
+		// then
+		assertTrue(filter.accept(HUAWEI));
+		assertFalse(filter.accept(FTDI));
+		assertFalse(filter.accept(UART));
+		assertTrue(filter.accept(NO_UART));
+	}
+
+	public void testGetPriority() {
+		// given
+		PortFilter filter = new PortFilter();
+
+		// then
+		assertEquals(PortFilter.PRIORITY_MODEM, filter.getPriority(HUAWEI));
+		assertEquals(PortFilter.PRIORITY_ADAPTER, filter.getPriority(FTDI));
+		assertEquals(PortFilter.PRIORITY_UNKNOWN, filter.getPriority(UNKNOWN));
+		assertEquals(PortFilter.PRIORITY_OTHER, filter.getPriority(UART));
+		assertEquals(PortFilter.PRIORITY_MODEM, filter.allow("driver=serial8250").getPriority(UART));
+	}
+
+	public void testParse_invalid() {
+		for(String rule : new String[] { "option", "vendor=12d1" }) {
+			try {
+				PortFilter.parse(rule);
+				fail("Should have rejected rule: " + rule);
+			} catch(IllegalArgumentException ex) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package net.frontlinesms.messaging;
+
+import java.io.File;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class PortWatcherTest extends BaseTestCase {
+	private File dev;
+	private VirtualModemFarm farm;
+	private AllModemsDetector amd;
+	private BlockingQueue<String> events;
+
+	public void setUp() throws Exception {
+		dev = File.createTempFile("dev", "");
+		dev.delete();
+		dev.mkdir();
+		farm = new VirtualModemFarm();
+		amd = farm.newDetector(DetectionExecutors.newBoundedPool(4));
+		events = new LinkedBlockingQueue<String>();
+		amd.setListener(new ATDeviceDetectorListener() {
+			public void handleDetectionCompleted(ATDeviceDetector d) {
+				events.add((d.isDetected() ? "detected " : "failed ") + d.getPortName());
+			}
+			public void handlePortRemoved(ATDeviceDetector d) {
+				events.add("removed " + d.getPortName());
+			}
+		});
+	}
+
+	public void tearDown() {
+		amd.shutdown();
+		File[] nodes = dev.listFiles();
+		if(nodes != null) for(File node : nodes) node.delete();
+		dev.delete();
+	}
+
+	public void testWatching() throws Exception {
+		// given
+		VirtualModem existing = farm.add(new File(dev, "ttyUSB0").getPath());
+		new File(existing.getPortName()).createNewFile();
+		amd.startWatching(dev.getPath(), PortWatcher.DEFAULT_PORT_NAME_PATTERN);
+		assertEquals("detected " + existing.getPortName(), nextEvent());
+
+		// when
+		VirtualModem added = farm.add(new File(dev, "ttyUSB1").getPath());
+		new File(dev, "console").createNewFile();
+		new File(added.getPortName()).createNewFile();
+
+		// then
+		assertEquals("detected " + added.getPortName(), nextEvent());
+		assertEquals(2, amd.getDetectors().length);
+
+		// when
+		farm.remove(existing.getPortName());
+		new File(existing.getPortName()).delete();
+
+		// then
+		assertEquals("removed " + existing.getPortName(), nextEvent());
+		ATDeviceDetector[] detectors = amd.getDetectors();
+		assertEquals(1, detectors.length);
+		assertEquals(added.getPortName(), detectors[0].getPortName());
+		assertNull(events.poll(1, TimeUnit.SECONDS));
+	}
+
+	public void testStopWatching() throws Exception {
+		// given
+		amd.startWatching(dev.getPath(), Pattern.compile("ttyACM\\d+"));
+
+		// when
+		amd.stopWatching();
+		VirtualModem m = farm.add(new File(dev, "ttyACM0").getPath());
+		new File(m.getPortName()).createNewFile();
+
+		// then
+		assertNull(events.poll(2, TimeUnit.SECONDS));
+		assertEquals(0, amd.getAllDetectors().length);
+	}
+
+	public void testStopWatching_waitsForChangeBeingReported() throws Exception {
+		// given
+		amd.startWatching(dev.getPath(), PortWatcher.DEFAULT_PORT_NAME_PATTERN);
+		Thread watcher = watcherThread();
+		FutureTask<Boolean> stop = new FutureTask<Boolean>(() -> {
+			amd.stopWatching();
+			return watcher.isAlive();
+		});
+		synchronized(amd) {
+			VirtualModem m = farm.add(new File(dev, "ttyUSB0").getPath());
+			new File(m.getPortName()).createNewFile();
+			long deadline = System.currentTimeMillis() + 10000;
+			while(watcher.getState() != Thread.State.BLOCKED) {
+				assertTrue("Watcher did not report the port.", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+
+			// when
+			new Thread(stop).start();
+			Thread.sleep(100);
+		}
+
+		// then
+		assertFalse(stop.get(10, TimeUnit.SECONDS));
+	}
+
+	public void testResynchronise_removesSiblingPorts() throws Exception {
+		// given
+		for(VirtualModem m : farm.add(new File(dev, "ttyUSB").getPath(), 2)) {
+			m.setUsbDevice("/sys/devices/usb1/1-1").setSerial("356789000000042");
+			new File(m.getPortName()).createNewFile();
+		}
+		amd.detectBlocking();
+		assertEquals(1, amd.getDetectors().length);
+		String sibling = new File(dev, "ttyUSB0").getPath().equals(amd.getDetectors()[0].getPortName())
+				? new File(dev, "ttyUSB1").getPath() : new File(dev, "ttyUSB0").getPath();
+		farm.remove(sibling);
+		new File(sibling).delete();
+		events.clear();
+
+		// when
+		new PortWatcher(dev.getPath(), PortWatcher.DEFAULT_PORT_NAME_PATTERN, amd).resynchronise();
+
+		// then
+		assertEquals("removed " + sibling, nextEvent());
+		assertEquals(1, amd.getAllDetectors().length);
+		assertNull(events.poll(1, TimeUnit.SECONDS));
+	}
+
+//> TEST HELPER METHODS
+	private Thread watcherThread() {
+		for(Thread t : Thread.getAllStackTraces().keySet()) {
+			if(t.getName().equals("PortWatcher: " + dev.getPath())) return t;
+		}
+		fail("No watcher thread.");
+		return null;
+	}
+	
+	private String nextEvent() throws InterruptedException {
+		String event = events.poll(10, TimeUnit.SECONDS);
+		assertNotNull("No event received.", event);
+		return event;
+	}
+}
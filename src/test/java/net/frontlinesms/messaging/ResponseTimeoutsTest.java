@@ -0,0 +1,62 @@
+package net.frontlinesms.messaging;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class ResponseTimeoutsTest extends BaseTestCase {
+	private static final long MILLIS = 1000000;
+
+	public void testGetTimeout_notLearned() {
+		// given
+		ResponseTimeouts timeouts = new ResponseTimeouts();
+
+		// then
+		assertEquals(0, timeouts.getTimeout("/dev/ttyUSB0", null));
+		assertEquals(0, timeouts.getTimeout("/dev/ttyUSB0", samples(10, 10)));
+	}
+
+	public void testGetTimeout_percentileOfModel() {
+		// given
+		ResponseTimeouts timeouts = new ResponseTimeouts();
+		long[] millis = new long[20];
+		for(int i=0; i<millis.length; ++i) millis[i] = 100 + i;
+
+		// when
+		timeouts.record("/dev/ttyUSB0", "E173", samples(millis));
+
+		// then
+		assertEquals(4 * 118, timeouts.getTimeout("/dev/ttyUSB0", null));
+		assertEquals(0, timeouts.getTimeout("/dev/ttyUSB1", null));
+	}
+
+	public void testGetTimeout_clamped() {
+		// given
+		ResponseTimeouts timeouts = new ResponseTimeouts();
+
+		// when
+		timeouts.record("/dev/ttyUSB0", "FAST", samples(1, 1, 1));
+		timeouts.record("/dev/ttyS0", "SLOW", samples(3000, 3000, 3000));
+
+		// then
+		assertEquals(ResponseTimeouts.MIN_TIMEOUT, timeouts.getTimeout("/dev/ttyUSB0", null));
+		assertEquals(ResponseTimeouts.MAX_TIMEOUT, timeouts.getTimeout("/dev/ttyS0", null));
+	}
+
+	public void testRecord_accumulates() {
+		// given
+		ResponseTimeouts timeouts = new ResponseTimeouts();
+		timeouts.record("/dev/ttyUSB0", "E173", samples(50, 50));
+
+		// when
+		timeouts.record("/dev/ttyUSB0", "E173", samples(100));
+
+		// then
+		assertEquals(400, timeouts.getTimeout("/dev/ttyUSB0", null));
+	}
+
+//> TEST HELPER METHODS
+	private ResponseTimeouts.Samples samples(long... millis) {
+		ResponseTimeouts.Samples s = new ResponseTimeouts.Samples();
+		for(long m : millis) s.add(m * MILLIS);
+		return s;
+	}
+}
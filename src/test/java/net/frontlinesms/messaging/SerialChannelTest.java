@@ -0,0 +1,77 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class SerialChannelTest extends BaseTestCase {
+	public void testExecuteAtCommand_singleReadAndWrite() throws Exception {
+		// given
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SerialChannel channel = new SerialChannel(mockInputStream("AT+CGSN\r\r\n356789000000042\r\n\r\nOK\r\n\r\n+CREG: 1\r\n"), out);
+
+		// when
+		ATResponse response = Utils.executeAtCommand(channel, "CGSN", new ATResponse(), Utils.COMMAND_TIMEOUT);
+
+		// then
+		assertEquals("356789000000042", response.getInformation("CGSN"));
+		assertEquals("AT+CGSN\r", out.toString("US-ASCII"));
+		assertEquals(1, channel.getWriteCount());
+		assertEquals(1, channel.getReadCount());
+	}
+
+	public void testRead_bytesAfterResponseKeptForNextRead() throws Exception {
+		// given
+		SerialChannel channel = new SerialChannel(mockInputStream("\r\nOK\r\n\r\n+CREG: 1\r\n\r\nOK\r\nrest"), null);
+		ATResponse response = new ATResponse();
+
+		// when
+		response.read(channel, Utils.COMMAND_TIMEOUT);
+		// then
+		assertTrue(response.isOk());
+		assertEquals(1, response.getLineCount());
+
+		// when
+		response.read(channel, Utils.COMMAND_TIMEOUT);
+		// then
+		assertTrue(response.isOk());
+		assertEquals(ATResponse.UNSOLICITED, response.getLineType(0));
+		assertEquals(1, channel.getReadCount());
+		assertEquals("\nrest", readAll(channel.getInputStream()));
+	}
+
+	public void testRead_responseLargerThanBuffer() throws Exception {
+		// given
+		SerialChannel channel = new SerialChannel(mockInputStream("\r\n+CGMI: a long manufacturer name\r\n\r\nOK\r\n"), null, 4);
+
+		// when
+		ATResponse response = new ATResponse().read(channel, Utils.COMMAND_TIMEOUT);
+
+		// then
+		assertEquals("a long manufacturer name", response.getInformation("CGMI"));
+	}
+
+	public void testDiscardAvailable() throws Exception {
+		// given
+		SerialChannel channel = new SerialChannel(mockInputStream("\r\nOK\r\nstale"), null, 2);
+		channel.fill();
+
+		// when
+		channel.discardAvailable();
+
+		// then
+		assertEquals(0, channel.fill());
+	}
+
+//> TEST HELPER METHODS
+	private InputStream mockInputStream(String string) throws UnsupportedEncodingException {
+		return new ByteArrayInputStream(string.getBytes("UTF-8"));
+	}
+
+	private String readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		int c;
+		while((c = in.read()) != -1) bytes.write(c);
+		return bytes.toString("US-ASCII");
+	}
+}
@@ -0,0 +1,122 @@
+package net.frontlinesms.messaging;
+
+import static org.mockito.Mockito.*;
+
+import java.io.*;
+import java.util.List;
+
+import serial.CommPortIdentifier;
+import serial.SerialPort;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class SerialTranscriptTest extends BaseTestCase {
+	private static final String SLOW_CNUM = "# dongle taking 900ms to answer AT+CNUM\n" +
+			"0 > AT+CNUM\\r\n" +
+			"3000 < AT+CNUM\\r\n" +
+			"900000 < \\r\\n^RSSI:18\\r\\n+CNUM: \"\",\"+447123456789\",145\\r\\n\\r\\nOK\\r\\n\n";
+
+	private File file;
+
+	public void setUp() throws Exception {
+		file = File.createTempFile("serial", ".transcript");
+	}
+
+	public void tearDown() {
+		file.delete();
+	}
+
+	public void testParse() throws Exception {
+		// when
+		SerialTranscript t = SerialTranscript.parse(new StringReader(SLOW_CNUM + "900100 < \\\\\\x00\\xFF\n"));
+
+		// then
+		List<SerialTranscript.Event> events = t.getEvents();
+		assertEquals(4, events.size());
+		assertTrue(events.get(0).isSent());
+		assertEquals("AT+CNUM\r", new String(events.get(0).getBytes(), "ISO-8859-1"));
+		assertEquals(900000, events.get(2).getTime());
+		assertFalse(events.get(2).isSent());
+		assertEquals("\\\u0000\u00FF", new String(events.get(3).getBytes(), "ISO-8859-1"));
+		assertEquals("900100 < \\\\\\x00\\xFF", events.get(3).toString());
+	}
+
+	public void testParse_badLine() throws Exception {
+		try {
+			SerialTranscript.parse(new StringReader("0 ? AT\\r\n"));
+			fail("Should have rejected the direction.");
+		} catch(IOException ex) {
+			// expected
+		}
+	}
+
+	public void testReplay_keepsDelayAfterCommand() throws Exception {
+		// given
+		SerialTranscript.Replay replay = SerialTranscript.parse(new StringReader(SLOW_CNUM)).newReplay(10);
+		SerialChannel channel = new SerialChannel(replay.getInputStream(), replay.getOutputStream());
+		replay.setReadTimeout(10);
+		ATResponse response = new ATResponse();
+		response.setIdleTimeout(1000);
+
+		// when
+		int beforeCommand = channel.fill();
+		long start = System.nanoTime();
+		Utils.executeAtCommand(channel, "CNUM", response, 2000);
+		long elapsed = (System.nanoTime() - start) / 1000000;
+
+		// then
+		assertEquals(0, beforeCommand);
+		assertTrue(response.isOk());
+		assertEquals("\"\",\"+447123456789\",145", response.getPrefixedInformation("CNUM"));
+		assertTrue("Elapsed: " + elapsed, elapsed >= 80 && elapsed < 1000);
+		assertTrue(replay.isFinished());
+		assertEquals(-1, replay.getDivergence());
+	}
+
+	public void testReplay_divergence() throws Exception {
+		// given
+		SerialTranscript.Replay replay = SerialTranscript.parse(new StringReader(SLOW_CNUM)).newReplay(Double.POSITIVE_INFINITY);
+		SerialChannel channel = new SerialChannel(replay.getInputStream(), replay.getOutputStream());
+
+		// when
+		channel.writeCommand("AT+CGMI");
+
+		// then
+		assertEquals(4, replay.getDivergence());
+	}
+
+	public void testRecordAndReplayDetection() throws Exception {
+		// given
+		VirtualModem m = new VirtualModemFarm().add("/dev/ttyUSB0").setPhoneNumber("+447123456789");
+		ATDeviceDetector recorded = new ATDeviceDetector(m.getPortIdentifier(), null);
+		recorded.setTranscriptFile(file);
+		recorded.run();
+		SerialTranscript.Replay replay = SerialTranscript.load(file).newReplay(Double.POSITIVE_INFINITY);
+
+		// when
+		ATDeviceDetector replayed = new ATDeviceDetector(replayPort("/dev/ttyUSB0", replay), null);
+		replayed.run();
+
+		// then
+		assertTrue(recorded.isDetected());
+		assertTrue(replayed.isDetected());
+		assertEquals(recorded.getMaxBaudRate(), replayed.getMaxBaudRate());
+		assertEquals(m.getSerial(), replayed.getSerial());
+		assertEquals(recorded.getManufacturer(), replayed.getManufacturer());
+		assertEquals("+447123456789", replayed.getPhoneNumber());
+		assertEquals(-1, replay.getDivergence());
+		assertTrue(replay.isFinished());
+	}
+
+//> TEST HELPER METHODS
+	/** @return a port which plays back the supplied replay when opened */
+	private static CommPortIdentifier replayPort(String portName, SerialTranscript.Replay replay) throws Exception {
+		SerialPort serialPort = mock(SerialPort.class);
+		when(serialPort.getInputStream()).thenReturn(replay.getInputStream());
+		when(serialPort.getOutputStream()).thenReturn(replay.getOutputStream());
+		CommPortIdentifier portIdentifier = mock(CommPortIdentifier.class);
+		when(portIdentifier.getName()).thenReturn(portName);
+		when(portIdentifier.open(anyString(), anyInt())).thenReturn(serialPort);
+		return portIdentifier;
+	}
+}
@@ -0,0 +1,93 @@
+package net.frontlinesms.messaging;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class SysfsTest extends BaseTestCase {
+	private File root;
+	private Sysfs sysfs;
+
+	public void setUp() throws Exception {
+		root = Files.createTempDirectory("sysfs").toFile().getCanonicalFile();
+		sysfs = new Sysfs(root);
+	}
+
+	public void tearDown() throws Exception {
+		delete(root);
+	}
+
+	public void testGetUsbDevice() throws Exception {
+		// given
+		File usbDevice = mkdirs("devices/pci0000:00/usb1/1-1");
+		touch(new File(usbDevice, "idVendor"));
+		link("ttyUSB0", mkdirs("devices/pci0000:00/usb1/1-1/1-1:1.0/ttyUSB0"));
+		link("ttyUSB1", mkdirs("devices/pci0000:00/usb1/1-1/1-1:1.1/ttyUSB1"));
+		link("ttyS0", mkdirs("devices/platform/serial8250/tty/ttyS0"));
+
+		// then
+		assertEquals(usbDevice.getPath(), sysfs.getUsbDevice("/dev/ttyUSB0"));
+		assertEquals(usbDevice.getPath(), sysfs.getUsbDevice("/dev/ttyUSB1"));
+		assertNull(sysfs.getUsbDevice("/dev/ttyS0"));
+		assertNull(sysfs.getUsbDevice("/dev/ttyUSB9"));
+	}
+
+	public void testGetPortInfo() throws Exception {
+		// given
+		File usbDevice = mkdirs("devices/pci0000:00/usb1/1-1");
+		write(new File(usbDevice, "idVendor"), "12d1\n");
+		write(new File(usbDevice, "idProduct"), "1001\n");
+		File usbInterface = mkdirs("devices/pci0000:00/usb1/1-1/1-1:1.0/ttyUSB0");
+		Files.createSymbolicLink(new File(usbInterface, "driver").toPath(), mkdirs("bus/usb-serial/drivers/option1").toPath());
+		link("ttyUSB0", usbInterface);
+		link("ttyS0", mkdirs("devices/platform/serial8250/tty/ttyS0"));
+		write(new File(root, "class/tty/ttyS0/type"), "4\n");
+		link("ttyS1", mkdirs("devices/platform/serial8250/tty/ttyS1"));
+		write(new File(root, "class/tty/ttyS1/type"), "0\n");
+		mkdirs("class/tty/tty1");
+
+		// when
+		PortInfo usb = sysfs.getPortInfo("/dev/ttyUSB0");
+
+		// then
+		assertTrue(usb.isKnown());
+		assertTrue(usb.isPresent());
+		assertEquals("option1", usb.getDriver());
+		assertEquals("12d1", usb.getVendorId());
+		assertEquals("1001", usb.getProductId());
+		assertEquals(usbDevice.getPath(), usb.getUsbDevice());
+		assertTrue(sysfs.getPortInfo("/dev/ttyS0").isPresent());
+		assertFalse(sysfs.getPortInfo("/dev/ttyS1").isPresent());
+		assertFalse(sysfs.getPortInfo("/dev/tty1").isPresent());
+		assertFalse(sysfs.getPortInfo("/dev/ttyUSB9").isKnown());
+		assertTrue(sysfs.getPortInfo("/dev/ttyUSB9").isPresent());
+	}
+
+//> TEST HELPER METHODS
+	private File mkdirs(String path) {
+		File dir = new File(root, path);
+		dir.mkdirs();
+		return dir;
+	}
+
+	private void touch(File file) throws Exception {
+		file.createNewFile();
+	}
+
+	private void write(File file, String contents) throws Exception {
+		Files.write(file.toPath(), contents.getBytes("US-ASCII"));
+	}
+
+	/** Creates <code>class/tty/&lt;name&gt;/device</code>, linking to the supplied device directory. */
+	private void link(String name, File device) throws Exception {
+		File tty = mkdirs("class/tty/" + name);
+		Files.createSymbolicLink(new File(tty, "device").toPath(), device.toPath());
+	}
+
+	private void delete(File f) {
+		File[] children = Files.isSymbolicLink(f.toPath()) ? null : f.listFiles();
+		if(children != null) for(File child : children) delete(child);
+		f.delete();
+	}
+}
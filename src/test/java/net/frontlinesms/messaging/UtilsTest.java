@@ -0,0 +1,53 @@
+package net.frontlinesms.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import net.frontlinesms.junit.BaseTestCase;
+
+public class UtilsTest extends BaseTestCase {
+	public void testExecuteBatchedAtCommand_ok() throws Exception {
+		// given
+		InputStream in = mockInputStream("AT+CGSN;+CGMI;+CGMM\r\r\n123457890\r\n\r\nhuawei\r\n^RSSI:18\r\nE173\r\n\r\nOK\r\n");
+		
+		// when
+		String[] values = Utils.executeBatchedAtCommand(in, new ByteArrayOutputStream(), new ATResponse(), "CGSN", "CGMI", "CGMM");
+		
+		// then
+		assertEquals(3, values.length);
+		assertEquals("123457890", values[0]);
+		assertEquals("huawei", values[1]);
+		assertEquals("E173", values[2]);
+	}
+	
+	public void testExecuteBatchedAtCommand_rejected() throws Exception {
+		final String[] modemOutputs = new String[] {
+				"\r\n123457890\r\n\r\nhuawei\r\n\r\nERROR\r\n",
+				"\r\n+CME ERROR: 10\r\n",
+				"\r\n123457890\r\n\r\nOK\r\n",
+				"\r\n123457890\r\n\r\nhuawei\r\n",
+		};
+		
+		for(String modemOutput : modemOutputs) {
+			assertNull(Utils.executeBatchedAtCommand(mockInputStream(modemOutput), new ByteArrayOutputStream(), new ATResponse(), "CGSN", "CGMI"));
+		}
+	}
+	
+	public void testExecuteBatchedAtCommand_commandLine() throws Exception {
+		// given
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		// when
+		Utils.executeBatchedAtCommand(mockInputStream("ERROR"), out, new ATResponse(), "CGSN", "CGMI", "CIMI");
+		
+		// then
+		assertEquals("AT+CGSN;+CGMI;+CIMI\r", out.toString("UTF-8"));
+	}
+
+//> TEST SETUP METHODS
+	private InputStream mockInputStream(String string) throws UnsupportedEncodingException {
+		return new ByteArrayInputStream(string.getBytes("UTF-8"));
+	}
+}
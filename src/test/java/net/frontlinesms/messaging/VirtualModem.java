@@ -0,0 +1,405 @@
+package net.frontlinesms.messaging;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import serial.CommPortIdentifier;
+import serial.PortInUseException;
+import serial.SerialPort;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * A simulated AT modem behind a virtual serial port.  The {@link CommPortIdentifier} and
+ * {@link SerialPort} it presents are Mockito mocks backed by this modem, so detection runs against
+ * it exactly as it would against hardware.  Behaviour is configured with the chained setters.
+ */
+class VirtualModem {
+	/** Sent in place of a response when the port is set to a baud rate the modem does not support */
+	private static final String LINE_NOISE = "\u00ff\u00f0\u00fe";
+
+//> BEHAVIOUR
+	private final String portName;
+	private Set<Integer> baudRates = new HashSet<Integer>(Arrays.asList(9600, 19200, 38400, 57600, 115200));
+	private long latency;
+	private boolean echo = true;
+	private boolean dead;
+	/** Whether reading from the port fails, as when the device has been unplugged */
+	private boolean broken;
+	private boolean concatenationSupported = true;
+	private String[] unsolicited = new String[0];
+	private final Set<String> errorCommands = new HashSet<String>();
+	/** What the operating system knows about the port */
+	private PortInfo portInfo;
+
+//> IDENTITY
+	private String serial;
+	private String manufacturer = "VIRTUAL";
+	private String model = "VM-1";
+	private String imsi;
+	private String phoneNumber;
+	private String pinState = "READY";
+	private String smsSupport = "0,1,1,1";
+	private String signalQuality = "18,99";
+
+//> STATE
+	private final CommPortIdentifier portIdentifier;
+	private final SerialPort serialPort;
+	private final InputStream in = new VirtualInputStream();
+	private final OutputStream out = new VirtualOutputStream();
+	private final StringBuilder commandLine = new StringBuilder();
+	private byte[] rx = new byte[256];
+	private int rxHead;
+	private int rxTail;
+	/** Time at which the bytes waiting in {@link #rx} may be read */
+	private long rxReadyAt;
+	private int baud;
+	private int receiveTimeout;
+	private boolean open;
+	private int openCount;
+	private int commandCount;
+	/** Number of reads and writes made on the port's streams */
+	private int driverCallCount;
+
+	VirtualModem(String portName, String serial) throws Exception {
+		this.portName = portName;
+		this.serial = serial;
+		this.imsi = "23410" + serial.substring(Math.max(0, serial.length() - 10));
+
+		serialPort = mock(SerialPort.class);
+		when(serialPort.getInputStream()).thenReturn(in);
+		when(serialPort.getOutputStream()).thenReturn(out);
+		doAnswer(invocation -> {
+			setBaud((Integer) invocation.getArguments()[0]);
+			return null;
+		}).when(serialPort).setSerialPortParams(anyInt(), anyInt(), anyInt(), anyInt());
+		doAnswer(invocation -> {
+			setReceiveTimeout((Integer) invocation.getArguments()[0]);
+			return null;
+		}).when(serialPort).enableReceiveTimeout(anyInt());
+		doAnswer(invocation -> {
+			close();
+			return null;
+		}).when(serialPort).close();
+
+		portIdentifier = mock(CommPortIdentifier.class);
+		when(portIdentifier.getName()).thenReturn(portName);
+		when(portIdentifier.getPortType()).thenReturn(CommPortIdentifier.PORT_SERIAL);
+		when(portIdentifier.open(anyString(), anyInt())).thenAnswer(invocation -> {
+			open();
+			return serialPort;
+		});
+	}
+
+//> CONFIGURATION
+	/** Sets the baud rates the modem will respond at.  At any other rate it sends line noise. */
+	VirtualModem setBaudRates(Integer... baudRates) {
+		this.baudRates = new HashSet<Integer>(Arrays.asList(baudRates));
+		return this;
+	}
+
+	/** Sets the delay, in milliseconds, before each response can be read. */
+	VirtualModem setLatency(long latency) {
+		this.latency = latency;
+		return this;
+	}
+
+	VirtualModem setEcho(boolean echo) {
+		this.echo = echo;
+		return this;
+	}
+
+	/** Sets whether the modem never responds to anything. */
+	synchronized VirtualModem setDead(boolean dead) {
+		this.dead = dead;
+		return this;
+	}
+
+	/** Sets whether reading from the port fails with an I/O error. */
+	synchronized VirtualModem setBroken(boolean broken) {
+		this.broken = broken;
+		return this;
+	}
+
+	/** Sets whether the modem accepts several commands on one line, e.g. <code>AT+CGSN;+CGMI</code>. */
+	VirtualModem setConcatenationSupported(boolean concatenationSupported) {
+		this.concatenationSupported = concatenationSupported;
+		return this;
+	}
+
+	/** Sets unsolicited result codes which are sent before every response. */
+	VirtualModem setUnsolicited(String... unsolicited) {
+		this.unsolicited = unsolicited;
+		return this;
+	}
+
+	/** Sets commands, e.g. <code>+CNUM</code>, which the modem answers with <code>ERROR</code>. */
+	VirtualModem setError(String... commands) {
+		errorCommands.addAll(Arrays.asList(commands));
+		return this;
+	}
+
+	/** Sets the USB device this port is an interface of.  Interfaces of the same device should share a serial. */
+	VirtualModem setUsbDevice(String usbDevice) {
+		return setPortInfo(new PortInfo(portName, true, true, "option", usbDevice, "12d1", "1001"));
+	}
+	
+	VirtualModem setPortInfo(PortInfo portInfo) {
+		this.portInfo = portInfo;
+		return this;
+	}
+	
+	VirtualModem setSerial(String serial) {
+		this.serial = serial;
+		return this;
+	}
+	
+	VirtualModem setManufacturer(String manufacturer) {
+		this.manufacturer = manufacturer;
+		return this;
+	}
+
+	VirtualModem setModel(String model) {
+		this.model = model;
+		return this;
+	}
+
+	VirtualModem setPhoneNumber(String phoneNumber) {
+		this.phoneNumber = phoneNumber;
+		return this;
+	}
+
+	synchronized VirtualModem setPinState(String pinState) {
+		this.pinState = pinState;
+		return this;
+	}
+
+	VirtualModem setSmsSupport(String smsSupport) {
+		this.smsSupport = smsSupport;
+		return this;
+	}
+
+	synchronized VirtualModem setSignalQuality(String signalQuality) {
+		this.signalQuality = signalQuality;
+		return this;
+	}
+
+//> ACCESSORS
+	String getPortName() {
+		return portName;
+	}
+
+	String getSerial() {
+		return serial;
+	}
+
+	String getImsi() {
+		return imsi;
+	}
+	
+	PortInfo getPortInfo() {
+		return portInfo != null ? portInfo : PortInfo.unknown(portName);
+	}
+
+	CommPortIdentifier getPortIdentifier() {
+		return portIdentifier;
+	}
+
+	/** @return the highest baud rate the modem will respond at, or <code>0</code> if it is dead */
+	int getMaxBaudRate() {
+		return dead ? 0 : Collections.max(baudRates);
+	}
+
+	synchronized boolean isOpen() {
+		return open;
+	}
+
+	synchronized int getOpenCount() {
+		return openCount;
+	}
+
+	synchronized int getCommandCount() {
+		return commandCount;
+	}
+
+	/** @return the number of reads and writes made on the port's streams, each of which would be a call into a real serial driver */
+	synchronized int getDriverCallCount() {
+		return driverCallCount;
+	}
+
+//> PORT SIMULATION
+	/** As a serial driver, refuses to open the port again while it is open. */
+	private synchronized void open() throws PortInUseException {
+		if(open) throw mock(PortInUseException.class);
+		open = true;
+		++openCount;
+		rxHead = rxTail = 0;
+		commandLine.setLength(0);
+		receiveTimeout = 0;
+	}
+
+	private synchronized void close() {
+		open = false;
+		notifyAll();
+	}
+
+	private synchronized void setBaud(int baud) {
+		this.baud = baud;
+	}
+
+	private synchronized void setReceiveTimeout(int receiveTimeout) {
+		this.receiveTimeout = receiveTimeout;
+	}
+
+	private synchronized void received(int b) {
+		if(b == '\r') {
+			String line = commandLine.toString();
+			commandLine.setLength(0);
+			++commandCount;
+			respond(line);
+		} else if(b != '\n') {
+			commandLine.append((char) b);
+		}
+	}
+
+	private void respond(String line) {
+		if(dead) return;
+		if(!baudRates.contains(baud)) {
+			send(LINE_NOISE);
+			return;
+		}
+
+		StringBuilder response = new StringBuilder();
+		if(echo) response.append(line).append('\r');
+		for(String urc : unsolicited) {
+			response.append("\r\n").append(urc).append("\r\n");
+		}
+		response.append(execute(line));
+		send(response.toString());
+	}
+
+	/** @return the information and final result code sent in response to a command line */
+	private String execute(String line) {
+		if(!line.toUpperCase().startsWith("AT")) return "\r\nERROR\r\n";
+		String[] commands = line.substring(2).split(";");
+		if(commands.length > 1 && !concatenationSupported) return "\r\nERROR\r\n";
+
+		StringBuilder response = new StringBuilder();
+		for(String command : commands) {
+			if(command.length() == 0) continue;
+			String information = errorCommands.contains(command) ? null : getInformation(command);
+			if(information == null) return response.append("\r\nERROR\r\n").toString();
+			if(information.length() > 0) response.append("\r\n").append(information).append("\r\n");
+		}
+		return response.append("\r\nOK\r\n").toString();
+	}
+
+	/** @return the information sent in response to a single command, or <code>null</code> if the command is not supported */
+	private String getInformation(String command) {
+		if(command.equals("+CGSN")) return serial;
+		if(command.equals("+CGMI")) return manufacturer;
+		if(command.equals("+CGMM")) return model;
+		if(command.equals("+CIMI")) return imsi;
+		if(command.equals("+CNUM")) return phoneNumber == null ? "" : "+CNUM: \"\",\"" + phoneNumber + "\",129";
+		if(command.equals("+CPIN?")) return "+CPIN: " + pinState;
+		if(command.equals("+CSMS?")) return "+CSMS: " + smsSupport;
+		if(command.equals("+CSQ")) return "+CSQ: " + signalQuality;
+		return null;
+	}
+
+	private void send(String response) {
+		byte[] bytes = response.getBytes(StandardCharsets.ISO_8859_1);
+		if(rxTail + bytes.length > rx.length) {
+			byte[] bigger = new byte[Math.max(rx.length << 1, rxTail - rxHead + bytes.length)];
+			System.arraycopy(rx, rxHead, bigger, 0, rxTail - rxHead);
+			rxTail -= rxHead;
+			rxHead = 0;
+			rx = bigger;
+		}
+		System.arraycopy(bytes, 0, rx, rxTail, bytes.length);
+		rxTail += bytes.length;
+		rxReadyAt = System.currentTimeMillis() + latency;
+		notifyAll();
+	}
+
+	private synchronized int read() throws IOException {
+		++driverCallCount;
+		return awaitByte();
+	}
+
+	/** As a serial driver, blocks until at least one byte can be read, then returns all bytes ready up to <code>len</code>. */
+	private synchronized int read(byte[] b, int off, int len) throws IOException {
+		++driverCallCount;
+		if(len == 0) return 0;
+		int c = awaitByte();
+		if(c == -1) return -1;
+		b[off] = (byte) c;
+		int count = Math.min(len - 1, rxTail - rxHead);
+		System.arraycopy(rx, rxHead, b, off + 1, count);
+		rxHead += count;
+		return count + 1;
+	}
+
+	private synchronized void write(byte[] b, int off, int len) {
+		++driverCallCount;
+		for(int i=off; i<off+len; ++i) received(b[i]);
+	}
+
+	/** Blocks until a byte can be read, the receive timeout expires or the port is closed. */
+	private synchronized int awaitByte() throws IOException {
+		if(broken) throw new IOException("Input/output error reading from " + portName);
+		long deadline = receiveTimeout > 0 ? System.currentTimeMillis() + receiveTimeout : Long.MAX_VALUE;
+		while(open) {
+			long now = System.currentTimeMillis();
+			if(rxHead < rxTail && now >= rxReadyAt) return rx[rxHead++] & 0xFF;
+			if(now >= deadline) return -1;
+			long wakeAt = rxHead < rxTail ? Math.min(rxReadyAt, deadline) : deadline;
+			try {
+				wait(Math.max(1, Math.min(wakeAt - now, Integer.MAX_VALUE)));
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted reading from " + portName);
+			}
+		}
+		return -1;
+	}
+
+	private synchronized int available() {
+		return rxHead < rxTail && System.currentTimeMillis() >= rxReadyAt ? rxTail - rxHead : 0;
+	}
+
+//> STREAMS
+	private class VirtualInputStream extends InputStream {
+		public int read() throws IOException {
+			return VirtualModem.this.read();
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return VirtualModem.this.read(b, off, len);
+		}
+
+		public int available() {
+			return VirtualModem.this.available();
+		}
+
+		/** Streams are reused each time the port is opened, so closing them does nothing. */
+		public void close() {}
+	}
+
+	private class VirtualOutputStream extends OutputStream {
+		public void write(int b) {
+			synchronized(VirtualModem.this) {
+				++driverCallCount;
+				received(b);
+			}
+		}
+
+		public void write(byte[] b, int off, int len) {
+			VirtualModem.this.write(b, off, len);
+		}
+
+		/** Streams are reused each time the port is opened, so closing them does nothing. */
+		public void close() {}
+	}
+}
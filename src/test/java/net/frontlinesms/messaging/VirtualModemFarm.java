@@ -0,0 +1,68 @@
+package net.frontlinesms.messaging;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+import serial.CommPortIdentifier;
+import serial.NoSuchPortException;
+
+/**
+ * A bank of {@link VirtualModem}s, and {@link AllModemsDetector}s which detect on them instead of
+ * on the ports known to the serial library.
+ */
+class VirtualModemFarm {
+	private final Map<String, VirtualModem> modems = new LinkedHashMap<String, VirtualModem>();
+	private long nextSerial = 356789000000000L;
+
+	/** Adds a modem with default behaviour on the named port. */
+	synchronized VirtualModem add(String portName) throws Exception {
+		VirtualModem m = new VirtualModem(portName, Long.toString(nextSerial++));
+		modems.put(portName, m);
+		return m;
+	}
+
+	/** Adds <code>count</code> modems with default behaviour, on ports named <code>prefix0</code>, <code>prefix1</code>... */
+	synchronized List<VirtualModem> add(String prefix, int count) throws Exception {
+		List<VirtualModem> added = new ArrayList<VirtualModem>(count);
+		for(int i=0; i<count; ++i) {
+			added.add(add(prefix + i));
+		}
+		return added;
+	}
+
+	synchronized void remove(String portName) {
+		modems.remove(portName);
+	}
+
+	synchronized VirtualModem get(String portName) {
+		return modems.get(portName);
+	}
+
+	synchronized Collection<VirtualModem> getModems() {
+		return new ArrayList<VirtualModem>(modems.values());
+	}
+
+	/** @return a detector which detects on the modems in this farm */
+	AllModemsDetector newDetector(ExecutorService executor) {
+		return new AllModemsDetector(executor) {
+			Enumeration<CommPortIdentifier> getPortIdentifiers() {
+				List<CommPortIdentifier> ports = new ArrayList<CommPortIdentifier>();
+				for(VirtualModem m : getModems()) {
+					ports.add(m.getPortIdentifier());
+				}
+				return Collections.enumeration(ports);
+			}
+
+			CommPortIdentifier getPortIdentifier(String portName) throws NoSuchPortException {
+				VirtualModem m = get(portName);
+				if(m == null) throw new NoSuchPortException();
+				return m.getPortIdentifier();
+			}
+
+			PortInfo getPortInfo(String portName) {
+				VirtualModem m = get(portName);
+				return m == null ? PortInfo.unknown(portName) : m.getPortInfo();
+			}
+		};
+	}
+}